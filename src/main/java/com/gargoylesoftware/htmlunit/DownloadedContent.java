@@ -16,8 +16,6 @@ package com.gargoylesoftware.htmlunit;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
@@ -25,6 +23,8 @@ import java.io.Serializable;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ArrayUtils;
 
+import pl.nask.hsn2.utils.FileContentStream;
+
 /**
  * Wrapper for content downloaded from a remote server.
  *
@@ -70,12 +70,15 @@ public interface DownloadedContent extends Serializable {
             temporary_ = temporary;
         }
 
-        public InputStream getInputStream() throws FileNotFoundException {
-            return new FileInputStream(file_);
+        public InputStream getInputStream() throws IOException {
+            /*HSN2-webclient modification ------------> */
+            // mapped file stream, the content is handed to the data store without copying
+            return new FileContentStream(file_);
+            /* <------------ */
         }
 
         public void cleanUp() {
-            /* hsn2-webclient has own TempCleaner
+            /* hsn2-webclient removes downloaded files with the temp directory of the task (TaskTempDir)
 
 	    if (temporary_) {
                 FileUtils.deleteQuietly(file_);
@@ -63,6 +63,8 @@ import org.w3c.dom.Text;
 import org.w3c.dom.ranges.Range;
 
 import pl.nask.hsn2.service.ServiceParameters;
+import pl.nask.hsn2.service.urlfollower.CompiledScriptCache;
+import pl.nask.hsn2.service.urlfollower.VirtualClock;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.gargoylesoftware.htmlunit.Cache;
@@ -986,6 +988,9 @@ public class HtmlPage extends SgmlPage {
             sourceCode = sourceCode.substring(JavaScriptURLConnection.JAVASCRIPT_PREFIX.length());
         }
 
+        /*HSN2-webclient modification ------------> */
+        installVirtualClock();
+        /* <------------ */
         final Object result = getWebClient().getJavaScriptEngine().execute(this, sourceCode, sourceName, startLine);
         return new ScriptResult(result, getWebClient().getCurrentWindow().getEnclosedPage());
     }
@@ -1011,6 +1016,9 @@ public class HtmlPage extends SgmlPage {
             return new ScriptResult(null, this);
         }
 
+        /*HSN2-webclient modification ------------> */
+        installVirtualClock();
+        /* <------------ */
         final JavaScriptEngine engine = getWebClient().getJavaScriptEngine();
         final Object result = engine.callFunction(this, function, thisObject, args, htmlElementScope);
 
@@ -1102,9 +1110,29 @@ public class HtmlPage extends SgmlPage {
             return JavaScriptLoadResult.COMPILATION_ERROR;
         }
 
+        /*HSN2-webclient modification ------------> */
+        installVirtualClock();
+        /* <------------ */
         client.getJavaScriptEngine().execute(this, script);
         return JavaScriptLoadResult.SUCCESS;
     }
+
+    /*HSN2-webclient modification to let scripts see the task virtual clock (virtual_time parameter)
+     * ------------>
+     */
+    private boolean virtualClockInstalled;
+    private void installVirtualClock() {
+        if (!virtualClockInstalled) {
+            virtualClockInstalled = true;
+            final VirtualClock clock = VirtualClock.of(getWebClient());
+            if (clock != null) {
+                clock.install(this);
+            }
+        }
+    }
+    /*
+     * <------------
+     */
     
     /*HSN2-webclient modification to pass pl.nask.hsn2.service.JSwwwSitesTest.testRecursiveDownloadJS
      * ------------>
@@ -1234,8 +1262,9 @@ public class HtmlPage extends SgmlPage {
 
         final String scriptCode = response.getContentAsString(scriptEncoding);
         if (null != scriptCode) {
-            final JavaScriptEngine javaScriptEngine = client.getJavaScriptEngine();
-            final Script script = javaScriptEngine.compile(this, scriptCode, url.toExternalForm(), 1);
+            /*HSN2-webclient modification to share compiled scripts between tasks ------------> */
+            final Script script = CompiledScriptCache.getInstance().compile(this, scriptCode, url.toExternalForm());
+            /* <------------ */
             if (script != null) {
                 cache.cacheIfPossible(request, response, script);
             }
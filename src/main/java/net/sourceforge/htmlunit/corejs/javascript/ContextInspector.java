@@ -19,7 +19,11 @@
 
 package net.sourceforge.htmlunit.corejs.javascript;
 
+import java.lang.reflect.Field;
+
 public class ContextInspector {
+	// the interpreter frame class is private, its index is read reflectively
+	private static final Field FRAME_INDEX = frameIndexField();
 	
 	public static int getDepth(Context context) {
 		NativeCall call = context.currentActivationCall;
@@ -33,4 +37,41 @@ public class ContextInspector {
 		}
 		return depth;
 	}
+
+	/**
+	 * Counts interpreter frames, including the ones of the invocations suspended by calls through Java code. Unlike
+	 * {@link #getDepth(Context)} it does not need activations, which are created only for some functions without a
+	 * debugger.
+	 */
+	public static int getInterpreterDepth(Context context) {
+		int depth = frames(context.lastInterpreterFrame);
+		ObjArray previous = context.previousInterpreterInvocations;
+		if (previous != null) {
+			for (int i = 0; i < previous.size(); i++) {
+				depth += frames(previous.get(i));
+			}
+		}
+		return depth;
+	}
+
+	private static int frames(Object frame) {
+		if (frame == null) {
+			return 0;
+		}
+		try {
+			return FRAME_INDEX.getInt(frame) + 1;
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Field frameIndexField() {
+		try {
+			Field field = Class.forName(Interpreter.class.getName() + "$CallFrame").getDeclaredField("frameIndex");
+			field.setAccessible(true);
+			return field;
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
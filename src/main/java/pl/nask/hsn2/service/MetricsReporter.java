@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+/**
+ * Periodically logs service metrics.
+ */
+public class MetricsReporter implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsReporter.class);
+	private static final long INTERVAL = Long.getLong("webclient.metrics.interval", 5 * 60 * 1000);
+
+	@Override
+	public final void run() {
+		LOGGER.info("MetricsReporter started.");
+		while (true) {
+			try {
+				Thread.sleep(INTERVAL);
+			} catch (InterruptedException e) {
+				LOGGER.info("MetricsReporter closed, final metrics: {}", ServiceMetrics.snapshot());
+				return;
+			}
+			LOGGER.info("Metrics: {}", ServiceMetrics.snapshot());
+		}
+	}
+}
@@ -20,6 +20,8 @@
 package pl.nask.hsn2.service;
 
 import pl.nask.hsn2.ParameterException;
+import pl.nask.hsn2.service.urlfollower.JsCapturePolicy;
+import pl.nask.hsn2.service.urlfollower.JsObservationMode;
 import pl.nask.hsn2.wrappers.ParametersWrapper;
 
 public class ServiceParameters {
@@ -28,6 +30,7 @@ public class ServiceParameters {
 	public static final int PAGE_TIMEOUT = 30000; 			private int pageTimeoutMillis;
 	public static final int PROCESSING_TIMEOUT = 90000;		private int processingTimeout;
 	public static final int SINGLE_JS_TIMEOUT = 3000; private int singleJsTimeoutMillis;
+	public static final int BACKGROUND_JS_IDLE_TIME = 0;	private int backgroundJsIdleTimeMillis;
 
 	public static final boolean ADD_REFERRER_COOKIE = true; 	private boolean addReferrerCookie;
 	public static final boolean ADD_REFERRER = true;  		private boolean addReferrer;
@@ -47,6 +50,15 @@ public class ServiceParameters {
 	public static final int JS_RECURSION_LIMIT = 80;	private int jsRecursionLimit;
 	public static final boolean JS_ENABLE = true;		private boolean jsEnable;
 	public static final String PROFILE = "Firefox 3.6";		private String profile;
+	public static final boolean VIRTUAL_TIME = false;	private boolean virtualTime;
+	public static final int RESPONSE_SIZE_LIMIT = 20 * 1024 * 1024;	private int responseSizeLimit;
+	public static final int TASK_SIZE_LIMIT = 100 * 1024 * 1024;	private int taskSizeLimit;
+	public static final int HTML_SIZE_LIMIT = 5 * 1024 * 1024;	private int htmlSizeLimit;
+	public static final String JS_CAPTURE = "full";	private JsCapturePolicy jsCapture;
+	public static final int JS_CAPTURE_LIMIT = 64 * 1024;	private int jsCaptureLimit;
+	public static final String JS_OBSERVATION = "full";	private JsObservationMode jsObservation;
+	public static final int JS_INSTRUCTION_LIMIT = 1000000000;	private int jsInstructionLimit;
+	public static final int JS_SCRIPT_INSTRUCTION_LIMIT = 200000000;	private int jsScriptInstructionLimit;
 
 	/**
 	 * default constructor means, that only default parameters should be used
@@ -75,11 +87,21 @@ public class ServiceParameters {
 		singleJsTimeoutMillis = params.getInt("single_js_timeout", SINGLE_JS_TIMEOUT);
 		jsEnable = params.getBoolean("js_enable", JS_ENABLE);
 		backgroundJsTimeoutMillis = params.getInt("background_js_timeout", BACKGROUND_JS_TIMEOUT);
+		backgroundJsIdleTimeMillis = params.getInt("background_js_idle_time", BACKGROUND_JS_IDLE_TIME);
 		pageTimeoutMillis = params.getInt("page_timeout", PAGE_TIMEOUT);
 		processingTimeout = params.getInt("processing_timeout", PROCESSING_TIMEOUT);
 		jsRecursionLimit = params.getInt("js_recursion_limit", JS_RECURSION_LIMIT);
 		saveJsContext = params.getBoolean("save_js_context", SAVE_JS_CONTEXT);
 		profile = params.get("profile", PROFILE);
+		virtualTime = params.getBoolean("virtual_time", VIRTUAL_TIME);
+		responseSizeLimit = params.getInt("response_size_limit", RESPONSE_SIZE_LIMIT);
+		taskSizeLimit = params.getInt("task_size_limit", TASK_SIZE_LIMIT);
+		htmlSizeLimit = params.getInt("html_size_limit", HTML_SIZE_LIMIT);
+		jsCapture = JsCapturePolicy.forName(params.get("js_capture", JS_CAPTURE));
+		jsCaptureLimit = params.getInt("js_capture_limit", JS_CAPTURE_LIMIT);
+		jsObservation = JsObservationMode.forName(params.get("js_observation", JS_OBSERVATION));
+		jsInstructionLimit = params.getInt("js_instruction_limit", JS_INSTRUCTION_LIMIT);
+		jsScriptInstructionLimit = params.getInt("js_script_instruction_limit", JS_SCRIPT_INSTRUCTION_LIMIT);
 	}
 
 	public final boolean getProcessExternalLinks() {
@@ -257,4 +279,105 @@ public class ServiceParameters {
 	public final void setProfile(String profile) {
 		this.profile = profile;
 	}
+
+	public final int getBackgroundJsIdleTimeMillis() {
+		return backgroundJsIdleTimeMillis;
+	}
+
+	public final void setBackgroundJsIdleTimeMillis(int backgroundJsIdleTimeMillis) {
+		this.backgroundJsIdleTimeMillis = backgroundJsIdleTimeMillis;
+	}
+
+	public final boolean isVirtualTime() {
+		return virtualTime;
+	}
+
+	public final void setVirtualTime(boolean virtualTime) {
+		this.virtualTime = virtualTime;
+	}
+
+	/**
+	 * @return Maximum bytes of a single response body, 0 means no limit.
+	 */
+	public final int getResponseSizeLimit() {
+		return responseSizeLimit;
+	}
+
+	public final void setResponseSizeLimit(int responseSizeLimit) {
+		this.responseSizeLimit = responseSizeLimit;
+	}
+
+	/**
+	 * @return Maximum bytes of all response bodies downloaded by the task, 0 means no limit.
+	 */
+	public final int getTaskSizeLimit() {
+		return taskSizeLimit;
+	}
+
+	public final void setTaskSizeLimit(int taskSizeLimit) {
+		this.taskSizeLimit = taskSizeLimit;
+	}
+
+	/**
+	 * @return Maximum bytes of saved html_source, 0 means no limit.
+	 */
+	public final int getHtmlSizeLimit() {
+		return htmlSizeLimit;
+	}
+
+	public final void setHtmlSizeLimit(int htmlSizeLimit) {
+		this.htmlSizeLimit = htmlSizeLimit;
+	}
+
+	/**
+	 * @return What is kept of script sources, {@link JsCapturePolicy#OFF} when JS contexts are not saved.
+	 */
+	public final JsCapturePolicy getJsCapturePolicy() {
+		return saveJsContext ? jsCapture : JsCapturePolicy.OFF;
+	}
+
+	public final void setJsCapturePolicy(JsCapturePolicy jsCapture) {
+		this.jsCapture = jsCapture;
+	}
+
+	/**
+	 * @return Maximum characters of a script source kept with {@link JsCapturePolicy#PREFIX}.
+	 */
+	public final int getJsCaptureLimit() {
+		return jsCaptureLimit;
+	}
+
+	public final void setJsCaptureLimit(int jsCaptureLimit) {
+		this.jsCaptureLimit = jsCaptureLimit;
+	}
+
+	public final JsObservationMode getJsObservationMode() {
+		return jsObservation;
+	}
+
+	public final void setJsObservationMode(JsObservationMode jsObservation) {
+		this.jsObservation = jsObservation;
+	}
+
+	/**
+	 * @return Rhino instructions all scripts of the task may execute, 0 for no limit.
+	 */
+	public final int getJsInstructionLimit() {
+		return jsInstructionLimit;
+	}
+
+	public final void setJsInstructionLimit(int jsInstructionLimit) {
+		this.jsInstructionLimit = jsInstructionLimit;
+	}
+
+	/**
+	 * @return Rhino instructions a single script, event handler or timer call may execute, 0 for no limit.
+	 */
+	public final int getJsScriptInstructionLimit() {
+		return jsScriptInstructionLimit;
+	}
+
+	public final void setJsScriptInstructionLimit(int jsScriptInstructionLimit) {
+		this.jsScriptInstructionLimit = jsScriptInstructionLimit;
+	}
 }
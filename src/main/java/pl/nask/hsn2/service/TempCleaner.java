@@ -25,6 +25,12 @@ import java.io.FileFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pl.nask.hsn2.utils.TaskTempDir;
+
+/**
+ * Crash recovery run once at startup: removes task temp directories ({@link TaskTempDir}) and HtmlUnit temp files
+ * left by a previous run of the service. Files of running tasks are removed with their task directories.
+ */
 public class TempCleaner implements Runnable{
 	private static final Logger LOGGER = LoggerFactory.getLogger(TempCleaner.class);
 	private static final long INTERVAL = 15 * 60 * 1000;
@@ -33,22 +39,18 @@ public class TempCleaner implements Runnable{
 
 	@Override
 	public final void run() {
-		LOGGER.info("TempCleaner started.");
-		while(true){
-			int i = clearTemp(INTERVAL);
-			LOGGER.info(i +" temp files deleted");
-			try {
-				Thread.sleep(INTERVAL);
-			} catch (InterruptedException e) {
-				LOGGER.info("TempCleaner closed.");
-				return;
-			}
-		}
+		int dirs = TaskTempDir.removeStale(TaskTempDir.DEFAULT_ROOT, INTERVAL);
+		int files = clearTemp(INTERVAL);
+		LOGGER.info("{} stale task temp directories and {} temp files deleted", dirs, files);
 	}
 
 	final int clearTemp(long interval){
 		int i = 0;
-		for (File file : TMP_DIR.listFiles(new HtmlUnitFileFilter(interval))){
+		File[] files = TMP_DIR.listFiles(new HtmlUnitFileFilter(interval));
+		if (files == null) {
+			return 0;
+		}
+		for (File file : files){
 			boolean isDel = file.delete();
 			if (isDel){
 				i++;
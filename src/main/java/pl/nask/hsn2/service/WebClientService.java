@@ -24,6 +24,7 @@ import org.apache.commons.daemon.DaemonInitException;
 import pl.nask.hsn2.CommandLineParams;
 import pl.nask.hsn2.ServiceMain;
 import pl.nask.hsn2.service.task.TaskContextFactoryImpl;
+import pl.nask.hsn2.service.urlfollower.SharedResponseCache;
 import pl.nask.hsn2.task.TaskContextFactory;
 import pl.nask.hsn2.task.TaskFactory;
 
@@ -31,7 +32,7 @@ import pl.nask.hsn2.task.TaskFactory;
  * Starter for the WebCrawler service.
  */
 public final class WebClientService extends ServiceMain {
-	private Thread tempCleaner;
+	private Thread metricsReporter;
 	public static void main(final String[] args) throws DaemonInitException, InterruptedException {
 		WebClientService wcs = new WebClientService();
 		wcs.init(new DefaultDaemonContext(args));
@@ -44,8 +45,12 @@ public final class WebClientService extends ServiceMain {
 	
 	@Override
 	protected void prepareService() {
-		tempCleaner = new Thread(new TempCleaner(),"TempCleaner");
+		Thread tempCleaner = new Thread(new TempCleaner(),"TempCleaner");
+		tempCleaner.setDaemon(true);
 		tempCleaner.start();
+		metricsReporter = new Thread(new MetricsReporter(), "MetricsReporter");
+		metricsReporter.setDaemon(true);
+		metricsReporter.start();
 	}
 
 	@Override
@@ -62,7 +67,8 @@ public final class WebClientService extends ServiceMain {
 	
 	@Override
 	public void stop() {
-		tempCleaner.interrupt();
+		metricsReporter.interrupt();
+		SharedResponseCache.shutdown();
 		super.stop();
 	}
 }
@@ -28,6 +28,8 @@ import pl.nask.hsn2.ParameterException;
 import pl.nask.hsn2.RequiredParameterMissingException;
 import pl.nask.hsn2.ResourceException;
 import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.service.task.TaskByteBudget;
+import pl.nask.hsn2.service.task.TaskDeadline;
 import pl.nask.hsn2.service.task.WebClientTaskContext;
 import pl.nask.hsn2.service.urlfollower.HtmlUnitFollower;
 import pl.nask.hsn2.service.urlfollower.UrlFollower;
@@ -41,6 +43,7 @@ public class WebClientTask implements Task {
     private WebClientTaskContext jobContext;
     private ServiceData inputData;
     private UrlFollower follower;
+    private final ServiceParameters parameters;
 
      public WebClientTask(WebClientTaskContext jobContext, ServiceParameters parameters, ServiceData inputData, UrlFollower follower) {
 		this.jobContext = jobContext;
@@ -49,6 +52,7 @@ public class WebClientTask implements Task {
 		this.jobContext.webContextInit(inputData.getUrlForProcessing(), inputData.getInputReferrer(), inputData.getInputReferrerCookieId());
 		this.inputData = inputData;
 		this.follower = follower;
+		this.parameters = parameters;
     }
 
 	public WebClientTask(WebClientTaskContext jobContext, ServiceParameters params, ServiceData inputData, String urlForProcessing, String inputUrlOriginal) {
@@ -78,6 +82,8 @@ public class WebClientTask implements Task {
 
 	@Override
 	public final void process() throws ParameterException, ResourceException, StorageException {
+		jobContext.setDeadline(new TaskDeadline(parameters.getProcessingTimeout()));
+		jobContext.setByteBudget(new TaskByteBudget(parameters.getResponseSizeLimit(), parameters.getTaskSizeLimit()));
 		try {
 			prepareCookies();
 			follower.processUrl();
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.task;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.bus.api.TimeoutException;
+import pl.nask.hsn2.service.ServiceParameters;
+import pl.nask.hsn2.service.urlfollower.EmbeddedResource;
+import pl.nask.hsn2.service.urlfollower.FetchExecutor;
+import pl.nask.hsn2.service.urlfollower.WebClientWorker;
+
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.UrlUtils;
+
+/**
+ * Downloads embedded resources of a page in parallel, using the shared {@link FetchExecutor}. Number of downloads
+ * running at once is limited per task ("webclient.resources.parallel") and per host ("webclient.resources.perHost").
+ */
+public class EmbeddedResourceFetcher {
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedResourceFetcher.class);
+	public static final int DEFAULT_PARALLEL = 8;
+	public static final int DEFAULT_PER_HOST = 4;
+	private static final long POLL_INTERVAL = 50;
+
+	private final WebClientWorker webClientWorker;
+	private final ServiceParameters params;
+	private final int firstRedirect;
+	private final int parallel;
+	private final int perHost;
+	private final BlockingQueue<ResourceFetch> finished = new LinkedBlockingQueue<ResourceFetch>();
+
+	/**
+	 * @param firstRedirect Number of redirects already used, redirects are followed up to redirect_depth_limit.
+	 */
+	public EmbeddedResourceFetcher(WebClientWorker webClientWorker, ServiceParameters params, int firstRedirect) {
+		this(webClientWorker, params, firstRedirect, Integer.getInteger("webclient.resources.parallel", DEFAULT_PARALLEL), Integer
+				.getInteger("webclient.resources.perHost", DEFAULT_PER_HOST));
+	}
+
+	EmbeddedResourceFetcher(WebClientWorker webClientWorker, ServiceParameters params, int firstRedirect, int parallel, int perHost) {
+		this.webClientWorker = webClientWorker;
+		this.params = params;
+		this.firstRedirect = firstRedirect;
+		this.parallel = Math.max(parallel, 1);
+		this.perHost = Math.max(perHost, 1);
+	}
+
+	/**
+	 * Downloads resources and updates them with the results. Resources which have already failed are skipped.
+	 */
+	public final void fetchAll(Collection<EmbeddedResource> resources) {
+		Deque<ResourceFetch> pending = new ArrayDeque<ResourceFetch>();
+		for (EmbeddedResource resource : resources) {
+			if (!resource.isRequestFailed()) {
+				pending.add(new ResourceFetch(resource));
+			}
+		}
+		List<ResourceFetch> running = new ArrayList<ResourceFetch>();
+		Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+		TaskDeadline deadline = webClientWorker.getDeadline();
+		try {
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				if (deadline.isExpired()) {
+					failAll(pending, running, "Time limit exceeded for URL: ");
+					return;
+				}
+				startFetches(pending, running, runningPerHost);
+				ResourceFetch done = finished.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				while (done != null) {
+					finishFetch(done, running, runningPerHost);
+					done = finished.poll();
+				}
+				abortOverdueFetches(running, runningPerHost);
+			}
+		} catch (InterruptedException e) {
+			LOGGER.warn("Fetching embedded resources interrupted");
+			Thread.currentThread().interrupt();
+			failAll(pending, running, "Fetching interrupted for URL: ");
+		}
+	}
+
+	private void startFetches(Deque<ResourceFetch> pending, List<ResourceFetch> running, Map<String, Integer> runningPerHost) {
+		Iterator<ResourceFetch> it = pending.iterator();
+		while (it.hasNext() && running.size() < parallel) {
+			ResourceFetch resourceFetch = it.next();
+			Integer hostCount = runningPerHost.get(resourceFetch.host);
+			if (hostCount != null && hostCount >= perHost) {
+				continue;
+			}
+			try {
+				resourceFetch.start(webClientWorker.getDeadline().limit(params.getPageTimeoutMillis()));
+			} catch (RejectedExecutionException e) {
+				// shared queue is full, next attempt after some fetch finishes
+				return;
+			}
+			it.remove();
+			running.add(resourceFetch);
+			runningPerHost.put(resourceFetch.host, hostCount == null ? 1 : hostCount + 1);
+		}
+	}
+
+	private void finishFetch(ResourceFetch resourceFetch, List<ResourceFetch> running, Map<String, Integer> runningPerHost) {
+		// aborted fetches were removed already
+		if (running.remove(resourceFetch)) {
+			runningPerHost.put(resourceFetch.host, runningPerHost.get(resourceFetch.host) - 1);
+		}
+	}
+
+	private void abortOverdueFetches(List<ResourceFetch> running, Map<String, Integer> runningPerHost) {
+		for (ResourceFetch resourceFetch : new ArrayList<ResourceFetch>(running)) {
+			if (resourceFetch.isOverdue() && resourceFetch.settleFailed("Timeout when gathering (" + resourceFetch.timeout + " ms):")) {
+				resourceFetch.fetch.abort();
+				finishFetch(resourceFetch, running, runningPerHost);
+			}
+		}
+	}
+
+	private void failAll(Deque<ResourceFetch> pending, List<ResourceFetch> running, String reason) {
+		for (ResourceFetch resourceFetch : running) {
+			if (resourceFetch.settleFailed(reason)) {
+				resourceFetch.fetch.abort();
+			}
+		}
+		for (ResourceFetch resourceFetch : pending) {
+			resourceFetch.settleFailed(reason);
+		}
+	}
+
+	private static String getHost(String url) {
+		try {
+			return new URL(url).getHost().toLowerCase(Locale.ENGLISH);
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+	private final class ResourceFetch implements Callable<Void> {
+		private final EmbeddedResource resource;
+		private final String host;
+		private final AtomicBoolean settled = new AtomicBoolean();
+		private FetchExecutor.Fetch<Void> fetch;
+		private long started;
+		private int timeout;
+
+		ResourceFetch(EmbeddedResource resource) {
+			this.resource = resource;
+			host = getHost(resource.getAbsoluteUrl());
+		}
+
+		void start(int timeoutMillis) {
+			timeout = timeoutMillis;
+			started = System.currentTimeMillis();
+			fetch = FetchExecutor.getInstance().submit(this);
+		}
+
+		boolean isOverdue() {
+			return timeout > 0 && System.currentTimeMillis() - started > timeout;
+		}
+
+		@Override
+		public Void call() {
+			try {
+				fetchResource(this);
+			} finally {
+				finished.add(this);
+			}
+			return null;
+		}
+
+		/**
+		 * Only the first result is stored, the rest (i.e. of a fetch finishing after it was aborted) is ignored.
+		 */
+		boolean settle(WebResponse webResponse, String failureReason, boolean requestFailed) {
+			if (!settled.compareAndSet(false, true)) {
+				return false;
+			}
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Updating resource:{},[{},{},{}]",
+						new Object[] { resource.getAbsoluteUrl(), webResponse != null ? webResponse.getContentType() : "no response",
+								failureReason, requestFailed });
+			}
+			resource.update(webResponse, failureReason, requestFailed);
+			return true;
+		}
+
+		boolean settleFailed(String reason) {
+			String url = resource.getAbsoluteUrl();
+			if (settle(null, reason + url, true)) {
+				LOGGER.warn(reason + url);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private void fetchResource(ResourceFetch resourceFetch) {
+		EmbeddedResource resource = resourceFetch.resource;
+		String failureReason = resource.getFailureMessage();
+		boolean requestFailed = false;
+		String url = resource.getAbsoluteUrl();
+		WebResponse webResponse = null;
+
+		TaskDeadline deadline = webClientWorker.getDeadline();
+		try {
+			webResponse = webClientWorker.getResourceResponse(url);
+			int serverRespStatus = webResponse.getStatusCode();
+			int resourceRedirLimit = firstRedirect;
+			while (resourceRedirLimit++ < params.getRedirectDepthLimit() && serverRespStatus >= HttpStatus.SC_MULTIPLE_CHOICES
+					&& serverRespStatus < HttpStatus.SC_BAD_REQUEST) {
+				if (deadline.isExpired()) {
+					throw new TimeoutException("Task time limit exceeded while following redirects of: " + url);
+				}
+				String redirect = webResponse.getResponseHeaderValue("Location");
+				String newUrl = UrlUtils.resolveUrl(url, redirect);
+				LOGGER.debug("Resource '{}' redirected to: {}", url, newUrl);
+				webResponse = webClientWorker.getResourceResponse(newUrl);
+				serverRespStatus = webResponse.getStatusCode();
+			}
+
+			// Status message can be used as a failure message.
+			failureReason = webResponse.getStatusMessage();
+		} catch (ConnectTimeoutException e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogWarn(e, "Connection timeout for URL: " + url);
+			requestFailed = true;
+		} catch (SocketTimeoutException e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogWarn(e, "Socket timeout for URL: " + url);
+			requestFailed = true;
+		} catch (UnknownHostException e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogWarn(e, "Unknown host for URL: url");
+			requestFailed = true;
+		} catch (ClientProtocolException e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogError(e, "Unsupported protocol. Probably not a resource: " + url);
+			requestFailed = true;
+		} catch (IOException e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogError(e, "IOException for URL: " + url);
+			requestFailed = true;
+		} catch (TimeoutException e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogWarn(e, "Time limit exceeded for URL: " + url);
+			requestFailed = true;
+		} catch (Exception e) {
+			// Set proper message and log it.
+			failureReason = getReasonAndLogError(e, "Exception for URL: " + url);
+			requestFailed = true;
+		}
+		resourceFetch.settle(webResponse, failureReason, requestFailed);
+	}
+
+	private String getReasonAndLogWarn(Exception e, String msg) {
+		LOGGER.warn(msg);
+		LOGGER.debug(e.getMessage(), e);
+		return getReason(e, msg);
+	}
+
+	private String getReasonAndLogError(Exception e, String msg) {
+		LOGGER.error(msg);
+		return getReason(e, msg);
+	}
+
+	private String getReason(Exception e, String alternativeMsg){
+		String msg = e.getMessage();
+		if(msg != null){
+			return msg;
+		}
+		else{
+			Throwable cause = e.getCause();
+			if(cause != null && cause.getMessage() != null){
+				return cause.getMessage();
+			}
+			else{
+				return alternativeMsg;
+			}
+		}
+	}
+}
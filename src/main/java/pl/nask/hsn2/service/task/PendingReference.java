@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.task;
+
+import java.util.concurrent.Future;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.task.ObjectTreeNode;
+import pl.nask.hsn2.utils.AsyncDataStore;
+
+/**
+ * Reference attribute which value is being saved in data store asynchronously. It is added to the node when the node
+ * is prepared for saving.
+ */
+public class PendingReference {
+	private final String name;
+	private final Future<Long> referenceId;
+
+	public PendingReference(String name, Future<Long> referenceId) {
+		this.name = name;
+		this.referenceId = referenceId;
+	}
+
+	public final String getName() {
+		return name;
+	}
+
+	final void resolve(ObjectTreeNode node) throws StorageException {
+		resolved(node, AsyncDataStore.get(referenceId));
+	}
+
+	/**
+	 * Called on the flushing thread when the write is done. Subclasses may add other attributes known after the write.
+	 */
+	protected void resolved(ObjectTreeNode node, long referenceId) {
+		node.addRefAttribute(name, referenceId);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download budget of a whole task: bytes of a single response and of all responses of the task. Bytes are granted
+ * while a body is read, so reading stops as soon as either limit is reached.
+ */
+public class TaskByteBudget {
+	private final long responseLimit;
+	private final long taskLimit;
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * @param responseLimit Bytes of a single response body, values lower than 1 mean no limit.
+	 * @param taskLimit Bytes of all response bodies of the task, values lower than 1 mean no limit.
+	 */
+	public TaskByteBudget(long responseLimit, long taskLimit) {
+		this.responseLimit = responseLimit;
+		this.taskLimit = taskLimit;
+	}
+
+	public static TaskByteBudget unlimited() {
+		return new TaskByteBudget(0, 0);
+	}
+
+	/**
+	 * Grants bytes to be read for a response.
+	 *
+	 * @param received Bytes of the response read so far.
+	 * @param requested Bytes which are about to be read.
+	 * @return Bytes which may be read, lower than requested if a limit has been reached.
+	 */
+	public final int grant(long received, int requested) {
+		int allowed = requested;
+		if (responseLimit > 0) {
+			allowed = (int) Math.max(Math.min(allowed, responseLimit - received), 0);
+		}
+		if (taskLimit <= 0) {
+			used.addAndGet(allowed);
+			return allowed;
+		}
+		while (true) {
+			long current = used.get();
+			int granted = (int) Math.max(Math.min(allowed, taskLimit - current), 0);
+			if (used.compareAndSet(current, current + granted)) {
+				return granted;
+			}
+		}
+	}
+
+	public final boolean isExhausted() {
+		return taskLimit > 0 && used.get() >= taskLimit;
+	}
+
+	/**
+	 * @return Bytes of response bodies read by the task.
+	 */
+	public final long getUsed() {
+		return used.get();
+	}
+}
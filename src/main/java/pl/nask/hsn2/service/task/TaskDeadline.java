@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of a whole task. Every blocking step takes the lower of its own timeout and the time left.
+ */
+public class TaskDeadline {
+	private final long deadlineNanos;
+	private final boolean unlimited;
+
+	/**
+	 * @param budgetMillis Time budget, values lower than 1 mean no limit.
+	 */
+	public TaskDeadline(long budgetMillis) {
+		unlimited = budgetMillis <= 0;
+		deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(budgetMillis, 0));
+	}
+
+	public static TaskDeadline unlimited() {
+		return new TaskDeadline(0);
+	}
+
+	public final boolean isUnlimited() {
+		return unlimited;
+	}
+
+	/**
+	 * @return Milliseconds left, 0 if expired or Long.MAX_VALUE if there is no limit.
+	 */
+	public final long remaining() {
+		if (unlimited) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()), 0);
+	}
+
+	public final boolean isExpired() {
+		return remaining() == 0;
+	}
+
+	/**
+	 * Limits given timeout to the time left. Result is always positive, as 0 means "no limit" for most of the
+	 * blocking calls, so callers should check {@link #isExpired()} first.
+	 *
+	 * @param timeoutMillis Timeout of a single step, values lower than 1 mean no limit.
+	 * @return Timeout to be used for the step, or 0 if neither the step nor the task is limited.
+	 */
+	public final int limit(int timeoutMillis) {
+		if (unlimited) {
+			return Math.max(timeoutMillis, 0);
+		}
+		long limited = remaining();
+		if (timeoutMillis > 0) {
+			limited = Math.min(limited, timeoutMillis);
+		}
+		return (int) Math.max(Math.min(limited, Integer.MAX_VALUE), 1);
+	}
+}
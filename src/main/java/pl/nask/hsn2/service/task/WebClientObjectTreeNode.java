@@ -19,21 +19,16 @@
 
 package pl.nask.hsn2.service.task;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.httpclient.ConnectTimeoutException;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.URIException;
-import org.apache.http.client.ClientProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,17 +51,13 @@ import pl.nask.hsn2.service.urlfollower.WebClientOrigin;
 import pl.nask.hsn2.service.urlfollower.WebClientWorker;
 import pl.nask.hsn2.task.ObjectTreeNode;
 import pl.nask.hsn2.utils.Counter;
-import pl.nask.hsn2.utils.DataStoreHelper;
+import pl.nask.hsn2.utils.DataStoreBatch;
 import pl.nask.hsn2.utils.WebClientDataStoreHelper;
 import pl.nask.hsn2.wrappers.FailedRequestWrapper;
 import pl.nask.hsn2.wrappers.FileWrapper;
 import pl.nask.hsn2.wrappers.JSContextWrapper;
 import pl.nask.hsn2.wrappers.RequestWrapper;
 
-import com.gargoylesoftware.htmlunit.Page;
-import com.gargoylesoftware.htmlunit.WebResponse;
-import com.gargoylesoftware.htmlunit.util.UrlUtils;
-
 public class WebClientObjectTreeNode extends ObjectTreeNode {
 	private static final Logger LOGGER = LoggerFactory.getLogger(WebClientObjectTreeNode.class);
 
@@ -75,6 +66,7 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
 	private ServiceParameters params;
 
 	private WebClientWorker webClientWorker;
+	private final List<PendingReference> pendingReferences = new ArrayList<PendingReference>();
 
 	public WebClientObjectTreeNode(long objectDataId) {
 		super(objectDataId);
@@ -124,14 +116,62 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
 		return pageLinks;
 	}
 
+	/**
+	 * Adds reference attribute which value is being saved asynchronously, see {@link PendingReference}.
+	 */
+	public final void addPendingReference(PendingReference reference) {
+		pendingReferences.add(reference);
+	}
+
+	/**
+	 * Waits for asynchronous writes of the node and adds their references. All writes are waited for before the first
+	 * failure is thrown.
+	 */
+	private void resolvePendingReferences() throws StorageException {
+		StorageException failure = null;
+		for (PendingReference reference : pendingReferences) {
+			try {
+				reference.resolve(this);
+			} catch (StorageException e) {
+				LOGGER.warn("Couldn't save {} in data store", reference.getName());
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		pendingReferences.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Lists of the node (embedded files, failed requests, JS contexts) are saved in data store in one batch, after the
+	 * content of embedded files has been saved in another one. References saved asynchronously while the page was
+	 * processed are resolved first.
+	 */
 	@Override
 	protected final void prepareForSave(ServiceConnector connector, long jobId) throws StorageException, ResourceException, RequiredParameterMissingException {
-		if (pageLinks != null) {
-			handleOutgoingLinks();
-			handleEmbeddedFiles(connector, jobId);
+		resolvePendingReferences();
+		DataStoreBatch lists = new DataStoreBatch(connector, jobId);
+		List<String> listAttributes = new ArrayList<String>();
+		long[] referenceIds;
+		try {
+			if (pageLinks != null) {
+				handleOutgoingLinks();
+				handleEmbeddedFiles(connector, jobId, lists, listAttributes);
+			}
+			if (params != null && params.isSaveJsContext()){
+				handleJsContextSaving(lists, listAttributes);
+			}
+			referenceIds = lists.flush();
+		} finally {
+			// buffers of lists serialized before a failure
+			lists.discard();
 		}
-		if (params != null && params.isSaveJsContext()){
-			handleJsContextSaving(connector, jobId);
+		for (int i = 0; i < referenceIds.length; i++) {
+			addRefAttribute(listAttributes.get(i), referenceIds[i]);
+			LOGGER.debug("Adding reference attribute {} with value={} ", listAttributes.get(i), referenceIds[i]);
 		}
 	}
 
@@ -145,20 +185,35 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
 				// not everything may be mapped to the proper tree nodes, so the root object has to gather all orphans
 				flushChildren(connector, jobId, addedObjects);
 				prepareForSave(connector, jobId);
+				if (webClientWorker != null) {
+					addAttribute("response_cache_hits", webClientWorker.getResponseCacheHits());
+					addAttribute("js_captured_bytes", (int) Math.min(webClientWorker.getJsCapturedBytes(), Integer.MAX_VALUE));
+					addAttribute("js_instructions", (int) Math.min(webClientWorker.getJsInstructionsUsed(), Integer.MAX_VALUE));
+				}
 				updateObject(jobId,connector);
 				saveNewObjects(connector, jobId, addedObjects);
 			} else {
 				super.flush(connector, jobId, addedObjects);
 			}
 		}  finally{
+			WebClientWorker rootWorker = getParent() == null ? webClientWorker : null;
+			if (rootWorker != null) {
+				// whole tree has been flushed, browser won't be used by this task anymore
+				rootWorker.releaseWebClient();
+			}
 			cleanNode();
 			closeStreams();
+			if (rootWorker != null) {
+				// content streams are closed, downloaded files are not needed anymore
+				rootWorker.removeTempFiles();
+			}
 		}
 	}
 
 	@Override
 	public final void cleanNode() {
 		super.cleanNode();
+		pendingReferences.clear();
 		closeStreams();
 		webClientWorker = null;
 	}
@@ -181,25 +236,23 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
 		}
 	}
 
-	private void handleEmbeddedFiles(ServiceConnector connector, long jobId) throws ResourceException, StorageException, RequiredParameterMissingException {
+	private void handleEmbeddedFiles(ServiceConnector connector, long jobId, DataStoreBatch lists, List<String> listAttributes)
+			throws ResourceException, StorageException, RequiredParameterMissingException {
 		openStreamsForEmbeddedResources();
 
 		Set<FailedRequestWrapper> failedRequestWrappers = new HashSet<FailedRequestWrapper>();
-		Set<FileWrapper> imageWrappers = saveResourceData(connector, jobId, pageLinks.getEmbeddedGroup(LinkType.IMAGE), failedRequestWrappers);
-		Set<FileWrapper> objectWrappers = saveResourceData(connector, jobId, pageLinks.getEmbeddedGroup(LinkType.OBJECT), failedRequestWrappers);
-		Set<FileWrapper> multimediaWrappers = saveResourceData(connector, jobId, pageLinks.getEmbeddedGroup(LinkType.MULTIMEDIA), failedRequestWrappers);
-		Set<FileWrapper> otherWrappers = saveResourceData(connector, jobId, pageLinks.getEmbeddedGroup(LinkType.OTHER), failedRequestWrappers);
+		Map<LinkType, Set<FileWrapper>> fileWrappers = saveResourceData(connector, jobId, failedRequestWrappers);
 
-		saveResources(connector, jobId, "image_list", imageWrappers);
-		saveResources(connector, jobId, "multimedia_list", multimediaWrappers);
-		saveResources(connector, jobId, "object_list", objectWrappers);
-		saveResources(connector, jobId, "other_list", otherWrappers);
+		saveResources(connector, jobId, lists, listAttributes, "image_list", fileWrappers.get(LinkType.IMAGE));
+		saveResources(connector, jobId, lists, listAttributes, "multimedia_list", fileWrappers.get(LinkType.MULTIMEDIA));
+		saveResources(connector, jobId, lists, listAttributes, "object_list", fileWrappers.get(LinkType.OBJECT));
+		saveResources(connector, jobId, lists, listAttributes, "other_list", fileWrappers.get(LinkType.OTHER));
 
 		addNewObjectsForEmbeededResourcesWithServerRedirect();
 
 		if (failedRequestWrappers.size() != 0) {
-			long referenceId = WebClientDataStoreHelper.saveFailedRequestsInDataStore(connector, jobId, failedRequestWrappers);
-			addRefAttribute("failed_list", referenceId);
+			lists.add(WebClientDataStoreHelper.serializeFailedRequests(failedRequestWrappers));
+			listAttributes.add("failed_list");
 		}
 	}
 
@@ -224,7 +277,7 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
 		}
 	}
 
-	private void handleJsContextSaving(ServiceConnector connector, long jobId) throws StorageException {
+	private void handleJsContextSaving(DataStoreBatch lists, List<String> listAttributes) {
 		Collection<ScriptElement> sources = null;
 		if (getParent() != null) {
 			Map<String, ScriptElement> sourceByOrigin = webClientWorker.getLaunchedScripts().remove(inputData.getUrlForProcessing());
@@ -241,50 +294,71 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
 			webClientWorker.getLaunchedScripts().clear();
 		}
 
-		if(sources != null && !sources.isEmpty()){
-			List<JSContextWrapper> scriptsWrapper = getJSContextsWrapper(sources);
-			saveJSContexts(connector, jobId, scriptsWrapper);
+		List<JSContextWrapper> scriptsWrapper = sources != null ? getJSContextsWrapper(sources) : null;
+		if (scriptsWrapper != null && !scriptsWrapper.isEmpty()) {
+			lists.add(WebClientDataStoreHelper.serializeJSContexts(scriptsWrapper));
+			listAttributes.add("js_context_list");
 		}
 	}
 
 	private List<JSContextWrapper> getJSContextsWrapper(Collection<ScriptInterceptor.ScriptElement> scripts) {
 		List<JSContextWrapper> ret = new ArrayList<JSContextWrapper>(scripts.size());
 		for (ScriptInterceptor.ScriptElement script : scripts) {
+			if (script.getSource() == null) {
+				// sources not captured
+				continue;
+			}
 			ret.add(new JSContextWrapper(script.getId(), script.getSource(), script.isEval()));
 		}
 		return ret;
 	}
 
-	private void saveJSContexts(ServiceConnector connector, long jobId, List<JSContextWrapper> jsContextWrappers) throws StorageException{
-		if (jsContextWrappers.size() > 0) {
-			long referenceId = WebClientDataStoreHelper.saveJSContextsInDataStore(connector, jobId, jsContextWrappers);
-
-			addRefAttribute("js_context_list", referenceId);
-			LOGGER.debug("Adding reference attribute {} with value={} ", "js_context_list", referenceId);
+	/**
+	 * Saves content of all embedded resources which were downloaded, in one batch.
+	 *
+	 * @return File wrappers of saved resources by link type.
+	 */
+	private Map<LinkType, Set<FileWrapper>> saveResourceData(ServiceConnector connector, long jobId, Set<FailedRequestWrapper> failedRequests)
+			throws RequiredParameterMissingException, StorageException, ResourceException {
+		DataStoreBatch contents = new DataStoreBatch(connector, jobId);
+		List<EmbeddedResource> savedResources = new ArrayList<EmbeddedResource>();
+		List<LinkType> savedTypes = new ArrayList<LinkType>();
+		Map<LinkType, Set<FileWrapper>> objectLists = new EnumMap<LinkType, Set<FileWrapper>>(LinkType.class);
+		for (LinkType linkType : LinkType.values()) {
+			objectLists.put(linkType, new HashSet<FileWrapper>());
+			for (EmbeddedResource embeddedResource : pageLinks.getEmbeddedGroup(linkType)) {
+				if (embeddedResource.isRequestFailed() || embeddedResource.getResponseCode() != HttpStatus.SC_OK) {
+					LOGGER.debug("Adding {} to failed list with message {}", embeddedResource, embeddedResource.getFailureMessage());
+					List<RequestWrapper> requestList = new ArrayList<RequestWrapper>();
+					requestList.add(new RequestWrapper(embeddedResource));
+					failedRequests.add(new FailedRequestWrapper(requestList, embeddedResource.getFailureMessage()));
+				} else {
+					contents.add(embeddedResource.getContentStream());
+					savedResources.add(embeddedResource);
+					savedTypes.add(linkType);
+				}
+			}
 		}
-	}
 
-	private Set<FileWrapper> saveResourceData(ServiceConnector connector, long jobId, Set<EmbeddedResource> embeddedGroup,
-			Set<FailedRequestWrapper> failedRequests) throws RequiredParameterMissingException, StorageException, ResourceException {
-		Set<FileWrapper> objectList = new HashSet<FileWrapper>();
-		for (EmbeddedResource embeddedResource : embeddedGroup) {
+		long[] savedContentIds = contents.flush();
+		int truncated = 0;
+		for (int i = 0; i < savedContentIds.length; i++) {
+			EmbeddedResource embeddedResource = savedResources.get(i);
 			List<RequestWrapper> requestList = new ArrayList<RequestWrapper>();
-			RequestWrapper requestWrapper = new RequestWrapper(embeddedResource);
-			requestList.add(requestWrapper);
-			if (embeddedResource.isRequestFailed() || embeddedResource.getResponseCode() != HttpStatus.SC_OK) {
-				LOGGER.debug("Adding {} to failed list with message {}", embeddedResource, embeddedResource.getFailureMessage());
-				FailedRequestWrapper failedRequestWrapper = new FailedRequestWrapper(requestList, embeddedResource.getFailureMessage());
-				failedRequests.add(failedRequestWrapper);
-			} else {
-				String contentType = embeddedResource.getContentType();
-				InputStream contentStream = embeddedResource.getContentStream();
-				long savedContentId = DataStoreHelper.saveInDataStore(connector, jobId, contentStream);
-				FileWrapper fileWrapper = new FileWrapper(requestList, contentType, savedContentId);
-				processPdfSwfFileContent(embeddedResource.getAbsoluteUrl(), contentType, savedContentId);
-				objectList.add(fileWrapper);
+			requestList.add(new RequestWrapper(embeddedResource));
+			String contentType = embeddedResource.getContentType();
+			FileWrapper fileWrapper = new FileWrapper(requestList, contentType, savedContentIds[i]);
+			processPdfSwfFileContent(embeddedResource.getAbsoluteUrl(), contentType, savedContentIds[i]);
+			objectLists.get(savedTypes.get(i)).add(fileWrapper);
+			if (embeddedResource.isTruncated()) {
+				truncated++;
 			}
 		}
-		return objectList;
+		if (truncated > 0) {
+			// resources cut at the byte budget of the task
+			addAttribute("truncated_resources", truncated);
+		}
+		return objectLists;
 	}
 
 	/**
@@ -316,106 +390,18 @@ public class WebClientObjectTreeNode extends ObjectTreeNode {
     }
 
 	private void openStreamsForEmbeddedResources() {
+		List<EmbeddedResource> resources = new ArrayList<EmbeddedResource>();
 		for (Set<EmbeddedResource> resourcesSet: pageLinks.getEmbeddedResourcesGroups().values()) {
-			for(EmbeddedResource resources :resourcesSet){
-				processSingleResource(resources);
-			}
+			resources.addAll(resourcesSet);
 		}
+		new EmbeddedResourceFetcher(webClientWorker, params, contextHeight()).fetchAll(resources);
 	}
 
-	private void saveResources(ServiceConnector connector, long jobId, String attributeName, Set<FileWrapper> resourceWrappers) throws StorageException, ResourceException {
+	private void saveResources(ServiceConnector connector, long jobId, DataStoreBatch lists, List<String> listAttributes, String attributeName,
+			Set<FileWrapper> resourceWrappers) throws StorageException, ResourceException {
 		if (resourceWrappers.size() != 0) {
-			long referenceId = WebClientDataStoreHelper.saveInDataStore(connector, jobId, resourceWrappers);
-			addRefAttribute(attributeName, referenceId);
-		}
-	}
-
-	private void processSingleResource(EmbeddedResource resource) {
-		boolean requestFailed = resource.isRequestFailed();
-		if (!requestFailed) {
-
-			String failureReason = resource.getFailureMessage();
-			String url = resource.getAbsoluteUrl();
-			WebResponse webResponse = null;
-
-			try {
-				Page page = webClientWorker.getInsecurePage(url);
-				webResponse = page.getWebResponse();
-				int serverRespStatus = webResponse.getStatusCode();
-				int resourceRedirLimit = contextHeight();
-				while (resourceRedirLimit++ < params.getRedirectDepthLimit() && serverRespStatus >= HttpStatus.SC_MULTIPLE_CHOICES
-						&& serverRespStatus < HttpStatus.SC_BAD_REQUEST) {
-					String redirect = webResponse.getResponseHeaderValue("Location");
-					String newUrl = UrlUtils.resolveUrl(url, redirect);
-					LOGGER.debug("Resource '{}' redirected to: {}", url, newUrl);
-					page = webClientWorker.getInsecurePage(newUrl);
-					webResponse = page.getWebResponse();
-					serverRespStatus = webResponse.getStatusCode();
-				}
-
-				// Status message can be used as a failure message.
-				failureReason = webResponse.getStatusMessage();
-			} catch (ConnectTimeoutException e) {
-				// Set proper message and log it.
-				failureReason = getReasonAndLogWarn(e, "Connection timeout for URL: " + url);
-				requestFailed = true;
-			} catch (SocketTimeoutException e) {
-				// Set proper message and log it.
-				failureReason = getReasonAndLogWarn(e, "Socket timeout for URL: " + url);
-				requestFailed = true;
-			} catch (UnknownHostException e) {
-				// Set proper message and log it.
-				failureReason = getReasonAndLogWarn(e, "Unknown host for URL: url");
-				requestFailed = true;
-			} catch (ClientProtocolException e) {
-				// Set proper message and log it.
-				failureReason = getReasonAndLogError(e, "Unsupported protocol. Probably not a resource: " + url);
-				requestFailed = true;
-			} catch (IOException e) {
-				// Set proper message and log it.
-				failureReason = getReasonAndLogError(e, "IOException for URL: " + url);
-				requestFailed = true;
-			} catch (Exception e) {
-				// Set proper message and log it.
-				failureReason = getReasonAndLogError(e, "Exception for URL: " + url);
-				requestFailed = true;
-			} finally {
-				webClientWorker.closeAllWindows();
-				LOGGER.debug("Trying to close all windows for url: {}", url);
-			}
-			if (LOGGER.isDebugEnabled()) {
-				LOGGER.debug("Updating resource:{},[{},{},{}]",
-						new Object[] { resource.getAbsoluteUrl(), webResponse != null ? webResponse.getContentType() : "no response",
-								failureReason, requestFailed });
-			}
-			resource.update(webResponse, failureReason, requestFailed);
-		}
-	}
-
-	private String getReasonAndLogWarn(Exception e, String msg) {
-		LOGGER.warn(msg);
-		LOGGER.debug(e.getMessage(), e);
-		return getReason(e, msg);
-	}
-
-	private String getReasonAndLogError(Exception e, String msg) {
-		LOGGER.error(msg);
-		return getReason(e, msg);
-	}
-
-	private String getReason(Exception e, String alternativeMsg){
-		String msg = e.getMessage();
-		if(msg != null){
-			return msg;
-		}
-		else{
-			Throwable cause = e.getCause();
-			if(cause != null && cause.getMessage() != null){
-				return cause.getMessage();
-			}
-			else{
-				return alternativeMsg;
-			}
+			lists.add(WebClientDataStoreHelper.serializeFiles(connector, jobId, resourceWrappers));
+			listAttributes.add(attributeName);
 		}
 	}
 
@@ -19,9 +19,11 @@
 
 package pl.nask.hsn2.service.task;
 
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,7 +40,10 @@ import pl.nask.hsn2.service.urlfollower.PageLinks;
 import pl.nask.hsn2.service.urlfollower.ScriptInterceptor.ScriptElement;
 import pl.nask.hsn2.service.urlfollower.WebClientWorker;
 import pl.nask.hsn2.task.ObjectTreeNode;
+import pl.nask.hsn2.utils.AsyncDataStore;
+import pl.nask.hsn2.utils.CookieCache;
 import pl.nask.hsn2.utils.Counter;
+import pl.nask.hsn2.utils.DataStoreDedup;
 import pl.nask.hsn2.utils.WebClientDataStoreHelper;
 import pl.nask.hsn2.wrappers.CookieWrapper;
 import pl.nask.hsn2.wrappers.RequestWrapper;
@@ -51,25 +56,70 @@ public class WebClientTaskContext extends TaskContext {
 	private Counter newObjectsCounter = new Counter(Integer.MAX_VALUE);
 	private Map<String, WebClientObjectTreeNode> urlNodeIndex = new HashMap<String, WebClientObjectTreeNode>();
 	private Long cookiesReferenceId;
+	private TaskDeadline deadline = TaskDeadline.unlimited();
+	private TaskByteBudget byteBudget = TaskByteBudget.unlimited();
+	private final AsyncDataStore asyncDataStore;
+	private final CookieCache cookieCache;
 
 	public WebClientTaskContext(long jobId, int reqId, long objectDataId, ServiceConnector connector) {
         super(jobId, reqId, objectDataId, connector, new WebClientObjectTreeNode(objectDataId));
+        asyncDataStore = new AsyncDataStore(connector, jobId);
+        cookieCache = new CookieCache(connector, jobId);
     }
 
     public final long saveInDataStore(RequestWrapper requestWrapper) throws StorageException, ParameterException {
         return WebClientDataStoreHelper.saveInDataStore(connector, jobId, requestWrapper);
     }
 
+    /**
+     * Saves page or file content, identical content saved before in the job is not uploaded again.
+     */
+    public final long saveContentInDataStore(InputStream content) throws StorageException {
+        return DataStoreDedup.saveInDataStore(connector, jobId, content);
+    }
+
+    /**
+     * Saves request off the browsing thread, the reference is added to the current context when it is flushed.
+     */
+    public final void saveInDataStoreAsync(String name, RequestWrapper requestWrapper) {
+        LOGGER.debug("Adding HTTP Request to data store. {}", requestWrapper);
+        addPendingReference(new PendingReference(name, asyncDataStore.save(WebClientDataStoreHelper.serializeRequest(requestWrapper))));
+    }
+
+    /**
+     * Saves content off the browsing thread, like {@link #saveContentInDataStore(InputStream)}. The write takes over
+     * the stream.
+     */
+    public final Future<Long> saveContentInDataStoreAsync(InputStream content) {
+        return asyncDataStore.saveContent(content);
+    }
+
+    public final void addPendingReference(PendingReference reference) {
+        ((WebClientObjectTreeNode) getCurrentContext()).addPendingReference(reference);
+    }
+
+    /**
+     * Waits for all asynchronous writes of the task.
+     */
+    public final void awaitPendingWrites() {
+        asyncDataStore.awaitAll();
+    }
+
     public final Long getCookiesReferenceId() {
     	return cookiesReferenceId;
     }
 
     public final void saveCookiesInDataStore(Set<CookieWrapper> cookieWrappers) throws StorageException {
     	cookiesReferenceId = WebClientDataStoreHelper.saveCookiesInDataStore(connector, jobId, cookieWrappers);
+    	cookieCache.put(cookiesReferenceId, cookieWrappers);
     }
 
+    /**
+     * Cookie lists already read or saved by the task or other tasks of the job are not downloaded again, see
+     * {@link CookieCache}.
+     */
     public final Set<CookieWrapper> getCookiesFromDataStore(long referenceId) throws StorageException {
-    	return WebClientDataStoreHelper.getCookiesFromDataStore(connector, jobId, referenceId);
+    	return cookieCache.get(referenceId);
     }
 
 	public final void setServiceParams(ServiceParameters taskParams) {
@@ -80,6 +130,22 @@ public class WebClientTaskContext extends TaskContext {
 		treeSizeLimit = taskParams.getRedirectTotalLimit() + 1;
 	}
 
+	public final TaskDeadline getDeadline() {
+		return deadline;
+	}
+
+	public final void setDeadline(TaskDeadline deadline) {
+		this.deadline = deadline;
+	}
+
+	public final TaskByteBudget getByteBudget() {
+		return byteBudget;
+	}
+
+	public final void setByteBudget(TaskByteBudget byteBudget) {
+		this.byteBudget = byteBudget;
+	}
+
 	public final void setServiceData(ServiceData data) {
 		inputData = data;
 	}
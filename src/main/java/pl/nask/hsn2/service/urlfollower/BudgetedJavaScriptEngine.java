@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import net.sourceforge.htmlunit.corejs.javascript.Callable;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ContextInspector;
+import net.sourceforge.htmlunit.corejs.javascript.EvaluatorException;
+import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
+import com.gargoylesoftware.htmlunit.javascript.JavaScriptEngine;
+
+/**
+ * JavaScript engine which checks the {@link JsInstructionBudget} of the task using the client whenever Rhino observes
+ * the instruction count (HtmlUnit sets the observer threshold and checks its own timeout there too). The engine uses
+ * the context factory only through {@link #getContextFactory()}, so the factory created by the superclass is replaced.
+ * <p>
+ * The factory also enforces the recursion limit of the task. Rhino runs calls between interpreted functions in one
+ * loop, without any callback, so the limit is given to Rhino as the maximum depth of that loop, and the depth summed
+ * over the nested loops is checked whenever the instruction count is observed. This way recursion is stopped without
+ * a debugger and regardless of how the functions were compiled (e.g. by the Function constructor).
+ */
+final class BudgetedJavaScriptEngine extends JavaScriptEngine {
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOGGER = LoggerFactory.getLogger(BudgetedJavaScriptEngine.class);
+	private final transient BudgetedContextFactory contextFactory;
+
+	BudgetedJavaScriptEngine(WebClient webClient) {
+		super(webClient);
+		contextFactory = new BudgetedContextFactory(webClient);
+	}
+
+	/**
+	 * Replaces the engine of a new client. The replaced engine hasn't run any scripts, its executor is stopped.
+	 */
+	static void install(WebClient webClient) {
+		JavaScriptEngine previous = webClient.getJavaScriptEngine();
+		webClient.setJavaScriptEngine(new BudgetedJavaScriptEngine(webClient));
+		previous.shutdownJavaScriptExecutor();
+	}
+
+	@Override
+	public HtmlUnitContextFactory getContextFactory() {
+		return contextFactory;
+	}
+
+	/**
+	 * @param budget Budget of the task using the client, or null when the client is returned to the pool.
+	 */
+	void setBudget(JsInstructionBudget budget) {
+		contextFactory.budget = budget;
+	}
+
+	/**
+	 * @param limit Recursion limit of the task using the client, negative when there is no limit.
+	 */
+	void setRecursionLimit(int limit) {
+		contextFactory.recursionLimit = limit;
+	}
+
+	private static final class BudgetedContextFactory extends HtmlUnitContextFactory {
+		private static final String SCRIPT_KEY = "hsn2.budgetedScript";
+		private volatile JsInstructionBudget budget;
+		private volatile int recursionLimit = -1;
+
+		private BudgetedContextFactory(WebClient webClient) {
+			super(webClient);
+		}
+
+		@Override
+		protected Object doTopCall(Callable callable, Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			int limit = recursionLimit;
+			cx.setMaximumInterpreterStackDepth(limit > 0 ? limit : limit < 0 ? Integer.MAX_VALUE : 1);
+			JsInstructionBudget taskBudget = budget;
+			if (taskBudget == null) {
+				return super.doTopCall(callable, cx, scope, thisObj, args);
+			}
+			cx.putThreadLocal(SCRIPT_KEY, taskBudget.startScript());
+			try {
+				return super.doTopCall(callable, cx, scope, thisObj, args);
+			} finally {
+				cx.removeThreadLocal(SCRIPT_KEY);
+			}
+		}
+
+		@Override
+		protected void observeInstructionCount(Context cx, int instructionCount) {
+			super.observeInstructionCount(cx, instructionCount);
+			int limit = recursionLimit;
+			if (limit >= 0) {
+				int depth = ContextInspector.getInterpreterDepth(cx);
+				if (depth >= limit) {
+					LOGGER.warn("Interrupting JavaScript execution, stack depth: {}", depth);
+					Context.throwAsScriptRuntimeEx(new EvaluatorException("Recursive JavaScript call attempt(" + depth + ")."));
+				}
+			}
+			JsInstructionBudget.Script script = (JsInstructionBudget.Script) cx.getThreadLocal(SCRIPT_KEY);
+			if (script != null) {
+				script.observe(instructionCount);
+			}
+		}
+	}
+}
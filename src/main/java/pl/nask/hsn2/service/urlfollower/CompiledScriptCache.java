@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ContextAction;
+import net.sourceforge.htmlunit.corejs.javascript.RhinoException;
+import net.sourceforge.htmlunit.corejs.javascript.Script;
+import net.sourceforge.htmlunit.corejs.javascript.debug.DebuggableScript;
+import net.sourceforge.htmlunit.corejs.javascript.debug.Debugger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.ScriptPreProcessor;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.javascript.JavaScriptEngine;
+
+/**
+ * Service-wide cache of compiled external scripts, shared by all tasks and clients. Scripts are keyed by the hash of
+ * the source, the source name and the browser profile, and evicted least recently used first when the estimated size
+ * of the cached scripts exceeds "webclient.scriptCache.size" bytes (default 64 MB, 0 disables the cache). Compiled
+ * scripts do not keep the scope they were compiled in, so they can be executed in any page. The debugger of the
+ * client (i.e. {@link ScriptInterceptor}) gets the same compilation events for a cached script as for a compiled one, so
+ * does the interceptor installed as the script preprocessor.
+ */
+public final class CompiledScriptCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CompiledScriptCache.class);
+	public static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+	/** Estimated bytes per source character: the source kept for the debugger and the bytecode. */
+	private static final int BYTES_PER_CHAR = 4;
+	private static final CompiledScriptCache INSTANCE = new CompiledScriptCache(Long.getLong("webclient.scriptCache.size", DEFAULT_SIZE));
+
+	private final long maxSize;
+	private final Map<String, Entry> scripts = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size;
+
+	private static final class Entry {
+		private final Script script;
+		private final long weight;
+
+		private Entry(Script script, long weight) {
+			this.script = script;
+			this.weight = weight;
+		}
+	}
+
+	static {
+		ServiceMetrics.registerGauge("script.cache.bytes", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return INSTANCE.getSize();
+			}
+		});
+	}
+
+	CompiledScriptCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public static CompiledScriptCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the cached script for the source or compiles it with the engine of the page.
+	 *
+	 * @return Compiled script or null if the source could not be compiled.
+	 */
+	public Script compile(HtmlPage page, String source, String sourceName) {
+		WebClient client = page.getWebClient();
+		JavaScriptEngine engine = client.getJavaScriptEngine();
+		ScriptPreProcessor preProcessor = client.getScriptPreProcessor();
+		// other preprocessors may change the source, interceptor only observes it
+		if (maxSize <= 0 || (preProcessor != null && !(preProcessor instanceof ScriptInterceptor))) {
+			return engine.compile(page, source, sourceName, 1);
+		}
+		String key = DigestUtils.sha256Hex(source) + '\n' + sourceName + '\n' + client.getBrowserVersion().getNickname();
+		Script script = get(key);
+		if (script != null) {
+			ServiceMetrics.increment("script.cache.hit");
+			return notifyCompiled(page, engine, script, source, sourceName, (ScriptInterceptor) preProcessor) ? script : null;
+		}
+		ServiceMetrics.increment("script.cache.miss");
+		script = engine.compile(page, source, sourceName, 1);
+		// scripts which do not give compilation events (not compiled for debugging) are not shared
+		if (script != null && Context.getDebuggableView(script) != null) {
+			put(key, script, (long) source.length() * BYTES_PER_CHAR);
+		}
+		return script;
+	}
+
+	/**
+	 * Gives the debugger of the client the events Rhino gives while compiling the script: one for the script and each
+	 * nested function. An interceptor installed as the preprocessor gets the source instead.
+	 *
+	 * @return False if the debugger or the interceptor stopped the script, as if it failed to compile.
+	 */
+	private static boolean notifyCompiled(final HtmlPage page, JavaScriptEngine engine, Script script, final String source,
+			final String sourceName, final ScriptInterceptor interceptor) {
+		final DebuggableScript debuggable = Context.getDebuggableView(script);
+		try {
+			engine.getContextFactory().call(new ContextAction() {
+				@Override
+				public Object run(Context cx) {
+					if (interceptor != null) {
+						interceptor.preProcess(page, source, sourceName, 1, null);
+					}
+					Debugger debugger = cx.getDebugger();
+					if (debugger != null) {
+						cx.putThreadLocal(JavaScriptEngine.KEY_STARTING_SCOPE, page.getEnclosingWindow().getScriptObject());
+						cx.putThreadLocal(JavaScriptEngine.KEY_STARTING_PAGE, page);
+						synchronized (page) {
+							notifyCompiled(cx, debugger, debuggable, source);
+						}
+					}
+					return null;
+				}
+			});
+			return true;
+		} catch (RhinoException e) {
+			LOGGER.debug("Cached script stopped: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	private static void notifyCompiled(Context cx, Debugger debugger, DebuggableScript script, String source) {
+		debugger.handleCompilationDone(cx, script, source);
+		for (int i = 0; i < script.getFunctionCount(); i++) {
+			notifyCompiled(cx, debugger, script.getFunction(i), source);
+		}
+	}
+
+	synchronized Script get(String key) {
+		Entry entry = scripts.get(key);
+		return entry != null ? entry.script : null;
+	}
+
+	synchronized void put(String key, Script script, long weight) {
+		if (weight > maxSize) {
+			return;
+		}
+		Entry previous = scripts.put(key, new Entry(script, weight));
+		if (previous != null) {
+			size -= previous.weight;
+		}
+		size += weight;
+		Iterator<Entry> eldest = scripts.values().iterator();
+		while (size > maxSize && eldest.hasNext()) {
+			size -= eldest.next().weight;
+			eldest.remove();
+			ServiceMetrics.increment("script.cache.evicted");
+		}
+	}
+
+	synchronized long getSize() {
+		return size;
+	}
+
+	synchronized int getCount() {
+		return scripts.size();
+	}
+}
@@ -45,6 +45,7 @@ public class EmbeddedResource extends Link {
 	private String requestHeader;
 	private String responseHeader;
 	private URL currUrl;
+	private boolean truncated;
 
 	public EmbeddedResource(String baseUrl, String srcAttrValue, LinkType type) throws URISyntaxException {
         super(baseUrl, srcAttrValue);
@@ -78,6 +79,7 @@ public class EmbeddedResource extends Link {
     		requestHeader = webResponse.getWebRequest().getAdditionalHeaders().toString();
     		responseHeader = webResponse.getResponseHeaders().toString();
     		currUrl = webResponse.getWebRequest().getUrl();
+    		truncated = TempFileWebConnection.isTruncated(webResponse);
     	}
     	this.failureMessage = failureMessage;
     	this.requestFailed = requestFailed;
@@ -95,10 +97,20 @@ public class EmbeddedResource extends Link {
         return failureMessage;
     }
 
+    /**
+     * Content kept in a file is a {@link pl.nask.hsn2.utils.FileContentStream}, saved in the data store without copying.
+     */
     public final InputStream getContentStream() {
         return stream;
     }
 
+    /**
+     * @return True if the content was cut at the byte budget of the task.
+     */
+    public final boolean isTruncated() {
+        return truncated;
+    }
+
     public final boolean isRequestFailed(){
     	return requestFailed;
     }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kind of threads used by the worker and fetch pools. Selected with "webclient.executionMode" system property
+ * ("platform" - default, or "virtual"). Virtual threads require Java 21; on older JVMs platform threads are used.
+ */
+public enum ExecutionMode {
+	PLATFORM, VIRTUAL;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionMode.class);
+	private static volatile ExecutionMode current = fromProperty();
+
+	public static ExecutionMode current() {
+		return current;
+	}
+
+	/**
+	 * Switches the mode for pools created from now on. Meant for benchmarks and tests.
+	 */
+	public static void setCurrent(ExecutionMode mode) {
+		current = mode;
+	}
+
+	private static ExecutionMode fromProperty() {
+		String mode = System.getProperty("webclient.executionMode", "platform");
+		try {
+			return valueOf(mode.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn("Unknown execution mode '{}', using platform threads", mode);
+			return PLATFORM;
+		}
+	}
+
+	public final ThreadFactory newThreadFactory(String namePrefix) {
+		if (this == VIRTUAL) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+				return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				LOGGER.warn("Virtual threads not supported by this JVM, using platform threads for {}", namePrefix);
+			}
+		}
+		return new PlatformThreadFactory(namePrefix);
+	}
+
+	private static class PlatformThreadFactory implements ThreadFactory {
+		private final AtomicLong counter = new AtomicLong();
+		private final String namePrefix;
+
+		PlatformThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, namePrefix + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+/**
+ * Service-wide, bounded executor used to fetch pages with a time limit. In virtual mode every fetch gets a virtual
+ * thread of its own and only the number of fetches in progress is limited ("webclient.fetch.virtualLimit").
+ */
+public final class FetchExecutor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FetchExecutor.class);
+	public static final int DEFAULT_THREADS = 32;
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	public static final int DEFAULT_VIRTUAL_LIMIT = 4096;
+	private static final Map<ExecutionMode, FetchExecutor> INSTANCES = new EnumMap<ExecutionMode, FetchExecutor>(ExecutionMode.class);
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadFactory threadFactory;
+	private final Semaphore virtualPermits;
+	private final int virtualLimit;
+
+	static {
+		ServiceMetrics.registerGauge("fetch.queue.depth", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				FetchExecutor fetchExecutor = getInstance();
+				return fetchExecutor.executor != null ? fetchExecutor.executor.getQueue().size() : 0;
+			}
+		});
+		ServiceMetrics.registerGauge("fetch.active", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				FetchExecutor fetchExecutor = getInstance();
+				return fetchExecutor.executor != null ? fetchExecutor.executor.getActiveCount() : fetchExecutor.virtualLimit
+						- fetchExecutor.virtualPermits.availablePermits();
+			}
+		});
+	}
+
+	FetchExecutor(int threads, int queueSize, ExecutionMode mode) {
+		this(threads, queueSize, Integer.getInteger("webclient.fetch.virtualLimit", DEFAULT_VIRTUAL_LIMIT), mode);
+	}
+
+	FetchExecutor(int threads, int queueSize, int virtualLimit, ExecutionMode mode) {
+		threadFactory = mode.newThreadFactory("WebClientFetch-");
+		this.virtualLimit = virtualLimit;
+		if (mode == ExecutionMode.VIRTUAL) {
+			executor = null;
+			virtualPermits = new Semaphore(virtualLimit);
+		} else {
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+					threadFactory);
+			executor.allowCoreThreadTimeOut(true);
+			virtualPermits = null;
+		}
+	}
+
+	/**
+	 * Returns executor for the current execution mode.
+	 */
+	public static synchronized FetchExecutor getInstance() {
+		ExecutionMode mode = ExecutionMode.current();
+		FetchExecutor fetchExecutor = INSTANCES.get(mode);
+		if (fetchExecutor == null) {
+			fetchExecutor = new FetchExecutor(Integer.getInteger("webclient.fetch.threads", DEFAULT_THREADS),
+					Integer.getInteger("webclient.fetch.queue", DEFAULT_QUEUE_SIZE), mode);
+			INSTANCES.put(mode, fetchExecutor);
+		}
+		return fetchExecutor;
+	}
+
+	/**
+	 * Schedules a fetch.
+	 *
+	 * @throws RejectedExecutionException when the queue (virtual mode: limit of fetches) is full.
+	 */
+	public <T> Fetch<T> submit(Callable<T> task) {
+		Fetch<T> fetch = new Fetch<T>(task);
+		if (executor == null) {
+			if (!virtualPermits.tryAcquire()) {
+				ServiceMetrics.increment("fetch.rejected");
+				LOGGER.warn("Fetch rejected, {} fetches in progress", virtualLimit);
+				throw new RejectedExecutionException("Too many fetches in progress");
+			}
+			try {
+				threadFactory.newThread(fetch).start();
+			} catch (RuntimeException e) {
+				virtualPermits.release();
+				throw e;
+			}
+			return fetch;
+		}
+		try {
+			executor.execute(fetch);
+		} catch (RejectedExecutionException e) {
+			ServiceMetrics.increment("fetch.rejected");
+			LOGGER.warn("Fetch rejected, queue is full ({} waiting)", executor.getQueue().size());
+			throw e;
+		}
+		return fetch;
+	}
+
+	/**
+	 * Single fetch. Deadline is counted from the moment the fetch was submitted, so time spent in the queue is
+	 * included.
+	 */
+	public final class Fetch<T> extends FutureTask<T> {
+		private final long submitted = System.currentTimeMillis();
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		private Fetch(Callable<T> callable) {
+			super(callable);
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				if (virtualPermits != null) {
+					virtualPermits.release();
+				}
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * Waits for the result until the deadline (submit time + timeout). Timeout lower than 1 means no limit.
+		 */
+		public T await(long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException {
+			if (timeoutMillis <= 0) {
+				return get();
+			}
+			long remaining = submitted + timeoutMillis - System.currentTimeMillis();
+			try {
+				return get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				ServiceMetrics.increment("fetch.timeout");
+				throw e;
+			}
+		}
+
+		/**
+		 * Cancels the fetch and interrupts its thread if it has already started.
+		 */
+		public void abort() {
+			cancel(true);
+			if (executor != null && executor.remove(this)) {
+				// never started, no thread to wait for
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * Waits for the fetching thread to leave the task, i.e. after it was aborted.
+		 */
+		public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+			return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -23,7 +23,6 @@ import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +36,6 @@ import pl.nask.hsn2.wrappers.CookieWrapper;
  * document) and so on.
  */
 public class HtmlUnitFollower implements UrlFollower {
-	private static AtomicLong procCounter = new AtomicLong();
     private static final Logger LOGGER = LoggerFactory.getLogger(HtmlUnitFollower.class);
     private final Object lock = new Object();
     private final CountDownLatch latch;
@@ -68,9 +66,7 @@ public class HtmlUnitFollower implements UrlFollower {
 		webClientWorker.setContextData(webClientWorker, params, urlForProcessing);
 		LOGGER.debug("Starting processing: {}", urlForProcessing);
 		try {
-			Thread worker = new Thread(webClientWorker, "WebClientWorker-" + procCounter.incrementAndGet());
-			worker.setUncaughtExceptionHandler(new WorkerThreadExceptionHandler(this));
-			worker.start();
+			WorkerPool.Job worker = WorkerPool.getInstance().submit(webClientWorker, new WorkerThreadExceptionHandler(this));
 
 			boolean latchCounterReachedZero;
 			if (params.getProcessingTimeout() > 0) {
@@ -81,11 +77,9 @@ public class HtmlUnitFollower implements UrlFollower {
 			}
 			if (!latchCounterReachedZero) {
 				requestFailed("Task interrupted because time limit exceeded: " + params.getProcessingTimeout());
-				webClientWorker.stopProcessing();
-				webClientWorker.closeAllWindows();
-
-				// Wait for clean WC exit.
-				worker.join();
+				if (!new WorkerWatchdog().stop(webClientWorker, worker)) {
+					LOGGER.error("Worker for {} couldn't be stopped and has been abandoned", urlForProcessing);
+				}
 			}
 		} catch (InterruptedException e) {
 			LOGGER.error("Task has been interrupted", e);
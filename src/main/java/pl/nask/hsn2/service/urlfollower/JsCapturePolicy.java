@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.Locale;
+
+import pl.nask.hsn2.ParameterException;
+
+/**
+ * What is kept of the source of compiled scripts and evals for js_context_list, selected with "js_capture" task
+ * parameter.
+ */
+public enum JsCapturePolicy {
+	/** Sources are not kept, js_context_list is not saved. */
+	OFF,
+	/** Source is cut at "js_capture_limit" characters. */
+	PREFIX,
+	/** Whole source is kept. */
+	FULL;
+
+	public static JsCapturePolicy forName(String name) throws ParameterException {
+		try {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new ParameterException("Unknown js_capture policy: " + name);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+/**
+ * Rhino instructions the scripts of a task may execute: in total ("js_instruction_limit") and in a single top level
+ * call, i.e. a page script, an event handler or a timer ("js_script_instruction_limit"). Zero means no limit. The
+ * budget is checked each time Rhino observes the instruction count, so a script is stopped within a few thousand
+ * instructions after the limit, without stopping the JavaScript executor of the client.
+ */
+public final class JsInstructionBudget {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JsInstructionBudget.class);
+	private final long taskLimit;
+	private final long scriptLimit;
+	private final AtomicLong used = new AtomicLong();
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * Thrown into a script to stop it. It is not a Rhino exception, so the script can not catch it, only its finally
+	 * blocks are executed. HtmlUnit reports it as a script error.
+	 */
+	public static final class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ExceededException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Instructions used by a single top level call.
+	 */
+	final class Script {
+		private final int startedIn = generation.get();
+		private long scriptUsed;
+
+		void observe(int instructions) {
+			scriptUsed += instructions;
+			long taskUsed = used.addAndGet(instructions);
+			if (startedIn != generation.get()) {
+				stop("Script stopped after the page was loaded");
+			} else if (taskLimit > 0 && taskUsed > taskLimit) {
+				stop("JavaScript instruction budget of the task exceeded (" + taskLimit + ")");
+			} else if (scriptLimit > 0 && scriptUsed > scriptLimit) {
+				stop("JavaScript instruction budget of the script exceeded (" + scriptLimit + ")");
+			}
+		}
+
+		private void stop(String reason) {
+			ServiceMetrics.increment("js.budget.stopped");
+			LOGGER.debug("{}, instructions used: {}", reason, scriptUsed);
+			throw new ExceededException(reason);
+		}
+	}
+
+	public JsInstructionBudget(long taskLimit, long scriptLimit) {
+		this.taskLimit = taskLimit;
+		this.scriptLimit = scriptLimit;
+	}
+
+	Script startScript() {
+		return new Script();
+	}
+
+	/**
+	 * Stops all scripts running at the moment on their next check. Scripts started later are not affected.
+	 */
+	public void stopRunningScripts() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * @return Instructions executed by the scripts of the task, counted in steps of the observer threshold.
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.Locale;
+
+import pl.nask.hsn2.ParameterException;
+
+/**
+ * How {@link ScriptInterceptor} observes the scripts of a task, selected with "js_observation" task parameter.
+ */
+public enum JsObservationMode {
+	/**
+	 * Interceptor is the Rhino debugger: scripts are seen after compilation together with their nested functions and
+	 * every function call gets a debug frame.
+	 */
+	FULL,
+	/**
+	 * Interceptor is the script preprocessor of the client: sources are seen before compilation and no debug frames
+	 * are created, so scripts run without per-call and per-line callbacks. Nesting of functions is not checked
+	 * against the recursion limit.
+	 */
+	LIGHT;
+
+	public static JsObservationMode forName(String name) throws ParameterException {
+		try {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new ParameterException("Unknown js_observation mode: " + name);
+		}
+	}
+}
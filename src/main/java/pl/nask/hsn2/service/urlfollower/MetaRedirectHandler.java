@@ -25,6 +25,8 @@ import java.net.URL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pl.nask.hsn2.service.task.TaskDeadline;
+
 import com.gargoylesoftware.htmlunit.HttpMethod;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.RefreshHandler;
@@ -39,10 +41,25 @@ public class MetaRedirectHandler implements RefreshHandler {
 	private int miliSecTimeout;
 	private int refreshCounter = 0;
 	private final int refreshCountLimit;
+	private final TaskDeadline deadline;
+	private final VirtualClock clock;
 
 	public MetaRedirectHandler(int miliSecTimeout, int refreshCountLimit) {
+		this(miliSecTimeout, refreshCountLimit, TaskDeadline.unlimited());
+	}
+
+	public MetaRedirectHandler(int miliSecTimeout, int refreshCountLimit, TaskDeadline deadline) {
+		this(miliSecTimeout, refreshCountLimit, deadline, null);
+	}
+
+	/**
+	 * @param clock Virtual clock to be moved forward instead of waiting for the refresh, null to wait in real time.
+	 */
+	public MetaRedirectHandler(int miliSecTimeout, int refreshCountLimit, TaskDeadline deadline, VirtualClock clock) {
 		this.miliSecTimeout = miliSecTimeout;
 		this.refreshCountLimit = refreshCountLimit;
+		this.deadline = deadline;
+		this.clock = clock;
 	}
 
 	@Override
@@ -57,15 +74,23 @@ public class MetaRedirectHandler implements RefreshHandler {
 				&& HttpMethod.GET == page.getWebResponse().getWebRequest().getHttpMethod()) {
 			LOGGER.debug("Refresh was interrupted: Redirect to itself.");
 		} else {
-			if (miliSecTimeout / ONE_SECOND_IN_MILISECONDS >= seconds) {
+			int timeout = deadline.limit(miliSecTimeout);
+			if (timeout / ONE_SECOND_IN_MILISECONDS >= seconds && !deadline.isExpired()) {
+				final WebWindow window = page.getEnclosingWindow();
 				if (seconds > 0) {
-					try {
-						Thread.sleep(seconds * ONE_SECOND_IN_MILISECONDS_LONG);
-					} catch (final InterruptedException e) {
-						LOGGER.debug("No big deal: Waiting thread was interrupted.", e);
+					if (clock != null && window != null) {
+						long refreshTime = clock.currentTimeMillis() + seconds * ONE_SECOND_IN_MILISECONDS_LONG;
+						// scripts scheduled before the refresh still have to run
+						clock.fastForward(window.getWebClient(), seconds * ONE_SECOND_IN_MILISECONDS_LONG, timeout);
+						clock.advanceTo(refreshTime);
+					} else {
+						try {
+							Thread.sleep(seconds * ONE_SECOND_IN_MILISECONDS_LONG);
+						} catch (final InterruptedException e) {
+							LOGGER.debug("No big deal: Waiting thread was interrupted.", e);
+						}
 					}
 				}
-				final WebWindow window = page.getEnclosingWindow();
 				if (window != null) {
 					final WebClient client = window.getWebClient();
 					client.getPage(window, new WebRequest(url));
@@ -75,7 +100,7 @@ public class MetaRedirectHandler implements RefreshHandler {
 				}
 			} else {
 				LOGGER.debug("Refresh to {} was interrupted: PageTimeout({}) was lower then refresh ({}).",
-						new Object[] { url.toExternalForm(), miliSecTimeout / ONE_SECOND_IN_MILISECONDS, seconds });
+						new Object[] { url.toExternalForm(), timeout / ONE_SECOND_IN_MILISECONDS, seconds });
 			}
 		}
 	}
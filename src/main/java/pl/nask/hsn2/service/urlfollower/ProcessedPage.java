@@ -22,6 +22,8 @@ package pl.nask.hsn2.service.urlfollower;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.io.IOUtils;
@@ -50,6 +52,8 @@ public class ProcessedPage {
 	private boolean fromFrame;
 	private WebWindow webWindow;
 	private String asString  = null;
+	private boolean truncated;
+	private final List<InputStream> contentStreams = new ArrayList<InputStream>();
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ProcessedPage.class);
 
@@ -75,6 +79,7 @@ public class ProcessedPage {
 			actualUrl = page.getUrl();
 			fromFrame = page.getEnclosingWindow() instanceof FrameWindow;
 			webWindow = page.getEnclosingWindow() ;
+			truncated = TempFileWebConnection.isTruncated(response);
 		}
 		this.originalUrl = originalUrl;
 	}
@@ -98,12 +103,20 @@ public class ProcessedPage {
 		}
 	}
 
+	/**
+	 * Returns content of the page. Content kept in a file is returned as {@link pl.nask.hsn2.utils.FileContentStream}, so it can be saved
+	 * in the data store without copying. Streams are closed by {@link #cleanPage()}, which releases pooled buffers of the content.
+	 */
 	public final InputStream getContentAsStream() {
 		if (response == null) {
 			return null;
 		} else {
 			try {
-				return response.getContentAsStream();
+				InputStream stream = response.getContentAsStream();
+				synchronized (contentStreams) {
+					contentStreams.add(stream);
+				}
+				return stream;
 			} catch (IOException e) {
 				LOGGER.error(e.getMessage(), e);
 				return null;
@@ -111,6 +124,29 @@ public class ProcessedPage {
 		}
 	}
 
+	/**
+	 * Returns new stream of the content which is not closed by {@link #cleanPage()}, i.e. for writes which end after the
+	 * page is cleaned. The caller closes the stream.
+	 */
+	public final InputStream getDetachedContentStream() {
+		if (response == null) {
+			return null;
+		}
+		try {
+			return response.getContentAsStream();
+		} catch (IOException e) {
+			LOGGER.error(e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return True if the body was cut at the byte budget of the task while downloading.
+	 */
+	public final boolean isTruncated() {
+		return truncated;
+	}
+
 	public final boolean isHtml() {
 		return page instanceof HtmlPage;
 	}
@@ -149,12 +185,13 @@ public class ProcessedPage {
 
 	public final void cleanPage() {
 		if (response != null) {
-			try {
-				IOUtils.closeQuietly(response.getContentAsStream());
-//				webWindow = null;
-			} catch (IOException e) {
-				LOGGER.error("Error while cleaning page.", e);
+			synchronized (contentStreams) {
+				for (InputStream stream : contentStreams) {
+					IOUtils.closeQuietly(stream);
+				}
+				contentStreams.clear();
 			}
+//			webWindow = null;
 			response = null;
 		}
 	}
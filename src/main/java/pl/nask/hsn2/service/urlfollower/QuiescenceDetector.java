@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.AjaxController;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebWindowEvent;
+import com.gargoylesoftware.htmlunit.WebWindowListener;
+import com.gargoylesoftware.htmlunit.html.DomChangeEvent;
+import com.gargoylesoftware.htmlunit.html.DomChangeListener;
+import com.gargoylesoftware.htmlunit.html.DomElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Ends waiting for background JavaScript once the page has been idle for a given time. Activity is: XHR requests,
+ * elements added to the DOM, new scripts and window content changes. Text and attribute updates (tickers, rotating
+ * banners) are not considered new activity.
+ */
+public class QuiescenceDetector implements WebWindowListener, DomChangeListener {
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOGGER = LoggerFactory.getLogger(QuiescenceDetector.class);
+	private static final long POLL_INTERVAL = 50;
+
+	public enum EndReason {
+		NO_JOBS, IDLE, TIMEOUT;
+
+		public final String getName() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	private final long idleMillis;
+	private final transient VirtualClock clock;
+	private final AtomicLong lastActivity = new AtomicLong();
+	private volatile EndReason endReason = EndReason.NO_JOBS;
+
+	/**
+	 * @param idleMillis Idle time after which waiting ends, values lower than 1 disable the detection.
+	 * @param clock Virtual clock of the task, null in real time mode.
+	 */
+	public QuiescenceDetector(long idleMillis, VirtualClock clock) {
+		this.idleMillis = idleMillis;
+		this.clock = clock;
+	}
+
+	private long now() {
+		return clock != null ? clock.currentTimeMillis() : System.currentTimeMillis();
+	}
+
+	public final void activity(String source) {
+		lastActivity.set(now());
+		LOGGER.trace("Page activity: {}", source);
+	}
+
+	public final EndReason getEndReason() {
+		return endReason;
+	}
+
+	/**
+	 * Waits for background JavaScript like {@link WebClient#waitForBackgroundJavaScript(long)}, but returns as soon as
+	 * the page is idle. In virtual time mode timers are fast-forwarded instead of waited for.
+	 *
+	 * @param budgetMillis Time JavaScript is given, virtual in virtual time mode.
+	 * @param timeoutMillis Real time limit, values lower than 1 mean no limit.
+	 * @return Number of jobs left.
+	 */
+	public final int await(WebClient client, long budgetMillis, long timeoutMillis) {
+		activity("wait started");
+		int left = clock != null ? fastForward(client, budgetMillis, timeoutMillis) : waitInRealTime(client, timeoutMillis);
+		ServiceMetrics.increment("js.wait." + endReason.getName());
+		LOGGER.debug("Waiting for background JavaScript ended: {}, {} jobs left", endReason.getName(), left);
+		return left;
+	}
+
+	private int waitInRealTime(WebClient client, long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			int left = client.waitForBackgroundJavaScript(timeoutMillis);
+			endReason = left == 0 ? EndReason.NO_JOBS : EndReason.TIMEOUT;
+			return left;
+		}
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			long remaining = end - System.currentTimeMillis();
+			int left = client.waitForBackgroundJavaScript(Math.max(Math.min(POLL_INTERVAL, remaining), 1));
+			if (left == 0) {
+				endReason = EndReason.NO_JOBS;
+				return left;
+			}
+			if (isIdle()) {
+				endReason = EndReason.IDLE;
+				return left;
+			}
+			if (System.currentTimeMillis() >= end || Thread.currentThread().isInterrupted()) {
+				endReason = EndReason.TIMEOUT;
+				return left;
+			}
+		}
+	}
+
+	private int fastForward(WebClient client, long budgetMillis, long timeoutMillis) {
+		long virtualEnd = clock.currentTimeMillis() + budgetMillis;
+		long end = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		while (true) {
+			long activity = lastActivity.get();
+			long idleAt = idleMillis > 0 ? activity + idleMillis : Long.MAX_VALUE;
+			long stop = Math.min(idleAt, virtualEnd);
+			long remaining = end == Long.MAX_VALUE ? 0 : Math.max(end - System.currentTimeMillis(), 1);
+			int left = clock.fastForward(client, stop - clock.currentTimeMillis(), remaining);
+			if (left == 0) {
+				endReason = EndReason.NO_JOBS;
+				return left;
+			}
+			if (System.currentTimeMillis() >= end || Thread.currentThread().isInterrupted()) {
+				endReason = EndReason.TIMEOUT;
+				return left;
+			}
+			// next job is past the stop point, unless something happened in the meantime
+			if (lastActivity.get() == activity) {
+				endReason = idleAt <= virtualEnd ? EndReason.IDLE : EndReason.TIMEOUT;
+				return left;
+			}
+		}
+	}
+
+	private boolean isIdle() {
+		return idleMillis > 0 && now() - lastActivity.get() >= idleMillis;
+	}
+
+	/**
+	 * Returns AJAX controller reporting XHR requests as activity.
+	 */
+	public final AjaxController newAjaxController() {
+		return new AjaxController() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean processSynchron(HtmlPage page, WebRequest request, boolean async) {
+				activity("XHR " + request.getUrl());
+				return super.processSynchron(page, request, async);
+			}
+		};
+	}
+
+	@Override
+	public final void webWindowOpened(WebWindowEvent event) {
+		activity("window opened");
+	}
+
+	@Override
+	public final void webWindowContentChanged(WebWindowEvent event) {
+		activity("window content changed");
+		if (event.getNewPage() instanceof HtmlPage) {
+			((HtmlPage) event.getNewPage()).addDomChangeListener(this);
+		}
+	}
+
+	@Override
+	public final void webWindowClosed(WebWindowEvent event) {
+		activity("window closed");
+	}
+
+	@Override
+	public final void nodeAdded(DomChangeEvent event) {
+		if (event.getChangedNode() instanceof DomElement) {
+			activity("element added");
+		}
+	}
+
+	@Override
+	public final void nodeDeleted(DomChangeEvent event) {
+		// removing content is not considered new activity
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import pl.nask.hsn2.service.task.TaskByteBudget;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Innermost connection of a task, which sends requests of parallel resource fetches through HTTP connections of their
+ * own. {@link com.gargoylesoftware.htmlunit.HttpWebConnection} sends all requests with a single HttpContext (target
+ * host, cookie origin, auth state) and reconfigures its HttpClient for each of them, so it may be used by one thread
+ * at a time only. Each running fetch gets a connection from an idle list, requests of other threads go through the
+ * connection of the client. Connections share the cookie manager of the client.
+ */
+final class ResourceConnections extends WebConnectionWrapper {
+	private final WebClient webClient;
+	private final TaskTempDir tempDir;
+	private final TaskByteBudget byteBudget;
+	private final ThreadLocal<WebConnection> bound = new ThreadLocal<WebConnection>();
+	private final Deque<TempFileWebConnection> idle = new ArrayDeque<TempFileWebConnection>();
+	private final List<TempFileWebConnection> created = new ArrayList<TempFileWebConnection>();
+	private boolean closed;
+
+	ResourceConnections(WebClient webClient, WebConnection clientConnection, TaskTempDir tempDir, TaskByteBudget byteBudget) {
+		super(clientConnection);
+		this.webClient = webClient;
+		this.tempDir = tempDir;
+		this.byteBudget = byteBudget;
+	}
+
+	@Override
+	public WebResponse getResponse(WebRequest request) throws IOException {
+		WebConnection connection = bound.get();
+		return connection != null ? connection.getResponse(request) : super.getResponse(request);
+	}
+
+	/**
+	 * Loads the response with the client, sending the request through a connection used by no other thread.
+	 */
+	WebResponse load(WebRequest request) throws IOException {
+		TempFileWebConnection connection = acquire();
+		bound.set(connection);
+		try {
+			return webClient.loadWebResponse(request);
+		} finally {
+			bound.remove();
+			release(connection);
+		}
+	}
+
+	private synchronized TempFileWebConnection acquire() throws IOException {
+		if (closed) {
+			throw new IOException("Connections of the task already closed");
+		}
+		TempFileWebConnection connection = idle.pollFirst();
+		if (connection == null) {
+			connection = new TempFileWebConnection(webClient);
+			connection.setTempDir(tempDir);
+			connection.setByteBudget(byteBudget);
+			created.add(connection);
+		}
+		return connection;
+	}
+
+	private synchronized void release(TempFileWebConnection connection) {
+		if (!closed) {
+			idle.addFirst(connection);
+		}
+	}
+
+	/**
+	 * Shuts down connections of the fetches, a thread blocked on their socket I/O gets an exception. The connection of
+	 * the client is not affected.
+	 */
+	synchronized void shutdown() {
+		closed = true;
+		idle.clear();
+		for (TempFileWebConnection connection : created) {
+			connection.shutdown();
+		}
+		created.clear();
+	}
+}
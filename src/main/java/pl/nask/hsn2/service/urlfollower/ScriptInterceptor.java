@@ -18,8 +18,10 @@
  */
 package pl.nask.hsn2.service.urlfollower;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sourceforge.htmlunit.corejs.javascript.Context;
 import net.sourceforge.htmlunit.corejs.javascript.ContextInspector;
@@ -32,34 +34,59 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pl.nask.hsn2.service.ServiceParameters;
+import pl.nask.hsn2.utils.ServiceMetrics;
 
+import com.gargoylesoftware.htmlunit.ScriptPreProcessor;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
-public class ScriptInterceptor implements Debugger {
+/**
+ * Collects sources of the scripts compiled in the pages of a task and stops recursive ones. Installed as the Rhino
+ * debugger or as the script preprocessor of the client, depending on {@link JsObservationMode}.
+ */
+public class ScriptInterceptor implements Debugger, ScriptPreProcessor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ScriptInterceptor.class);
     private final int jsRecursionLimit;
+    private final JsCapturePolicy capturePolicy;
+    private final int captureLimit;
+    private final AtomicLong capturedBytes = new AtomicLong();
+    private volatile ScriptSourceLog sourceLog;
     private final Map<String, Map<String, ScriptElement>> scriptsByOrigin = new ConcurrentHashMap<String, Map<String, ScriptElement>>();
     private int scriptId = 0;
 	private volatile boolean process = true;
+	private volatile QuiescenceDetector quiescenceDetector;
 
     public ScriptInterceptor(ServiceParameters taskParams) {
         jsRecursionLimit = taskParams.getJsRecursionLimit();
+        capturePolicy = taskParams.getJsCapturePolicy();
+        captureLimit = taskParams.getJsCaptureLimit();
     }
 
     public ScriptInterceptor() {
     	jsRecursionLimit = ServiceParameters.JS_RECURSION_LIMIT;
+    	capturePolicy = JsCapturePolicy.FULL;
+    	captureLimit = ServiceParameters.JS_CAPTURE_LIMIT;
     }
 
     public static class ScriptElement {
 
         private final int id;
         private final String source;
+        private final ScriptSourceLog.Entry logEntry;
         private final boolean isEval;
 
         public ScriptElement(int id, String source, boolean eval) {
             this.id = id;
             this.source = source;
+            logEntry = null;
+            isEval = eval;
+        }
+
+        ScriptElement(int id, ScriptSourceLog.Entry logEntry, boolean eval) {
+            this.id = id;
+            source = null;
+            this.logEntry = logEntry;
             isEval = eval;
         }
 
@@ -67,7 +94,18 @@ public class ScriptInterceptor implements Debugger {
             return id;
         }
 
+        /**
+         * @return Source kept according to the capture policy, null with {@link JsCapturePolicy#OFF}.
+         */
         public final String getSource() {
+            if (logEntry != null) {
+                try {
+                    return logEntry.read();
+                } catch (IOException e) {
+                    LOGGER.warn("Can not read script source: {}", e.getMessage());
+                    return null;
+                }
+            }
             return source;
         }
 
@@ -77,21 +115,51 @@ public class ScriptInterceptor implements Debugger {
 
         @Override
         public final String toString() {
-            return "ScriptElement[id=" + id + ", isEval=" + isEval + ", source=" + source + "]";
+            return "ScriptElement[id=" + id + ", isEval=" + isEval + ", source=" + (logEntry != null ? "<log>" : source) + "]";
         }
     }
 
     @Override
     public final void handleCompilationDone(Context context, DebuggableScript script, String source) {
-    	if ( !process) {
-    		LOGGER.debug("Processing disabled, no more scripts will collected");
-    		EvaluatorException er = new EvaluatorException("JavaScript processing is stopped.source won't be processed:"+script.getSourceName());
-    		Context.throwAsScriptRuntimeEx(er);
-    		return;
-    	}
-
+        String srcName = script.getSourceName();
+        stopIfDisabled(srcName);
         String origin = getOriginForScript(context);
+        addScript(origin, srcName, source, script.isGeneratedScript());
+        checkRecursion(context, script, srcName, origin);
+    }
 
+    /**
+     * Observes the source before it is compiled, used instead of {@link #handleCompilationDone} in
+     * {@link JsObservationMode#LIGHT}. The source is not changed.
+     */
+    @Override
+    public final String preProcess(HtmlPage htmlPage, String sourceCode, String sourceName, int lineNumber, HtmlElement htmlElement) {
+        if (htmlPage == null || VirtualClock.SOURCE_NAME.equals(sourceName)) {
+            return sourceCode;
+        }
+        stopIfDisabled(sourceName);
+        String origin = htmlPage.getUrl().toString();
+        addScript(origin, sourceName, sourceCode, isGenerated(sourceName));
+        checkRecursion(Context.getCurrentContext(), null, sourceName, origin);
+        return sourceCode;
+    }
+
+    /**
+     * Source names given by Rhino to code compiled by eval() and Function constructor.
+     */
+    static boolean isGenerated(String sourceName) {
+        return sourceName != null && (sourceName.endsWith("(eval)") || sourceName.endsWith("(Function)"));
+    }
+
+    private void stopIfDisabled(String srcName) {
+        if (!process) {
+            LOGGER.debug("Processing disabled, no more scripts will collected");
+            EvaluatorException er = new EvaluatorException("JavaScript processing is stopped.source won't be processed:" + srcName);
+            Context.throwAsScriptRuntimeEx(er);
+        }
+    }
+
+    private void addScript(String origin, String srcName, String source, boolean eval) {
         Map<String, ScriptElement> scriptsFromOrgin = null;
         if (scriptsByOrigin.containsKey(origin)) {
             scriptsFromOrgin = scriptsByOrigin.get(origin);
@@ -100,18 +168,25 @@ public class ScriptInterceptor implements Debugger {
             scriptsByOrigin.put(origin, scriptsFromOrgin);
         }
 
-        String srcName = script.getSourceName();
-        ScriptElement scriptElement = new ScriptElement(scriptId++, source, script.isGeneratedScript());
         if (!scriptsFromOrgin.containsKey(srcName)) {
-            scriptsFromOrgin.put(srcName, scriptElement);
+            scriptsFromOrgin.put(srcName, newScriptElement(capture(source), eval));
             LOGGER.debug("Adding new script: {}", srcName);
+            if (quiescenceDetector != null) {
+                quiescenceDetector.activity("new script");
+            }
         } else {
         	LOGGER.debug("Sources from {} contain {} already!,", new Object[]{origin, srcName});
         }
+    }
 
+    /**
+     * @param script Compiled script to check nesting of its functions, or null if it is not compiled yet.
+     */
+    private void checkRecursion(Context context, DebuggableScript script, String srcName, String origin) {
         if (jsRecursionLimit >= 0) {
-            int depth = ContextInspector.getDepth(context);
-            if (depth >= jsRecursionLimit || checkScriptDepth(script)) {
+            // without a debugger activations are created only for some functions, interpreter frames are counted instead
+            int depth = script != null ? ContextInspector.getDepth(context) : ContextInspector.getInterpreterDepth(context);
+            if (depth >= jsRecursionLimit || (script != null && checkScriptDepth(script))) {
                 EvaluatorException er = new EvaluatorException("Recursive JavaScript call attempt(" + depth + ").", srcName, -1);
                 LOGGER.warn("Interrupting JavaScript execution:{}, stack depth: {}, {}", new Object[]{srcName, depth, origin});
                 Context.throwAsScriptRuntimeEx(er);
@@ -119,6 +194,74 @@ public class ScriptInterceptor implements Debugger {
         }
     }
 
+    /**
+     * Captured text is kept in the source log of the task if there is one.
+     */
+    private ScriptElement newScriptElement(String captured, boolean eval) {
+        int id = scriptId++;
+        ScriptSourceLog log = sourceLog;
+        if (log != null && captured != null) {
+            try {
+                return new ScriptElement(id, log.append(captured), eval);
+            } catch (IOException e) {
+                LOGGER.warn("Can not write script source to log, keeping it in memory: {}", e.getMessage());
+            }
+        }
+        return new ScriptElement(id, captured, eval);
+    }
+
+    /**
+     * @param sourceLog Log of the task to keep captured sources in, or null to keep them in memory.
+     */
+    final void setSourceLog(ScriptSourceLog sourceLog) {
+        this.sourceLog = sourceLog;
+    }
+
+    /**
+     * @return Part of the source kept according to the capture policy.
+     */
+    final String capture(String source) {
+        String captured;
+        switch (capturePolicy) {
+        case OFF:
+            return null;
+        case PREFIX:
+            captured = source.length() > captureLimit ? source.substring(0, captureLimit) : source;
+            break;
+        default:
+            captured = source;
+        }
+        long bytes = utf8Length(captured);
+        capturedBytes.addAndGet(bytes);
+        ServiceMetrics.add("js.captured.bytes", bytes);
+        return captured;
+    }
+
+    static long utf8Length(CharSequence chars) {
+        long length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return UTF-8 bytes of script sources kept by the task.
+     */
+    public final long getCapturedBytes() {
+        return capturedBytes.get();
+    }
+
     private String getOriginForScript(Context context){
     	HtmlPage page = (HtmlPage) context.getThreadLocal("startingPage");
         return page.getUrl().toString();
@@ -137,6 +280,10 @@ public class ScriptInterceptor implements Debugger {
 		process  = false;
 	}
 
+	public final void setQuiescenceDetector(QuiescenceDetector quiescenceDetector) {
+		this.quiescenceDetector = quiescenceDetector;
+	}
+
 	private boolean checkScriptDepth(DebuggableScript script){
 		DebuggableScript parent = script.getParent();
 		int i = 0;
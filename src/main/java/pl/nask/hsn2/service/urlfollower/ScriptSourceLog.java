@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+/**
+ * Append-only file with captured script sources of a task, kept in the task temp directory. Each distinct source is
+ * written once; scripts with the same source (i.e. a library loaded by many frames) share its entry. Sources are read
+ * back with positional reads when the JS context list is built, so the heap holds only the entries until then.
+ */
+final class ScriptSourceLog implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ScriptSourceLog.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final TaskTempDir tempDir;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private File file;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * Position of a source in the log.
+	 */
+	static final class Entry {
+		private final ScriptSourceLog log;
+		private final long offset;
+		private final int length;
+
+		private Entry(ScriptSourceLog log, long offset, int length) {
+			this.log = log;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		String read() throws IOException {
+			return log.read(this);
+		}
+	}
+
+	ScriptSourceLog(TaskTempDir tempDir) {
+		this.tempDir = tempDir;
+		tempDir.register(this);
+	}
+
+	/**
+	 * Writes the source unless the same source is in the log already.
+	 */
+	synchronized Entry append(String source) throws IOException {
+		byte[] bytes = source.getBytes(UTF8);
+		String hash = DigestUtils.sha256Hex(bytes);
+		Entry entry = entries.get(hash);
+		if (entry != null) {
+			ServiceMetrics.increment("js.spill.dedup");
+			return entry;
+		}
+		if (channel == null) {
+			file = tempDir.createFile("js-sources");
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, size + buffer.position());
+		}
+		entry = new Entry(this, size, bytes.length);
+		size += bytes.length;
+		entries.put(hash, entry);
+		tempDir.written(file);
+		ServiceMetrics.add("js.spill.bytes", bytes.length);
+		return entry;
+	}
+
+	private synchronized String read(Entry entry) throws IOException {
+		if (channel == null) {
+			throw new IOException("Script source log closed");
+		}
+		// every entry is read once, when the JS context list is built, so nothing is mapped or buffered
+		ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+				throw new EOFException("Script source log truncated");
+			}
+		}
+		buffer.flip();
+		return UTF8.decode(buffer).toString();
+	}
+
+	/**
+	 * @return Number of distinct sources in the log.
+	 */
+	int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.debug("Can not close script source log", e);
+			}
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,771 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.CookieManager;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.UrlUtils;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Service-wide HTTP response cache, so resources reused by many pages (script libraries, exploit kit components) are
+ * not downloaded by every task. Responses are cached as allowed by Cache-Control/Expires, never longer than
+ * "webclient.sharedCache.maxTtl" seconds, and revalidated with ETag/Last-Modified when stale. Recently used
+ * responses are kept in memory, all of them in "webclient.sharedCache.dir" together with an index, so the disk tier
+ * survives service restarts. Disabled by default, as a response shared between tasks may differ from what the site
+ * would send to a task of its own; enabled with "webclient.sharedCache.enabled=true".
+ */
+public final class SharedResponseCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SharedResponseCache.class);
+	public static final long DEFAULT_MEMORY_SIZE = 32 * 1024 * 1024;
+	public static final long DEFAULT_DISK_SIZE = 256 * 1024 * 1024;
+	public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MAX_TTL = 3600;
+	private static final String INDEX_FILE = "index";
+	private static final int INDEX_VERSION = 1;
+	private static final int INDEX_SAVE_INTERVAL = 100;
+	private static final int MAX_KEY_LENGTH = 8192;
+	private static final int NOT_MODIFIED = 304;
+	private static final int[] CACHEABLE_STATUS = { 200, 203, 301, 404, 410 };
+	private static final long HEURISTIC_FRACTION = 10;
+	private static SharedResponseCache instance;
+
+	private final File dir;
+	private final long memorySize;
+	private final long diskSize;
+	private final int maxEntrySize;
+	private final long maxTtlMillis;
+	private final boolean excludeRoot;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Object indexLock = new Object();
+	private long memoryUsed;
+	private long diskUsed;
+	private int unsavedChanges;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param dir Directory of the disk tier, null if there is no disk tier.
+	 * @param maxTtlSeconds Maximum time a response is used without revalidation.
+	 * @param excludeRoot Whether URL analyzed by a task is always downloaded.
+	 */
+	SharedResponseCache(File dir, long memorySize, long diskSize, int maxEntrySize, int maxTtlSeconds, boolean excludeRoot) {
+		this.dir = dir;
+		this.memorySize = memorySize;
+		this.diskSize = dir != null ? diskSize : 0;
+		this.maxEntrySize = maxEntrySize;
+		this.maxTtlMillis = maxTtlSeconds * 1000L;
+		this.excludeRoot = excludeRoot;
+		if (dir != null) {
+			loadIndex();
+		}
+		ServiceMetrics.registerGauge("response.cache.shared.hit.ratio", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getHitRatio();
+			}
+		});
+		ServiceMetrics.registerGauge("response.cache.shared.memory.bytes", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getMemoryUsed();
+			}
+		});
+		ServiceMetrics.registerGauge("response.cache.shared.disk.bytes", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getDiskUsed();
+			}
+		});
+	}
+
+	/**
+	 * Returns the cache configured with system properties or null if it is not enabled ("webclient.sharedCache.enabled").
+	 */
+	public static synchronized SharedResponseCache getInstance() {
+		if (instance == null && Boolean.parseBoolean(System.getProperty("webclient.sharedCache.enabled", "false"))) {
+			long diskSize = Long.getLong("webclient.sharedCache.diskSize", DEFAULT_DISK_SIZE);
+			File dir = null;
+			if (diskSize > 0) {
+				dir = new File(System.getProperty("webclient.sharedCache.dir", new File(System.getProperty("java.io.tmpdir"),
+						"hsn2-webclient-cache").getPath()));
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					LOGGER.warn("Could not create shared cache directory {}, using memory only", dir);
+					dir = null;
+				}
+			}
+			instance = new SharedResponseCache(dir, Long.getLong("webclient.sharedCache.memorySize", DEFAULT_MEMORY_SIZE), diskSize,
+					Integer.getInteger("webclient.sharedCache.maxEntrySize", DEFAULT_MAX_ENTRY_SIZE), Integer.getInteger(
+							"webclient.sharedCache.maxTtl", DEFAULT_MAX_TTL), Boolean.parseBoolean(System.getProperty(
+							"webclient.sharedCache.excludeRoot", "true")));
+			LOGGER.info("Shared response cache: dir={}, memory={}, disk={}", new Object[] { dir, instance.memorySize, instance.diskSize });
+		}
+		return instance;
+	}
+
+	/**
+	 * Wraps connection of a task with the shared cache, if it is enabled.
+	 *
+	 * @param rootUrl URL analyzed by the task.
+	 * @param cookieManager Cookies of the task, requests sending them are not cached.
+	 */
+	public static WebConnection wrap(WebConnection webConnection, String rootUrl, CookieManager cookieManager) {
+		SharedResponseCache cache = getInstance();
+		return cache != null ? cache.connection(webConnection, rootUrl, cookieManager) : webConnection;
+	}
+
+	/**
+	 * Saves the index of the disk tier, called on service shutdown.
+	 */
+	public static synchronized void shutdown() {
+		if (instance != null) {
+			instance.saveIndex();
+		}
+	}
+
+	final WebConnection connection(WebConnection webConnection, String rootUrl, CookieManager cookieManager) {
+		String excludedUrl = null;
+		if (excludeRoot && rootUrl != null) {
+			try {
+				excludedUrl = UrlUtils.toUrlUnsafe(rootUrl).toExternalForm();
+			} catch (MalformedURLException e) {
+				// such URL is not going to be requested either
+				LOGGER.debug("Root URL not excluded: {}", e.getMessage());
+			}
+		}
+		return new Connection(webConnection, excludedUrl, cookieManager);
+	}
+
+	/**
+	 * @return Percent of requests served from the cache, including revalidated ones.
+	 */
+	public long getHitRatio() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0 : hitCount * 100 / total;
+	}
+
+	synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	synchronized long getDiskUsed() {
+		return diskUsed;
+	}
+
+	private final class Connection extends WebConnectionWrapper {
+		private final String excludedUrl;
+		private final CookieManager cookieManager;
+
+		Connection(WebConnection webConnection, String excludedUrl, CookieManager cookieManager) {
+			super(webConnection);
+			this.excludedUrl = excludedUrl;
+			this.cookieManager = cookieManager;
+		}
+
+		@Override
+		public WebResponse getResponse(WebRequest request) throws IOException {
+			if (!isCacheable(request)) {
+				return super.getResponse(request);
+			}
+			String key = keyOf(request);
+			Entry entry = lookup(key);
+			long now = System.currentTimeMillis();
+			if (entry != null && entry.expires > now && !hasNoCache(request)) {
+				hit(entry, request, "hit");
+				return entry.toResponse(request);
+			}
+			WebResponse response;
+			if (entry != null && (entry.etag != null || entry.lastModified != null)) {
+				response = revalidate(request, entry);
+				if (response.getStatusCode() == NOT_MODIFIED) {
+					refresh(key, entry, response.getResponseHeaders());
+					response.cleanUp();
+					hit(entry, request, "revalidated");
+					return entry.toResponse(request);
+				}
+			} else {
+				response = super.getResponse(request);
+			}
+			misses.incrementAndGet();
+			ServiceMetrics.increment("response.cache.shared.miss");
+			store(key, response);
+			return response;
+		}
+
+		private boolean isCacheable(WebRequest request) {
+			if (request.getHttpMethod() != HttpMethod.GET || request.getUrl().toExternalForm().equals(excludedUrl)) {
+				return false;
+			}
+			// responses for a specific user are not shared between tasks
+			for (String header : request.getAdditionalHeaders().keySet()) {
+				if ("Authorization".equalsIgnoreCase(header) || "Cookie".equalsIgnoreCase(header)) {
+					return false;
+				}
+			}
+			// cookies of the task (e.g. referrer_cookie) are added by HtmlUnit below this connection
+			return !cookieManager.isCookiesEnabled() || cookieManager.getCookies(request.getUrl()).isEmpty();
+		}
+
+		private WebResponse revalidate(WebRequest request, Entry entry) throws IOException {
+			boolean addEtag = entry.etag != null && !request.isAdditionalHeader("If-None-Match");
+			boolean addLastModified = entry.lastModified != null && !request.isAdditionalHeader("If-Modified-Since");
+			if (addEtag) {
+				request.setAdditionalHeader("If-None-Match", entry.etag);
+			}
+			if (addLastModified) {
+				request.setAdditionalHeader("If-Modified-Since", entry.lastModified);
+			}
+			try {
+				return super.getResponse(request);
+			} finally {
+				if (addEtag) {
+					request.removeAdditionalHeader("If-None-Match");
+				}
+				if (addLastModified) {
+					request.removeAdditionalHeader("If-Modified-Since");
+				}
+			}
+		}
+
+		private void hit(Entry entry, WebRequest request, String type) {
+			hits.incrementAndGet();
+			ServiceMetrics.increment("response.cache.shared." + type);
+			ServiceMetrics.add("response.cache.shared.bytes.saved", entry.size);
+			LOGGER.debug("Shared cache {}: {}", type, request.getUrl());
+		}
+	}
+
+	/**
+	 * Key of the task cache extended with Referer, as exploit kit landing pages often respond depending on it.
+	 */
+	private static String keyOf(WebRequest request) {
+		String key = TaskResponseCache.keyOf(request);
+		for (Map.Entry<String, String> header : request.getAdditionalHeaders().entrySet()) {
+			if ("Referer".equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+				return key + "\nreferer: " + header.getValue();
+			}
+		}
+		return key;
+	}
+
+	private static boolean hasNoCache(WebRequest request) {
+		for (String header : request.getAdditionalHeaders().keySet()) {
+			if ("Cache-Control".equalsIgnoreCase(header) || "Pragma".equalsIgnoreCase(header)) {
+				String value = request.getAdditionalHeaders().get(header);
+				if (value != null && value.toLowerCase(Locale.ENGLISH).contains("no-cache")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns entry with the body loaded, or null.
+	 */
+	private Entry lookup(String key) throws IOException {
+		Entry entry;
+		String fileName;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.body != null) {
+				return entry.copy(entry.body);
+			}
+			fileName = entry.fileName;
+		}
+		byte[] body;
+		try {
+			body = readFile(new File(dir, fileName));
+		} catch (IOException e) {
+			LOGGER.debug("Could not read cached response: {}", e.getMessage());
+			return null;
+		}
+		synchronized (this) {
+			if (entries.get(key) == entry && entry.body == null && body.length <= memorySize) {
+				entry.body = body;
+				memoryUsed += entry.size;
+				evict();
+			}
+		}
+		return entry.copy(body);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private void store(String key, WebResponse response) throws IOException {
+		List<NameValuePair> headers = response.getResponseHeaders();
+		long now = System.currentTimeMillis();
+		long ttl = freshness(headers, now);
+		String etag = getHeader(headers, "ETag");
+		String lastModified = getHeader(headers, "Last-Modified");
+		if (!isStorable(response, headers, key) || ttl < 0 || (ttl == 0 && etag == null && lastModified == null)) {
+			remove(key);
+			return;
+		}
+		byte[] body = readBody(response);
+		if (body == null) {
+			remove(key);
+			return;
+		}
+		Entry entry = new Entry(response.getStatusCode(), response.getStatusMessage(), headers, now + ttl, etag, lastModified,
+				body.length, response.getLoadTime());
+		entry.body = body;
+		if (dir != null) {
+			entry.fileName = writeFile(body);
+		}
+		put(key, entry);
+	}
+
+	private boolean isStorable(WebResponse response, List<NameValuePair> headers, String key) {
+		boolean cacheableStatus = false;
+		for (int status : CACHEABLE_STATUS) {
+			cacheableStatus |= response.getStatusCode() == status;
+		}
+		String vary = getHeader(headers, "Vary");
+		// body cut at the byte budget of a task is not complete for other tasks
+		return cacheableStatus && key.length() <= MAX_KEY_LENGTH && getHeader(headers, "Set-Cookie") == null
+				&& getHeader(headers, TempFileWebConnection.TRUNCATED_HEADER) == null && (vary == null || "accept-encoding".equalsIgnoreCase(vary.trim()));
+	}
+
+	/**
+	 * @return Body or null if it is larger than the maximum entry size.
+	 */
+	private byte[] readBody(WebResponse response) throws IOException {
+		long length = NumberUtils.toLong(response.getResponseHeaderValue("Content-Length"), -1);
+		if (length > maxEntrySize) {
+			return null;
+		}
+		InputStream in = response.getContentAsStream();
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+				if (body.size() > maxEntrySize) {
+					return null;
+				}
+			}
+			return body.toByteArray();
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private String writeFile(byte[] body) throws IOException {
+		String fileName = UUID.randomUUID().toString();
+		OutputStream out = new FileOutputStream(new File(dir, fileName));
+		try {
+			out.write(body);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		return fileName;
+	}
+
+	private void put(String key, Entry entry) {
+		List<String> obsolete = new ArrayList<String>();
+		synchronized (this) {
+			Entry previous = entries.put(key, entry);
+			if (previous != null) {
+				release(previous, obsolete);
+			}
+			if (entry.size <= memorySize) {
+				memoryUsed += entry.size;
+			} else {
+				entry.body = null;
+			}
+			if (entry.fileName != null) {
+				diskUsed += entry.size;
+				unsavedChanges++;
+			}
+			if (entry.body == null && entry.fileName == null) {
+				entries.remove(key);
+			}
+			obsolete.addAll(evict());
+		}
+		deleteFiles(obsolete);
+		if (unsavedChangesOver()) {
+			saveIndex();
+		}
+	}
+
+	private void remove(String key) {
+		List<String> obsolete = new ArrayList<String>();
+		synchronized (this) {
+			Entry previous = entries.remove(key);
+			if (previous != null) {
+				release(previous, obsolete);
+			}
+		}
+		deleteFiles(obsolete);
+	}
+
+	private void refresh(String key, Entry entry, List<NameValuePair> notModifiedHeaders) {
+		List<NameValuePair> headers = new ArrayList<NameValuePair>(notModifiedHeaders);
+		headers.addAll(entry.headers);
+		long now = System.currentTimeMillis();
+		long ttl = freshness(headers, now);
+		synchronized (this) {
+			if (entries.get(key) == entry.source) {
+				entry.source.expires = now + Math.max(ttl, 0);
+			}
+		}
+	}
+
+	private void release(Entry entry, List<String> obsolete) {
+		if (entry.body != null) {
+			memoryUsed -= entry.size;
+			entry.body = null;
+		}
+		if (entry.fileName != null) {
+			diskUsed -= entry.size;
+			obsolete.add(entry.fileName);
+			entry.fileName = null;
+			unsavedChanges++;
+		}
+	}
+
+	/**
+	 * Drops least recently used bodies until both tiers fit in their limits.
+	 *
+	 * @return Names of files to delete.
+	 */
+	private List<String> evict() {
+		List<String> obsolete = new ArrayList<String>();
+		Iterator<Entry> it = entries.values().iterator();
+		while ((memoryUsed > memorySize || diskUsed > diskSize) && it.hasNext()) {
+			Entry entry = it.next();
+			if (memoryUsed > memorySize && entry.body != null) {
+				memoryUsed -= entry.size;
+				entry.body = null;
+			}
+			if (diskUsed > diskSize && entry.fileName != null) {
+				diskUsed -= entry.size;
+				obsolete.add(entry.fileName);
+				entry.fileName = null;
+				unsavedChanges++;
+			}
+			if (entry.body == null && entry.fileName == null) {
+				it.remove();
+			}
+		}
+		return obsolete;
+	}
+
+	private void deleteFiles(List<String> fileNames) {
+		for (String fileName : fileNames) {
+			File file = new File(dir, fileName);
+			if (!file.delete()) {
+				LOGGER.debug("Could not delete cached response {}", file);
+			}
+		}
+	}
+
+	private synchronized boolean unsavedChangesOver() {
+		return unsavedChanges >= INDEX_SAVE_INTERVAL;
+	}
+
+	/**
+	 * Returns freshness lifetime of a response in milliseconds, negative if the response must not be stored.
+	 */
+	private long freshness(List<NameValuePair> headers, long now) {
+		long ttl = -1;
+		String cacheControl = getHeader(headers, "Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+				directive = directive.trim();
+				if ("no-store".equals(directive) || "private".equals(directive)) {
+					return -1;
+				} else if ("no-cache".equals(directive)) {
+					return 0;
+				} else if (directive.startsWith("s-maxage=")) {
+					ttl = NumberUtils.toLong(directive.substring("s-maxage=".length()), 0) * 1000;
+					break;
+				} else if (directive.startsWith("max-age=")) {
+					ttl = NumberUtils.toLong(directive.substring("max-age=".length()), 0) * 1000;
+				}
+			}
+		}
+		long date = parseDate(getHeader(headers, "Date"), now);
+		if (ttl < 0 && getHeader(headers, "Expires") != null) {
+			ttl = parseDate(getHeader(headers, "Expires"), 0) - date;
+		}
+		if (ttl < 0 && getHeader(headers, "Last-Modified") != null) {
+			ttl = (date - parseDate(getHeader(headers, "Last-Modified"), date)) / HEURISTIC_FRACTION;
+		}
+		ttl -= NumberUtils.toLong(getHeader(headers, "Age"), 0) * 1000;
+		return Math.min(Math.max(ttl, 0), maxTtlMillis);
+	}
+
+	private static long parseDate(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			Date date = DateUtils.parseDate(value);
+			return date.getTime();
+		} catch (DateParseException e) {
+			return defaultValue;
+		}
+	}
+
+	private static String getHeader(List<NameValuePair> headers, String name) {
+		for (NameValuePair header : headers) {
+			if (header.getName().trim().equalsIgnoreCase(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes index of the disk tier, so it can be used after restart.
+	 */
+	final void saveIndex() {
+		if (dir == null) {
+			return;
+		}
+		List<String> keys = new ArrayList<String>();
+		List<Entry> diskEntries = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				if (mapEntry.getValue().fileName != null) {
+					keys.add(mapEntry.getKey());
+					diskEntries.add(mapEntry.getValue().copy(null));
+				}
+			}
+			unsavedChanges = 0;
+		}
+		synchronized (indexLock) {
+			File tmp = new File(dir, INDEX_FILE + ".tmp");
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				out.writeInt(INDEX_VERSION);
+				out.writeInt(diskEntries.size());
+				for (int i = 0; i < diskEntries.size(); i++) {
+					writeString(out, keys.get(i));
+					diskEntries.get(i).writeTo(out);
+				}
+				out.close();
+				out = null;
+				File index = new File(dir, INDEX_FILE);
+				if (!tmp.renameTo(index) && !(index.delete() && tmp.renameTo(index))) {
+					LOGGER.warn("Could not replace shared cache index {}", index);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Could not save shared cache index: {}", e.getMessage());
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+		}
+	}
+
+	private void loadIndex() {
+		File index = new File(dir, INDEX_FILE);
+		Set<String> known = new HashSet<String>();
+		known.add(INDEX_FILE);
+		if (index.isFile()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+				if (in.readInt() != INDEX_VERSION) {
+					throw new IOException("unknown index version");
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String key = readString(in);
+					Entry entry = Entry.readFrom(in);
+					File file = new File(dir, entry.fileName);
+					if (file.length() == entry.size && diskUsed + entry.size <= diskSize) {
+						entries.put(key, entry);
+						diskUsed += entry.size;
+						known.add(entry.fileName);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Could not read shared cache index, cache cleared: {}", e.getMessage());
+				entries.clear();
+				diskUsed = 0;
+				known.clear();
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!known.contains(file.getName()) && !file.delete()) {
+					LOGGER.debug("Could not delete orphaned cache file {}", file);
+				}
+			}
+		}
+		LOGGER.info("Shared response cache index loaded, {} entries", entries.size());
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_KEY_LENGTH * 8) {
+			throw new IOException("corrupted index");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Cached response. Body is set while the entry is in the memory tier, file name while it is in the disk tier.
+	 */
+	private static final class Entry {
+		private final int statusCode;
+		private final String statusMessage;
+		private final List<NameValuePair> headers;
+		private final String etag;
+		private final String lastModified;
+		private final long size;
+		private final long loadTime;
+		private long expires;
+		private byte[] body;
+		private String fileName;
+		private Entry source;
+
+		Entry(int statusCode, String statusMessage, List<NameValuePair> headers, long expires, String etag, String lastModified,
+				long size, long loadTime) {
+			this.statusCode = statusCode;
+			this.statusMessage = statusMessage;
+			this.headers = headers;
+			this.expires = expires;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.loadTime = loadTime;
+		}
+
+		/**
+		 * Returns a copy which is not changed by eviction, to be used outside of the cache lock.
+		 */
+		Entry copy(byte[] copyBody) {
+			Entry copy = new Entry(statusCode, statusMessage, headers, expires, etag, lastModified, size, loadTime);
+			copy.body = copyBody;
+			copy.fileName = fileName;
+			copy.source = this;
+			return copy;
+		}
+
+		WebResponse toResponse(WebRequest request) {
+			return new WebResponse(new StoredResponseData(statusCode, statusMessage, headers, body, null, loadTime), request, loadTime);
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(statusCode);
+			writeString(out, statusMessage);
+			out.writeInt(headers.size());
+			for (NameValuePair header : headers) {
+				writeString(out, header.getName());
+				writeString(out, header.getValue());
+			}
+			out.writeLong(expires);
+			writeString(out, etag);
+			writeString(out, lastModified);
+			out.writeLong(size);
+			out.writeLong(loadTime);
+			writeString(out, fileName);
+		}
+
+		static Entry readFrom(DataInputStream in) throws IOException {
+			int statusCode = in.readInt();
+			String statusMessage = readString(in);
+			int headerCount = in.readInt();
+			List<NameValuePair> headers = new ArrayList<NameValuePair>(headerCount);
+			for (int i = 0; i < headerCount; i++) {
+				headers.add(new NameValuePair(readString(in), readString(in)));
+			}
+			Entry entry = new Entry(statusCode, statusMessage, headers, in.readLong(), readString(in), readString(in), in.readLong(),
+					in.readLong());
+			entry.fileName = readString(in);
+			if (entry.fileName == null) {
+				throw new IOException("corrupted index");
+			}
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+import pl.nask.hsn2.utils.FileContentStream;
+import pl.nask.hsn2.utils.PooledContent;
+
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Response data of a cached response: original headers and the decoded body, kept in a byte array, pooled buffers or
+ * a file. The data may be shared by many responses, so it is never removed by {@link #cleanUp()}, the owning cache
+ * removes it.
+ */
+final class StoredResponseData extends WebResponseData {
+	private static final long serialVersionUID = 1L;
+	private final byte[] body;
+	private final transient PooledContent content;
+	private final File file;
+	private final long size;
+	private final long loadTime;
+
+	StoredResponseData(int statusCode, String statusMessage, List<NameValuePair> headers, byte[] body, File file, long loadTime) {
+		super(statusCode, statusMessage, headers);
+		this.body = body;
+		this.file = file;
+		content = null;
+		size = file != null ? file.length() : body.length;
+		this.loadTime = loadTime;
+	}
+
+	private StoredResponseData(int statusCode, String statusMessage, List<NameValuePair> headers, PooledContent content, long loadTime) {
+		super(statusCode, statusMessage, headers);
+		this.content = content;
+		body = null;
+		file = null;
+		size = content.size();
+		this.loadTime = loadTime;
+	}
+
+	static StoredResponseData of(WebResponse response, byte[] body, File file) {
+		return new StoredResponseData(response.getStatusCode(), response.getStatusMessage(), response.getResponseHeaders(), body,
+				file, response.getLoadTime());
+	}
+
+	/**
+	 * Takes over the reference to given content, released by {@link #release()}.
+	 */
+	static StoredResponseData of(WebResponse response, PooledContent content) {
+		return new StoredResponseData(response.getStatusCode(), response.getStatusMessage(), response.getResponseHeaders(), content,
+				response.getLoadTime());
+	}
+
+	/**
+	 * @return File with the body or null if the body is kept in memory.
+	 */
+	File getFile() {
+		return file;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	long getLoadTime() {
+		return loadTime;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (file != null) {
+			return new FileContentStream(file);
+		}
+		if (content != null) {
+			return content.newInputStream();
+		}
+		return new ByteArrayInputStream(body);
+	}
+
+	@Override
+	public byte[] getBody() {
+		if (body != null) {
+			return body;
+		}
+		InputStream in = null;
+		try {
+			in = getInputStream();
+			return IOUtils.toByteArray(in);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Releases the reference to pooled content held by the cache.
+	 */
+	void release() {
+		if (content != null) {
+			content.release();
+		}
+	}
+
+	@Override
+	public void cleanUp() {
+		// data is shared between responses
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.FileContentStream;
+import pl.nask.hsn2.utils.HeapPressure;
+import pl.nask.hsn2.utils.PooledContent;
+import pl.nask.hsn2.utils.ServiceMetrics;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+import com.gargoylesoftware.htmlunit.AjaxController;
+import com.gargoylesoftware.htmlunit.CookieManager;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Response cache of a single task, so a resource loaded while walking the DOM, by a script or when saving embedded
+ * files is downloaded only once. Only GET requests are cached, keyed by URL, the request headers and the cookies of the
+ * task which may change the response. Responses marked no-store/no-cache and XHR requests are not cached. Bodies are kept decoded in pooled buffers, larger ones ("webclient.responseCache.spillSize", lowered
+ * under heap pressure) in files in the temp directory of the task, which are removed by {@link #close()}.
+ */
+public class TaskResponseCache extends WebConnectionWrapper {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TaskResponseCache.class);
+	public static final int DEFAULT_SPILL_SIZE = 512 * 1024;
+	public static final long DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+	private static final String[] KEY_HEADERS = { "Authorization", "Cookie", "Range", "Accept-Language", "If-Modified-Since",
+			"If-None-Match" };
+
+	private final ConcurrentMap<String, StoredResponseData> responses = new ConcurrentHashMap<String, StoredResponseData>();
+	private final int spillSize;
+	private final long memoryLimit;
+	private final TaskTempDir tempDir;
+	private final CookieManager cookieManager;
+	private final Set<WebRequest> xhrRequests = Collections.synchronizedSet(Collections
+			.newSetFromMap(new WeakHashMap<WebRequest, Boolean>()));
+	private final AtomicLong memoryUsed = new AtomicLong();
+	private final AtomicInteger hits = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * @param cookieManager Cookies of the task, added by HtmlUnit below this connection.
+	 */
+	public TaskResponseCache(WebConnection webConnection, TaskTempDir tempDir, CookieManager cookieManager) {
+		this(webConnection, tempDir, cookieManager, Integer.getInteger("webclient.responseCache.spillSize", DEFAULT_SPILL_SIZE),
+				Long.getLong("webclient.responseCache.memoryLimit", DEFAULT_MEMORY_LIMIT));
+	}
+
+	TaskResponseCache(WebConnection webConnection, TaskTempDir tempDir, CookieManager cookieManager, int spillSize, long memoryLimit) {
+		super(webConnection);
+		this.tempDir = tempDir;
+		this.cookieManager = cookieManager;
+		this.spillSize = spillSize;
+		this.memoryLimit = memoryLimit;
+	}
+
+	@Override
+	public final WebResponse getResponse(WebRequest request) throws IOException {
+		if (request.getHttpMethod() != HttpMethod.GET || closed || xhrRequests.contains(request) || isNoCache(request)) {
+			return super.getResponse(request);
+		}
+		String key = keyWithCookies(request);
+		StoredResponseData cached = responses.get(key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			ServiceMetrics.increment("response.cache.task.hit");
+			LOGGER.debug("Response cache hit: {}", request.getUrl());
+			return new WebResponse(cached, request, cached.getLoadTime());
+		}
+		ServiceMetrics.increment("response.cache.task.miss");
+		WebResponse response = super.getResponse(request);
+		if (isNoCache(response)) {
+			return response;
+		}
+		try {
+			cached = store(response);
+		} finally {
+			response.cleanUp();
+		}
+		StoredResponseData previous = responses.putIfAbsent(key, cached);
+		if (previous != null) {
+			// resource downloaded concurrently by another fetch
+			release(cached);
+			cached = previous;
+		} else if (closed && responses.remove(key, cached)) {
+			// task finished in the meantime, the data is released with the task temp directory
+			final StoredResponseData orphan = cached;
+			tempDir.register(new Closeable() {
+				@Override
+				public void close() {
+					orphan.release();
+				}
+			});
+		}
+		return new WebResponse(cached, request, cached.getLoadTime());
+	}
+
+	/**
+	 * Returns AJAX controller delegating to the given one which keeps XHR requests away from the cache, as pages
+	 * polling a URL expect a fresh response every time.
+	 */
+	public final AjaxController bypassXhr(final AjaxController controller) {
+		return new AjaxController() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean processSynchron(HtmlPage page, WebRequest request, boolean async) {
+				xhrRequests.add(request);
+				return controller.processSynchron(page, request, async);
+			}
+		};
+	}
+
+	/**
+	 * Number of requests served from the cache so far.
+	 */
+	public final int getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Drops all cached responses and removes the spill files. Responses requested later are not cached.
+	 */
+	public final void close() {
+		closed = true;
+		for (String key : responses.keySet()) {
+			StoredResponseData cached = responses.remove(key);
+			if (cached != null) {
+				release(cached);
+			}
+		}
+	}
+
+	private void release(StoredResponseData cached) {
+		if (cached.getFile() != null) {
+			tempDir.delete(cached.getFile());
+		} else {
+			memoryUsed.addAndGet(-cached.getSize());
+			cached.release();
+		}
+	}
+
+	static String keyOf(WebRequest request) {
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		headers.putAll(request.getAdditionalHeaders());
+		StringBuilder key = new StringBuilder(request.getHttpMethod().name()).append(' ').append(request.getUrl().toExternalForm());
+		for (String name : KEY_HEADERS) {
+			String value = headers.get(name);
+			if (value != null) {
+				key.append('\n').append(name.toLowerCase(Locale.ENGLISH)).append(": ").append(value);
+			}
+		}
+		return key.toString();
+	}
+
+	private String keyWithCookies(WebRequest request) {
+		String key = keyOf(request);
+		if (!cookieManager.isCookiesEnabled()) {
+			return key;
+		}
+		Set<String> cookies = new TreeSet<String>();
+		for (Cookie cookie : cookieManager.getCookies(request.getUrl())) {
+			cookies.add(cookie.getName() + '=' + cookie.getValue());
+		}
+		return cookies.isEmpty() ? key : key + "\ncookie: " + cookies;
+	}
+
+	private static boolean isNoCache(WebRequest request) {
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		headers.putAll(request.getAdditionalHeaders());
+		return directives(headers.get("Cache-Control")).contains("no-cache") || directives(headers.get("Pragma")).contains("no-cache");
+	}
+
+	private static boolean isNoCache(WebResponse response) {
+		String cacheControl = directives(response.getResponseHeaderValue("Cache-Control"));
+		return cacheControl.contains("no-store") || cacheControl.contains("no-cache")
+				|| directives(response.getResponseHeaderValue("Pragma")).contains("no-cache");
+	}
+
+	private static String directives(String header) {
+		return header == null ? "" : header.toLowerCase(Locale.ENGLISH);
+	}
+
+	private StoredResponseData store(WebResponse response) throws IOException {
+		InputStream in = response.getContentAsStream();
+		try {
+			int threshold = HeapPressure.spillThreshold(spillSize);
+			if (in instanceof FileContentStream && ((FileContentStream) in).size() > threshold) {
+				return spill(response, (FileContentStream) in);
+			}
+			if (in instanceof PooledContent.ContentStream) {
+				// body downloaded to pooled buffers, shared instead of copied
+				PooledContent content = ((PooledContent.ContentStream) in).getContent();
+				if (content.size() <= threshold) {
+					if (memoryUsed.addAndGet(content.size()) <= memoryLimit) {
+						return StoredResponseData.of(response, content.retain());
+					}
+					memoryUsed.addAndGet(-content.size());
+				}
+			}
+			PooledContent memory = new PooledContent();
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					memory.write(buffer, 0, read);
+					if (memory.size() > threshold) {
+						return spill(response, memory, buffer, in);
+					}
+				}
+				if (memoryUsed.addAndGet(memory.size()) > memoryLimit) {
+					memoryUsed.addAndGet(-memory.size());
+					return spill(response, memory, buffer, new ByteArrayInputStream(new byte[0]));
+				}
+				StoredResponseData stored = StoredResponseData.of(response, memory);
+				memory = null;
+				return stored;
+			} finally {
+				if (memory != null) {
+					memory.release();
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Downloaded file is copied with {@link FileContentStream#transferTo}, without reading it to the heap.
+	 */
+	private StoredResponseData spill(WebResponse response, FileContentStream in) throws IOException {
+		File file = tempDir.createFile("hsn2-response");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			in.transferTo(out.getChannel());
+		} finally {
+			IOUtils.closeQuietly(out);
+			tempDir.written(file);
+		}
+		return StoredResponseData.of(response, null, file);
+	}
+
+	private StoredResponseData spill(WebResponse response, PooledContent head, byte[] buffer, InputStream rest) throws IOException {
+		File file = tempDir.createFile("hsn2-response");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			head.writeTo(out.getChannel());
+			int read;
+			while ((read = rest.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			IOUtils.closeQuietly(out);
+			tempDir.written(file);
+		}
+		return StoredResponseData.of(response, null, file);
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.service.task.TaskByteBudget;
+import pl.nask.hsn2.utils.HeapPressure;
+import pl.nask.hsn2.utils.PooledContent;
+import pl.nask.hsn2.utils.ServiceMetrics;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+import com.gargoylesoftware.htmlunit.DownloadedContent;
+import com.gargoylesoftware.htmlunit.HttpWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * HTTP connection which keeps response bodies of the task using the client off the heap: smaller ones in pooled direct
+ * buffers, larger ones in the temp directory of the task instead of java.io.tmpdir, so they are removed together with
+ * the directory. Bodies are read within the byte budget of the task; a body cut at the limit is marked with the
+ * {@link #TRUNCATED_HEADER} response header.
+ */
+final class TempFileWebConnection extends HttpWebConnection {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TempFileWebConnection.class);
+	/** Same limit as used by {@link HttpWebConnection#downloadContent(InputStream)}, lowered under heap pressure. */
+	static final int MAX_IN_MEMORY = 500 * 1024;
+	/** Header added to responses which body has been truncated. */
+	static final String TRUNCATED_HEADER = "X-HSN2-Truncated";
+
+	private volatile TaskTempDir tempDir;
+	private volatile TaskByteBudget byteBudget = TaskByteBudget.unlimited();
+	/** Body downloaded by the current thread, until its response is created. */
+	private final ThreadLocal<Download> lastDownload = new ThreadLocal<Download>();
+
+	/**
+	 * Downloaded body and whether it was cut at the byte budget.
+	 */
+	static final class Download {
+		private final DownloadedContent content;
+		private final boolean truncated;
+
+		Download(DownloadedContent content, boolean truncated) {
+			this.content = content;
+			this.truncated = truncated;
+		}
+
+		DownloadedContent getContent() {
+			return content;
+		}
+
+		boolean isTruncated() {
+			return truncated;
+		}
+	}
+
+	TempFileWebConnection(WebClient webClient) {
+		super(webClient);
+	}
+
+	/**
+	 * @param tempDir Directory of the task using the client, or null when the client is returned to the pool.
+	 */
+	void setTempDir(TaskTempDir tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * @param byteBudget Budget of the task using the client, or null when the client is returned to the pool.
+	 */
+	void setByteBudget(TaskByteBudget byteBudget) {
+		this.byteBudget = byteBudget != null ? byteBudget : TaskByteBudget.unlimited();
+	}
+
+	@Override
+	protected DownloadedContent downloadResponseBody(HttpResponse httpResponse) throws IOException {
+		lastDownload.remove();
+		TaskTempDir dir = tempDir;
+		HttpEntity entity = httpResponse.getEntity();
+		if (dir == null || entity == null) {
+			return super.downloadResponseBody(httpResponse);
+		}
+		Download download = download(entity.getContent(), dir, byteBudget);
+		lastDownload.set(download);
+		return download.getContent();
+	}
+
+	@Override
+	protected WebResponse newWebResponseInstance(WebResponseData responseData, long loadTime, WebRequest request) {
+		Download download = lastDownload.get();
+		lastDownload.remove();
+		if (download == null || !download.isTruncated()) {
+			return super.newWebResponseInstance(responseData, loadTime, request);
+		}
+		LOGGER.info("Response body truncated at byte budget: {}", request.getUrl());
+		List<NameValuePair> headers = new ArrayList<NameValuePair>(responseData.getResponseHeaders());
+		headers.add(new NameValuePair(TRUNCATED_HEADER, "true"));
+		WebResponseData truncated = new WebResponseData(download.getContent(), responseData.getStatusCode(),
+				responseData.getStatusMessage(), headers);
+		return super.newWebResponseInstance(truncated, loadTime, request);
+	}
+
+	static boolean isTruncated(WebResponse response) {
+		return response.getResponseHeaderValue(TRUNCATED_HEADER) != null;
+	}
+
+	/**
+	 * Keeps the body in pooled buffers, or in a file when it exceeds the in-memory limit adjusted to the heap usage.
+	 * Buffers are released when the task directory is removed, whether streams of the content were closed or not.
+	 * Reading stops when the byte budget is used up, the connection is aborted then instead of reading the rest.
+	 */
+	static Download download(InputStream in, TaskTempDir dir, TaskByteBudget budget) throws IOException {
+		if (in == null) {
+			return new Download(new DownloadedContent.InMemory(null), false);
+		}
+		PooledContent memory = new PooledContent();
+		FileOutputStream out = null;
+		File file = null;
+		boolean truncated = false;
+		try {
+			int threshold = HeapPressure.spillThreshold(MAX_IN_MEMORY);
+			byte[] buffer = new byte[8192];
+			long received = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				int granted = budget.grant(received, read);
+				received += granted;
+				if (out != null) {
+					out.write(buffer, 0, granted);
+				} else {
+					memory.write(buffer, 0, granted);
+					if (memory.size() > threshold) {
+						ServiceMetrics.increment("download.spilled");
+						file = dir.createFile("htmlunit");
+						out = new FileOutputStream(file);
+						memory.writeTo(out.getChannel());
+					}
+				}
+				if (granted < read) {
+					truncated = true;
+					ServiceMetrics.increment("download.truncated");
+					abort(in);
+					break;
+				}
+			}
+			ServiceMetrics.add("download.bytes", received);
+			if (out != null) {
+				return new Download(new DownloadedContent.OnFile(file, true), truncated);
+			}
+			PooledContent content = memory;
+			dir.register(content);
+			memory = null;
+			return new Download(new PooledDownloadedContent(content), truncated);
+		} finally {
+			if (memory != null) {
+				memory.release();
+			}
+			if (out != null) {
+				IOUtils.closeQuietly(out);
+				dir.written(file);
+			}
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static void abort(InputStream in) {
+		if (in instanceof ConnectionReleaseTrigger) {
+			try {
+				((ConnectionReleaseTrigger) in).abortConnection();
+			} catch (IOException e) {
+				LOGGER.debug("Could not abort connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Body kept in pooled buffers. The reference of the downloaded content is released with the task directory, as
+	 * HtmlUnit cleans up responses of closed windows before the content is saved.
+	 */
+	private static final class PooledDownloadedContent implements DownloadedContent {
+		private static final long serialVersionUID = 1L;
+		private final transient PooledContent content;
+
+		private PooledDownloadedContent(PooledContent content) {
+			this.content = content;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return content.newInputStream();
+		}
+
+		@Override
+		public void cleanUp() {
+			// released with the task directory
+		}
+	}
+}
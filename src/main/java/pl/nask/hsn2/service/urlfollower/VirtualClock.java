@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.htmlunit.corejs.javascript.BaseFunction;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.Function;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptRuntime;
+import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
+import net.sourceforge.htmlunit.corejs.javascript.debug.Debugger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebWindow;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.javascript.background.JavaScriptJob;
+import com.gargoylesoftware.htmlunit.javascript.background.JavaScriptJobManager;
+
+/**
+ * Task clock used in "virtual_time" mode. Instead of waiting for meta refresh delays and JavaScript timers the clock
+ * jumps forward, so delayed redirects and injections show up without burning worker time. Scripts see the virtual
+ * time through Date (and performance.now, if the browser profile provides it).
+ */
+public class VirtualClock {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VirtualClock.class);
+	private static final long POLL_INTERVAL = 10;
+	private static final Map<WebClient, VirtualClock> CLOCKS = Collections.synchronizedMap(new WeakHashMap<WebClient, VirtualClock>());
+
+	/** Source name of the installed script, which {@link ScriptInterceptor} skips in its preprocessor. */
+	static final String SOURCE_NAME = "virtual-clock";
+
+	/**
+	 * Replaces Date of the window with one reading time from the function given as the argument.
+	 */
+	private static final String DATE_SCRIPT = "(function (now) {\n"
+			+ "  var RealDate = Date;\n"
+			+ "  var VirtualDate = function (year, month, day, hours, minutes, seconds, millis) {\n"
+			+ "    if (!(this instanceof VirtualDate)) {\n"
+			+ "      return new RealDate(now()).toString();\n"
+			+ "    }\n"
+			+ "    switch (arguments.length) {\n"
+			+ "    case 0: return new RealDate(now());\n"
+			+ "    case 1: return new RealDate(year);\n"
+			+ "    default: return new RealDate(year, month, arguments.length > 2 ? day : 1,\n"
+			+ "        hours || 0, minutes || 0, seconds || 0, millis || 0);\n"
+			+ "    }\n"
+			+ "  };\n"
+			+ "  VirtualDate.prototype = RealDate.prototype;\n"
+			+ "  VirtualDate.parse = RealDate.parse;\n"
+			+ "  VirtualDate.UTC = RealDate.UTC;\n"
+			+ "  VirtualDate.now = function () { return now(); };\n"
+			+ "  RealDate.prototype.constructor = VirtualDate;\n"
+			+ "  Date = VirtualDate;\n"
+			+ "  if (typeof performance == 'object' && performance && performance.now) {\n"
+			+ "    var origin = now() - performance.now();\n"
+			+ "    performance.now = function () { return now() - origin; };\n"
+			+ "  }\n"
+			+ "})";
+
+	private final AtomicLong offset = new AtomicLong();
+
+	/**
+	 * Returns clock attached to the client or null if the client works in real time.
+	 */
+	public static VirtualClock of(WebClient client) {
+		return CLOCKS.get(client);
+	}
+
+	public final void attach(WebClient client) {
+		CLOCKS.put(client, this);
+	}
+
+	public static void detach(WebClient client) {
+		CLOCKS.remove(client);
+	}
+
+	public final long currentTimeMillis() {
+		return System.currentTimeMillis() + offset.get();
+	}
+
+	/**
+	 * @return Milliseconds skipped so far.
+	 */
+	public final long getOffset() {
+		return offset.get();
+	}
+
+	public final void advance(long millis) {
+		if (millis > 0) {
+			offset.addAndGet(millis);
+			ServiceMetrics.add("timewarp.skipped.millis", millis);
+		}
+	}
+
+	/**
+	 * Moves the clock to the given virtual time, unless it is already past it.
+	 */
+	public final void advanceTo(long virtualMillis) {
+		advance(virtualMillis - currentTimeMillis());
+	}
+
+	/**
+	 * Runs JavaScript jobs scheduled within the given period of virtual time, moving the clock to each job instead of
+	 * waiting for it. Jobs are still executed by the HtmlUnit JavaScript executor. Returns early, keeping the interrupted
+	 * status, if the thread is interrupted.
+	 *
+	 * @param periodMillis Virtual time to be covered.
+	 * @param timeoutMillis Real time limit, values lower than 1 mean no limit.
+	 * @return Number of jobs left, as in {@link WebClient#waitForBackgroundJavaScript(long)}.
+	 */
+	public final int fastForward(WebClient client, long periodMillis, long timeoutMillis) {
+		long horizon = currentTimeMillis() + periodMillis;
+		long end = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		while (true) {
+			List<WebWindow> windows = new ArrayList<WebWindow>(client.getWebWindows());
+			int jobCount = 0;
+			JavaScriptJobManager earliestManager = null;
+			JavaScriptJob earliestJob = null;
+			for (WebWindow window : windows) {
+				JavaScriptJobManager manager = window.getJobManager();
+				jobCount += manager.getJobCount();
+				JavaScriptJob job = manager.getEarliestJob();
+				if (job != null && (earliestJob == null || job.getTargetExecutionTime() < earliestJob.getTargetExecutionTime())) {
+					earliestManager = manager;
+					earliestJob = job;
+				}
+			}
+			if (jobCount == 0 || System.currentTimeMillis() >= end) {
+				return jobCount;
+			}
+			if (earliestJob != null) {
+				long delay = earliestJob.getTargetExecutionTime() - System.currentTimeMillis();
+				if (currentTimeMillis() + delay > horizon) {
+					return jobCount;
+				}
+				if (delay > 0) {
+					// lowering target time of the queue head keeps the job queue ordered
+					synchronized (earliestManager) {
+						if (earliestManager.getEarliestJob() == earliestJob) {
+							earliestJob.setTargetExecutionTime(System.currentTimeMillis());
+							advance(delay);
+						}
+					}
+				}
+			}
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return jobCount;
+			}
+		}
+	}
+
+	/**
+	 * Installs virtual Date in the window of the page. Has to be called before any of the page scripts is executed.
+	 */
+	public final void install(HtmlPage page) {
+		Scriptable window = (Scriptable) page.getEnclosingWindow().getScriptObject();
+		Context cx = page.getWebClient().getJavaScriptEngine().getContextFactory().enterContext();
+		Debugger debugger = cx.getDebugger();
+		Object debuggerData = cx.getDebuggerContextData();
+		try {
+			// the script is not a part of the page, so it must not be reported to ScriptInterceptor
+			cx.setDebugger(null, null);
+			Function script = (Function) cx.evaluateString(window, DATE_SCRIPT, SOURCE_NAME, 1, null);
+			BaseFunction now = new NowFunction(this);
+			ScriptRuntime.setFunctionProtoAndParent(now, window);
+			script.call(cx, window, window, new Object[] { now });
+		} catch (RuntimeException e) {
+			LOGGER.warn("Could not install virtual clock for {}: {}", page.getUrl(), e.getMessage());
+			LOGGER.debug(e.getMessage(), e);
+		} finally {
+			cx.setDebugger(debugger, debuggerData);
+			Context.exit();
+		}
+	}
+
+	private static final class NowFunction extends BaseFunction {
+		private static final long serialVersionUID = 1L;
+		private final transient VirtualClock clock;
+
+		NowFunction(VirtualClock clock) {
+			this.clock = clock;
+		}
+
+		@Override
+		public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			return Double.valueOf(clock.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.AjaxController;
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.DefaultCredentialsProvider;
+import com.gargoylesoftware.htmlunit.HttpWebConnection;
+import com.gargoylesoftware.htmlunit.TopLevelWindow;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Keeps idle WebClient instances, keyed by browser profile and proxy settings, so that they can be reused by the
+ * following tasks instead of creating a new browser (connection manager, JavaScript engine, cookie manager) every time.
+ */
+public final class WebClientPool {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebClientPool.class);
+	public static final int DEFAULT_MAX_IDLE = 30;
+	private static final WebClientPool INSTANCE = new WebClientPool(Integer.getInteger("webclient.pool.maxIdle", DEFAULT_MAX_IDLE));
+
+	private final int maxIdle;
+	private final Map<String, Deque<WebClient>> idleClients = new HashMap<String, Deque<WebClient>>();
+	private final Map<WebClient, String> leasedClients = new IdentityHashMap<WebClient, String>();
+	private int idleCount;
+
+	WebClientPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	static {
+		ServiceMetrics.registerGauge("webclient.pool.idle", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return INSTANCE.getIdleCount();
+			}
+		});
+		ServiceMetrics.registerGauge("webclient.pool.leased", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return INSTANCE.getLeasedCount();
+			}
+		});
+	}
+
+	public static WebClientPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns an idle client matching given browser version and proxy, or a new one if there is none.
+	 *
+	 * @param browserVersion Browser version.
+	 * @param proxyParams Proxy parameters, or null if direct connection should be used.
+	 * @return WebClient ready to be configured for the task.
+	 */
+	public WebClient acquire(BrowserVersion browserVersion, ProxyParamsWrapper proxyParams) {
+		String key = poolKey(browserVersion, proxyParams);
+		WebClient wc = null;
+		synchronized (this) {
+			Deque<WebClient> clients = idleClients.get(key);
+			if (clients != null) {
+				wc = clients.pollFirst();
+				if (wc != null) {
+					idleCount--;
+				}
+			}
+		}
+		if (wc == null) {
+			ServiceMetrics.increment("webclient.pool.miss");
+			wc = newWebClient(browserVersion, proxyParams);
+			LOGGER.debug("Created new WebClient for key: {}", key);
+		} else {
+			ServiceMetrics.increment("webclient.pool.hit");
+		}
+		synchronized (this) {
+			leasedClients.put(wc, key);
+		}
+		return wc;
+	}
+
+	/**
+	 * Resets client state and returns it to the pool. Client is discarded if it can't be reset or the pool is full.
+	 */
+	public void release(WebClient wc) {
+		String key;
+		synchronized (this) {
+			key = leasedClients.remove(wc);
+		}
+		if (key == null) {
+			LOGGER.warn("Released WebClient which was not acquired from pool, discarding");
+			close(wc);
+			return;
+		}
+		if (!reset(wc)) {
+			ServiceMetrics.increment("webclient.pool.discarded");
+			close(wc);
+			return;
+		}
+		synchronized (this) {
+			if (idleCount < maxIdle) {
+				Deque<WebClient> clients = idleClients.get(key);
+				if (clients == null) {
+					clients = new ArrayDeque<WebClient>();
+					idleClients.put(key, clients);
+				}
+				clients.offerFirst(wc);
+				idleCount++;
+				return;
+			}
+		}
+		ServiceMetrics.increment("webclient.pool.discarded");
+		close(wc);
+	}
+
+	/**
+	 * Removes client from the pool without returning it, i.e. when its state is unknown (processing was interrupted).
+	 */
+	public void discard(WebClient wc) {
+		synchronized (this) {
+			leasedClients.remove(wc);
+		}
+		ServiceMetrics.increment("webclient.pool.discarded");
+		close(wc);
+	}
+
+	public synchronized int getIdleCount() {
+		return idleCount;
+	}
+
+	public synchronized int getLeasedCount() {
+		return leasedClients.size();
+	}
+
+	static String poolKey(BrowserVersion browserVersion, ProxyParamsWrapper proxyParams) {
+		StringBuilder sb = new StringBuilder(browserVersion.getNickname());
+		if (proxyParams != null && proxyParams.isProxy()) {
+			sb.append('|').append(proxyParams.isSocksProxy() ? "socks" : "http");
+			sb.append('|').append(proxyParams.getHost()).append(':').append(proxyParams.getPort());
+			if (proxyParams.hasUserCredentials()) {
+				sb.append('|').append(proxyParams.getUserName()).append(':').append(proxyParams.getUserPswd());
+			}
+		}
+		return sb.toString();
+	}
+
+	private static WebClient newWebClient(BrowserVersion browserVersion, ProxyParamsWrapper proxyParams) {
+		if (proxyParams == null || !proxyParams.isProxy()) {
+			WebClient wc = new WebClient(browserVersion);
+			BudgetedJavaScriptEngine.install(wc);
+			wc.setWebConnection(new TempFileWebConnection(wc));
+			return wc;
+		}
+		WebClient wc = new WebClient(browserVersion, proxyParams.getHost(), proxyParams.getPort());
+		BudgetedJavaScriptEngine.install(wc);
+		wc.setWebConnection(new TempFileWebConnection(wc));
+		if (proxyParams.isSocksProxy()) {
+			wc.getOptions().getProxyConfig().setSocksProxy(true);
+		}
+		if (proxyParams.hasUserCredentials()) {
+			DefaultCredentialsProvider dc = (DefaultCredentialsProvider) wc.getCredentialsProvider();
+			dc.addCredentials(proxyParams.getUserName(), proxyParams.getUserPswd(), proxyParams.getHost(), proxyParams.getPort(), null);
+		}
+		return wc;
+	}
+
+	/**
+	 * Brings client back to the state of a freshly created one. Options and handlers are set again by every task, so
+	 * only the state which could leak between tasks is cleared here. Windows are closed one by one, as
+	 * {@link WebClient#closeAllWindows()} would also shut down the HTTP connection, which is kept warm in the pool.
+	 */
+	private static boolean reset(WebClient wc) {
+		try {
+			wc.getOptions().setJavaScriptEnabled(false);
+			for (TopLevelWindow window : new ArrayList<TopLevelWindow>(wc.getTopLevelWindows())) {
+				window.close();
+			}
+			wc.getJavaScriptEngine().shutdownJavaScriptExecutor();
+			wc.getCookieManager().clearCookies();
+			wc.getCache().clear();
+			wc.getJavaScriptEngine().getContextFactory().setDebugger(null);
+			wc.setScriptPreProcessor(null);
+			if (wc.getJavaScriptEngine() instanceof BudgetedJavaScriptEngine) {
+				((BudgetedJavaScriptEngine) wc.getJavaScriptEngine()).setBudget(null);
+				((BudgetedJavaScriptEngine) wc.getJavaScriptEngine()).setRecursionLimit(-1);
+			}
+			wc.setJavaScriptErrorListener(null);
+			wc.setAjaxController(new AjaxController());
+			wc.getOptions().setUseInsecureSSL(false);
+			wc.getOptions().setJavaScriptEnabled(true);
+			return true;
+		} catch (Exception e) {
+			LOGGER.warn("Couldn't reset WebClient: {}", e.getMessage());
+			LOGGER.debug(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	private static void close(WebClient wc) {
+		try {
+			wc.getOptions().setJavaScriptEnabled(false);
+			wc.closeAllWindows();
+			shutdownConnections(wc);
+		} catch (Exception e) {
+			LOGGER.debug("Error while closing WebClient", e);
+		}
+	}
+
+	/**
+	 * Shuts down the HTTP connection of the client, also when it is wrapped (i.e. by {@link TaskResponseCache}), and
+	 * the connections of resource fetches of the task.
+	 *
+	 * @return False if the client has no HTTP connection.
+	 */
+	static boolean shutdownConnections(WebClient wc) {
+		WebConnection connection = wc.getWebConnection();
+		while (connection instanceof WebConnectionWrapper) {
+			if (connection instanceof ResourceConnections) {
+				((ResourceConnections) connection).shutdown();
+			}
+			connection = ((WebConnectionWrapper) connection).getWrappedWebConnection();
+		}
+		if (connection instanceof HttpWebConnection) {
+			((HttpWebConnection) connection).shutdown();
+			return true;
+		}
+		return false;
+	}
+}
@@ -26,6 +26,7 @@ import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -33,10 +34,6 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,18 +53,27 @@ import pl.nask.hsn2.bus.api.TimeoutException;
 import pl.nask.hsn2.service.ServiceData;
 import pl.nask.hsn2.service.ServiceParameters;
 import pl.nask.hsn2.service.task.NewWebClientUrlObject;
+import pl.nask.hsn2.service.task.PendingReference;
+import pl.nask.hsn2.service.task.TaskByteBudget;
+import pl.nask.hsn2.service.task.TaskDeadline;
 import pl.nask.hsn2.service.task.WebClientTaskContext;
 import pl.nask.hsn2.service.urlfollower.ScriptInterceptor.ScriptElement;
+import pl.nask.hsn2.task.ObjectTreeNode;
+import pl.nask.hsn2.utils.FileContentStream;
+import pl.nask.hsn2.utils.LimitedInputStream;
+import pl.nask.hsn2.utils.PooledContent;
+import pl.nask.hsn2.utils.TaskTempDir;
 import pl.nask.hsn2.wrappers.CookieWrapper;
 import pl.nask.hsn2.wrappers.RequestWrapper;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
-import com.gargoylesoftware.htmlunit.DefaultCredentialsProvider;
-import com.gargoylesoftware.htmlunit.HttpWebConnection;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.TextPage;
 import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
 import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebWindow;
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlFrame;
@@ -86,6 +92,7 @@ public class WebClientWorker implements Runnable {
 	private static final int TERMINATION_TIMEOUT = 500;
 
 	private final ScriptInterceptor scriptInterceptor;
+	private final JsInstructionBudget jsBudget;
 	private WebClient wc;
 	private final CountDownLatch latch;
 	private final HtmlUnitFollower workerDispatcher;
@@ -95,6 +102,13 @@ public class WebClientWorker implements Runnable {
 	private WebClientTaskContext ctx;
 	private volatile boolean interruptProcessing;
 	private Set<CookieWrapper> cookieWrappers;
+	private WebWindowListenerImpl windowListener;
+	private VirtualClock virtualClock;
+	private QuiescenceDetector quiescenceDetector;
+	private TaskResponseCache responseCache;
+	private ResourceConnections resourceConnections;
+	private WebConnection pooledConnection;
+	private TaskTempDir tempDir;
 
 	private Set<String> processedSubPages = new HashSet<>();
 
@@ -111,34 +125,36 @@ public class WebClientWorker implements Runnable {
 		latch = l;
 		workerDispatcher = dispatcher;
 		scriptInterceptor = new ScriptInterceptor(taskParams);
+		jsBudget = new JsInstructionBudget(taskParams.getJsInstructionLimit(), taskParams.getJsScriptInstructionLimit());
 		this.taskParams = taskParams;
 		this.ctx = ctx;
 	}
 
-	private void initializeWebClient() {
+	private void initializeWebClient(String url) throws IOException {
 		String proxy = null;
 		ProxyParamsWrapper proxyParams = null;
 		if ( ctx != null && ctx.getCurrentContextServiceData() != null) {
 			proxy = ctx.getCurrentContextServiceData().getProxyUri();
 		}
-		if ( proxy == null || proxy.trim().isEmpty()) {
-			wc = new WebClient(getBrowserVersion());
-		} else {
+		if ( proxy != null && !proxy.trim().isEmpty()) {
 			proxyParams = new ProxyParamsWrapper(proxy);
-			if ( proxyParams.isProxy()) {
-				wc = new WebClient(getBrowserVersion(), proxyParams.getHost(), proxyParams.getPort());
-				if (proxyParams.isSocksProxy()) {
-					wc.getOptions().getProxyConfig().setSocksProxy(true);
-				}
-				if ( proxyParams.hasUserCredentials()) {
-					DefaultCredentialsProvider dc = (DefaultCredentialsProvider) wc.getCredentialsProvider();
-					dc.addCredentials(proxyParams.getUserName(), proxyParams.getUserPswd(), proxyParams.getHost(), proxyParams.getPort(), null);
-				}
-			} else {
+			if (!proxyParams.isProxy()) {
 				LOGGER.warn("Incorrect proxy params: {}.proxy disabled.",proxy);
-				wc = new WebClient(getBrowserVersion());
+				proxyParams = null;
 			}
 		}
+		wc = WebClientPool.getInstance().acquire(getBrowserVersion(), proxyParams);
+		pooledConnection = wc.getWebConnection();
+		tempDir = TaskTempDir.create();
+		scriptInterceptor.setSourceLog(new ScriptSourceLog(tempDir));
+		if (pooledConnection instanceof TempFileWebConnection) {
+			((TempFileWebConnection) pooledConnection).setTempDir(tempDir);
+			((TempFileWebConnection) pooledConnection).setByteBudget(getByteBudget());
+		}
+		resourceConnections = new ResourceConnections(wc, pooledConnection, tempDir, getByteBudget());
+		responseCache = new TaskResponseCache(SharedResponseCache.wrap(resourceConnections, url, wc.getCookieManager()), tempDir,
+				wc.getCookieManager());
+		wc.setWebConnection(responseCache);
 
 		// http errors and script errors are not considered an error here
 		wc.getOptions().setRedirectEnabled(false);
@@ -146,6 +162,9 @@ public class WebClientWorker implements Runnable {
 		// don't process activeX!
 		wc.getOptions().setActiveXNative(false);
 
+		// set once, changing it later makes the connections reconfigure their HttpClient
+		wc.getOptions().setUseInsecureSSL(true);
+
 		wc.getOptions().setJavaScriptEnabled(taskParams.getJsEnable());
 
 		wc.getOptions().setHomePage("http://unknown.unknown/");
@@ -156,21 +175,41 @@ public class WebClientWorker implements Runnable {
 		// disable script errors
 		wc.getOptions().setThrowExceptionOnScriptError(false);
 
-		wc.getJavaScriptEngine().getContextFactory().setDebugger(scriptInterceptor);
-		wc.setRefreshHandler(new MetaRedirectHandler(taskParams.getPageTimeoutMillis(), taskParams.getRedirectDepthLimit()));
+		if (wc.getJavaScriptEngine() instanceof BudgetedJavaScriptEngine) {
+			((BudgetedJavaScriptEngine) wc.getJavaScriptEngine()).setBudget(jsBudget);
+			((BudgetedJavaScriptEngine) wc.getJavaScriptEngine()).setRecursionLimit(taskParams.getJsRecursionLimit());
+		}
+		if (taskParams.getJsObservationMode() == JsObservationMode.LIGHT) {
+			wc.setScriptPreProcessor(scriptInterceptor);
+		} else {
+			wc.getJavaScriptEngine().getContextFactory().setDebugger(scriptInterceptor);
+		}
+		if (taskParams.isVirtualTime()) {
+			virtualClock = new VirtualClock();
+			virtualClock.attach(wc);
+		}
+		wc.setRefreshHandler(new MetaRedirectHandler(taskParams.getPageTimeoutMillis(), taskParams.getRedirectDepthLimit(), getDeadline(),
+				virtualClock));
 		wc.setJavaScriptErrorListener(new JsScriptErrorListener());
-		wc.addWebWindowListener(new WebWindowListenerImpl(previousTopPageMap, previousFramePageMap));
+		windowListener = new WebWindowListenerImpl(previousTopPageMap, previousFramePageMap);
+		wc.addWebWindowListener(windowListener);
+		quiescenceDetector = new QuiescenceDetector(taskParams.getBackgroundJsIdleTimeMillis(), virtualClock);
+		scriptInterceptor.setQuiescenceDetector(quiescenceDetector);
+		wc.addWebWindowListener(quiescenceDetector);
+		wc.setAjaxController(responseCache.bypassXhr(quiescenceDetector.newAjaxController()));
 
 		initializeCookies();
 
-		LOGGER.info("Initialized WebClientWorker with options: [{}, JsEnabled={}, ActiveXNative={},processing_timeout={},page_timeout={},proxy:{}] ",
+		LOGGER.info("Initialized WebClientWorker with options: [{}, JsEnabled={}, ActiveXNative={},processing_timeout={},page_timeout={},proxy:{},virtual_time={},js_observation={}] ",
 				new Object[] {
 				taskParams.getProfile(),
 				wc.getOptions().isJavaScriptEnabled(),
 				wc.getOptions().isActiveXNative(),
 				taskParams.getProcessingTimeout(),
 				taskParams.getPageTimeoutMillis(),
-				proxyParams,});
+				proxyParams,
+				taskParams.isVirtualTime(),
+				taskParams.getJsObservationMode()});
 	}
 
 	private void initializeCookies() {
@@ -252,7 +291,7 @@ public class WebClientWorker implements Runnable {
 	public final void run() {
 		String workerUrl = workerDispatcher.getUrlForProcessing();
 		try {
-			initializeWebClient();
+			initializeWebClient(workerUrl);
 			processTheUrl(workerUrl);
 		} catch (ConnectTimeoutException e) {
 			LOGGER.warn("Connection timeout for URL '{}'", workerUrl);
@@ -322,11 +361,11 @@ public class WebClientWorker implements Runnable {
 			throws IOException, ParameterException, ResourceException, StorageException {
 		String reasonFailed = "";
 		try {
-			int i = wc.waitForBackgroundJavaScript(taskParams.getBackgroundJsTimeoutMillis());
+			int i = waitForBackgroundJavaScript(getDeadline().limit(taskParams.getBackgroundJsTimeoutMillis()));
 			if (i > 0) {
 				LOGGER.warn("There are still {} javascripts runnig in background", i);
 			}
-			restartJavaScript();
+			stopBackgroundJavaScript();
 
 			long pageGatheredTime = System.currentTimeMillis();
 
@@ -352,17 +391,38 @@ public class WebClientWorker implements Runnable {
 		}
 	}
 
+	/**
+	 * Waits until background JavaScript finishes, the page gets idle or the time is up. The reason is saved as
+	 * "background_js_end" attribute.
+	 */
+	private int waitForBackgroundJavaScript(int timeout) {
+		int jobsLeft = quiescenceDetector.await(wc, taskParams.getBackgroundJsTimeoutMillis(), timeout);
+		ctx.addAttribute("background_js_end", quiescenceDetector.getEndReason().getName());
+		return jobsLeft;
+	}
+
 	public final void stopJavaScripts() {
+		if (wc == null) {
+			// worker hasn't started yet or client has been released
+			return;
+		}
 		wc.getOptions().setJavaScriptEnabled(false);
 		wc.getJavaScriptEngine().shutdownJavaScriptExecutor();
 		JsScriptDebugFrame.resetCounter();
 		LOGGER.debug("JavaScript was stopped.");
 	}
 
-	private void restartJavaScript(){
-		stopJavaScripts();
-		wc.getOptions().setJavaScriptEnabled(true);
-		LOGGER.debug("JavaScript was restarted.");
+	/**
+	 * Stops background scripts of the pages loaded so far, so that they don't change the page while it is inspected.
+	 * Waiting jobs are removed and the running ones are stopped by the instruction budget, the executor of the client
+	 * keeps running for the pages loaded later.
+	 */
+	private void stopBackgroundJavaScript() {
+		jsBudget.stopRunningScripts();
+		for (WebWindow window : new ArrayList<WebWindow>(wc.getWebWindows())) {
+			window.getJobManager().removeAllJobs();
+		}
+		LOGGER.debug("Background JavaScript was stopped.");
 	}
 
 	private void handlePage(ProcessedPage processedPage) throws IOException, ParameterException, ResourceException, StorageException {
@@ -499,8 +559,8 @@ public class WebClientWorker implements Runnable {
 	private ProcessedPage getInsecurePagesChain(final ProcessedPage processedPage) throws IOException, BreakingChainException,
 			ExecutionException, TimeoutException {
 		final WebRequest req = insecurePagesChaingInitialization(processedPage);
-		ExecutorService ex = Executors.newSingleThreadExecutor();
-		Future<Page> f = ex.submit(new Callable<Page>() {
+		final int timeout = getDeadline().limit(taskParams.getPageTimeoutMillis());
+		FetchExecutor.Fetch<Page> f = FetchExecutor.getInstance().submit(new Callable<Page>() {
 			@Override
 			public Page call() throws IOException {
 				return wc.getPage(processedPage.getPage().getEnclosingWindow(), req);
@@ -509,12 +569,7 @@ public class WebClientWorker implements Runnable {
 		Page p = null;
 		try {
 			if (!interruptProcessing){
-				if (taskParams.getPageTimeoutMillis() <= 0) {
-					p = f.get();
-				}
-				else {
-					p = f.get(taskParams.getPageTimeoutMillis(), TimeUnit.MILLISECONDS);
-				}
+				p = f.await(timeout);
 			}
 		} catch (InterruptedException e) {
 			LOGGER.warn("Gathering {} interrupted", req.getUrl());
@@ -522,22 +577,28 @@ public class WebClientWorker implements Runnable {
 		} catch (java.util.concurrent.TimeoutException e) {
 			throw new TimeoutException("Timeout when gathering:" + req.getUrl(), e);
 		} finally {
-			if (f != null) {
-				f.cancel(true);
-			}
-			closeExecutorWithJSDisabled(ex);
+			abortUnfinishedFetch(f);
 		}
 		return insecurePagesChainPostprocessing(processedPage, p);
 	}
 
-	private void closeExecutorWithJSDisabled(ExecutorService ex){
+	/**
+	 * Aborts fetch which hasn't finished in time. JavaScript is disabled for a moment, so that the interrupted fetching
+	 * thread won't start any new scripts while leaving.
+	 */
+	private void abortUnfinishedFetch(FetchExecutor.Fetch<Page> f) {
+		if (f.isDone()) {
+			return;
+		}
+		boolean jsEnabled = wc.getOptions().isJavaScriptEnabled();
 		wc.getOptions().setJavaScriptEnabled(false);
+		f.abort();
 		try {
-			ex.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS);
+			f.awaitTermination(TERMINATION_TIMEOUT);
 		} catch (InterruptedException e) {
-			//ignore
+			Thread.currentThread().interrupt();
 		}
-		wc.getOptions().setJavaScriptEnabled(true);
+		wc.getOptions().setJavaScriptEnabled(jsEnabled);
 	}
 
 	private ProcessedPage insecurePagesChainPostprocessing(final ProcessedPage processedPage, Page p) throws BreakingChainException {
@@ -555,12 +616,10 @@ public class WebClientWorker implements Runnable {
 	}
 
 	private WebRequest insecurePagesChaingInitialization(final ProcessedPage processedPage) throws TimeoutException, MalformedURLException {
-		if (interruptProcessing) {
+		if (interruptProcessing || getDeadline().isExpired()) {
 			throw new TimeoutException("Overall time limit exceeded url:" + processedPage.getOriginalUrl());
 		}
 
-		wc.getOptions().setUseInsecureSSL(true);
-
 		final WebRequest req = new WebRequest(UrlUtils.toUrlUnsafe(processedPage.getServerSideRedirectLocation()));
 		req.setAdditionalHeader("Accept-Encoding", "");
 		return req;
@@ -918,9 +977,9 @@ public class WebClientWorker implements Runnable {
 	// FIXME:zmienic na getInsecurePagesChain i zwracac ProcessedPage
 	public final Page getInsecurePage(String url) throws IOException, ExecutionException, TimeoutException {
 		final WebRequest req = insecurePageInitialization(url);
+		final int timeout = getDeadline().limit(taskParams.getPageTimeoutMillis());
 		long processingTime = System.currentTimeMillis();
-		ExecutorService ex = Executors.newSingleThreadExecutor();
-		Future<Page> f = ex.submit(new Callable<Page>() {
+		FetchExecutor.Fetch<Page> f = FetchExecutor.getInstance().submit(new Callable<Page>() {
 			@Override
 			public Page call() throws IOException {
 				ctx.addTimeAttribute("download_time_start", System.currentTimeMillis());
@@ -932,36 +991,35 @@ public class WebClientWorker implements Runnable {
 		Page page = null;
 		try {
 			if (!interruptProcessing){
-				if (taskParams.getPageTimeoutMillis() <= 0) {
-					page = f.get();
-				}
-				else {
-					page = f.get(taskParams.getPageTimeoutMillis(), TimeUnit.MILLISECONDS);
-				}
+				page = f.await(timeout);
 			}
 		} catch (InterruptedException e) {
 			LOGGER.warn("Gathering {} interrupted", url);
 			Thread.currentThread().interrupt();
 		} catch (java.util.concurrent.TimeoutException e) {
-			throw new TimeoutException("Timeout when gathering (" + taskParams.getPageTimeoutMillis() + " ms):" + url, e);
+			throw new TimeoutException("Timeout when gathering (" + timeout + " ms):" + url, e);
 		} finally {
-			if (f != null) {
-				f.cancel(true);
-			}
-			closeExecutorWithJSDisabled(ex);
+			abortUnfinishedFetch(f);
 		}
 		processingTime = System.currentTimeMillis() - processingTime;
 		insecurePagePostprocessing(url, processingTime, page);
 		return page;
 	}
 
+	/**
+	 * Downloads a resource without creating a page for it. It may be called by many threads at once, each request is
+	 * sent through an HTTP connection used by no other thread. Redirects are not followed.
+	 */
+	public final WebResponse getResourceResponse(String url) throws IOException, TimeoutException {
+		final WebRequest req = insecurePageInitialization(url);
+		return resourceConnections.load(req);
+	}
+
 	private WebRequest insecurePageInitialization(String url) throws TimeoutException, MalformedURLException {
-		if (interruptProcessing) {
+		if (interruptProcessing || getDeadline().isExpired()) {
 			throw new TimeoutException("Overall time limit exceeded url:" + url);
 		}
 
-		wc.getOptions().setUseInsecureSSL(true);
-
 		final WebRequest req = new WebRequest(UrlUtils.toUrlUnsafe(url));
 
 		// work-around for bug with deflated content.
@@ -972,9 +1030,7 @@ public class WebClientWorker implements Runnable {
 
 	private void insecurePagePostprocessing(String url, long sTime, Page p) throws TimeoutException, IOException {
 		if (interruptProcessing || Thread.currentThread().isInterrupted()) {
-			if (wc.getWebConnection() instanceof HttpWebConnection) {
-				((HttpWebConnection) wc.getWebConnection()).shutdown();
-			}
+			WebClientPool.shutdownConnections(wc);
 			throw new TimeoutException("Overall processing time limit exceeded");
 		}
 
@@ -1013,6 +1069,16 @@ public class WebClientWorker implements Runnable {
 		}
 	}
 
+	/**
+	 * Closes connections of the client, so that a thread blocked on socket I/O gets an exception.
+	 */
+	public final void abortConnections() {
+		WebClient client = wc;
+		if (client != null && WebClientPool.shutdownConnections(client)) {
+			LOGGER.debug("Connections aborted.");
+		}
+	}
+
 	public final void setContextData(WebClientWorker webClientWorker, ServiceParameters params, String urlForProcessing) {
 		ctx.setServiceParams(params);
 		ctx.setWebClientWorker(webClientWorker);
@@ -1027,8 +1093,7 @@ public class WebClientWorker implements Runnable {
 			StorageException {
 		try {
 			RequestWrapper requestWrapper = composeRequest(processedPage);
-			long referenceId = ctx.saveInDataStore(requestWrapper);
-			ctx.addReference("http_request", referenceId);
+			ctx.saveInDataStoreAsync("http_request", requestWrapper);
 			String referrer = ctx.getCurrentContextServiceData().getInputReferrer();
 			if (referrer != null) {
 				ctx.addAttribute("referrer", referrer);
@@ -1073,13 +1138,13 @@ public class WebClientWorker implements Runnable {
 		ctx.addAttribute("http_code", processedPage.getResponseCode());
 		ctx.addAttribute(HTML_STRING, processedPage.isHtml());
 		if (processedPage.isHtml()) {
-			if (taskParams.isSaveHtml()) {
-				InputStream content = null;
+			if (taskParams.isSaveHtml() && getDeadline().isExpired()) {
+				ctx.addWarning("html_source not saved: task time limit exceeded");
+			} else if (taskParams.isSaveHtml()) {
 				ctx.addTimeAttribute("download_time_start", System.currentTimeMillis());
-				content = processedPage.getContentAsStream();
-				long referenceId = ctx.saveInDataStore(content);
+				InputStream content = processedPage.getDetachedContentStream();
+				saveContentAsync("html_source", content, taskParams.getHtmlSizeLimit(), processedPage.isTruncated());
 				ctx.addTimeAttribute("download_time_end", System.currentTimeMillis());
-				ctx.addReference("html_source", referenceId);
 			}
 			handleCookies();
 		} else {
@@ -1089,6 +1154,70 @@ public class WebClientWorker implements Runnable {
 		}
 	}
 
+	/**
+	 * Saves content cut at given limit. Content cut here or while downloading is marked with "truncated" attribute and
+	 * the hash of the saved prefix ("truncated_hash").
+	 *
+	 * @param limit Maximum bytes to be saved, 0 means no limit.
+	 * @param downloadTruncated Whether the body was cut at the byte budget of the task.
+	 */
+	private long saveContent(InputStream content, int limit, boolean downloadTruncated) throws StorageException {
+		if (content == null || !downloadTruncated && !exceedsLimit(content, limit)) {
+			return ctx.saveContentInDataStore(content);
+		}
+		LimitedInputStream limited = new LimitedInputStream(content, limit);
+		long referenceId = ctx.saveContentInDataStore(limited);
+		markTruncated(ctx.getCurrentContext(), limited, downloadTruncated);
+		return referenceId;
+	}
+
+	/**
+	 * Saves content like {@link #saveContent(InputStream, int, boolean)}, but off the browsing thread. The reference
+	 * and truncation attributes are added to the current context when it is flushed.
+	 */
+	private void saveContentAsync(String name, InputStream content, int limit, final boolean downloadTruncated) {
+		if (content == null || !downloadTruncated && !exceedsLimit(content, limit)) {
+			ctx.addPendingReference(new PendingReference(name, ctx.saveContentInDataStoreAsync(content)));
+			return;
+		}
+		final LimitedInputStream limited = new LimitedInputStream(content, limit);
+		ctx.addPendingReference(new PendingReference(name, ctx.saveContentInDataStoreAsync(limited)) {
+			@Override
+			protected void resolved(ObjectTreeNode node, long referenceId) {
+				super.resolved(node, referenceId);
+				markTruncated(node, limited, downloadTruncated);
+			}
+		});
+	}
+
+	private static void markTruncated(ObjectTreeNode node, LimitedInputStream limited, boolean downloadTruncated) {
+		if (downloadTruncated || limited.isTruncated()) {
+			LOGGER.info("Content truncated at {} bytes", limited.getCount());
+			node.addAttribute("truncated", true);
+			node.addAttribute("truncated_hash", limited.getHash());
+		}
+	}
+
+	/**
+	 * @return False only if the content is known to fit in the limit, so it can be saved without copying.
+	 */
+	private static boolean exceedsLimit(InputStream content, int limit) {
+		if (limit <= 0) {
+			return false;
+		}
+		try {
+			if (content instanceof FileContentStream) {
+				return ((FileContentStream) content).size() > limit;
+			}
+		} catch (IOException e) {
+			return true;
+		}
+		if (content instanceof PooledContent.ContentStream) {
+			return ((PooledContent.ContentStream) content).getContent().size() > limit;
+		}
+		return true;
+	}
+
 	private RequestWrapper composeRequest(ProcessedPage processedPage) throws RequiredParameterMissingException {
 		if (processedPage == null) {
 			return new RequestWrapper(ctx.getCurrentContextServiceData().getInputUrlOriginal(), ctx.getCurrentContextServiceData().getUrlForProcessing(), null);
@@ -1128,7 +1257,7 @@ public class WebClientWorker implements Runnable {
 		long downloadTimeStart = System.currentTimeMillis();
 		InputStream contentStream = processedPage.getContentAsStream();
 		String contentType = processedPage.getContentType();
-		long savedContentId = ctx.saveInDataStore(contentStream);
+		long savedContentId = saveContent(contentStream, 0, processedPage.isTruncated());
 		long downloadTimeEnd = System.currentTimeMillis();
 
 		// Process PDF, SWF or other file.
@@ -1152,6 +1281,20 @@ public class WebClientWorker implements Runnable {
 		}
 	}
 
+	/**
+	 * @return UTF-8 bytes of script sources kept for js_context_list.
+	 */
+	public final long getJsCapturedBytes() {
+		return scriptInterceptor.getCapturedBytes();
+	}
+
+	/**
+	 * @return Rhino instructions executed by the scripts of the task.
+	 */
+	public final long getJsInstructionsUsed() {
+		return jsBudget.getUsed();
+	}
+
 	public final Map<String, Map<String, ScriptElement>> getLaunchedScripts(){
 		return scriptInterceptor.getSourcesByOrigin();
 	}
@@ -1161,6 +1304,77 @@ public class WebClientWorker implements Runnable {
 		scriptInterceptor.disableProcessing();
 	}
 
+	/**
+	 * Returns WebClient to the pool. Client is discarded if processing was interrupted, as its state is unknown then.
+	 */
+	public final void releaseWebClient() {
+		if (wc == null) {
+			return;
+		}
+		if (windowListener != null) {
+			wc.removeWebWindowListener(windowListener);
+			windowListener = null;
+		}
+		if (quiescenceDetector != null) {
+			wc.removeWebWindowListener(quiescenceDetector);
+		}
+		VirtualClock.detach(wc);
+		if (responseCache != null) {
+			wc.setWebConnection(pooledConnection);
+			responseCache.close();
+		}
+		if (resourceConnections != null) {
+			resourceConnections.shutdown();
+			resourceConnections = null;
+		}
+		if (pooledConnection instanceof TempFileWebConnection) {
+			((TempFileWebConnection) pooledConnection).setTempDir(null);
+			((TempFileWebConnection) pooledConnection).setByteBudget(null);
+		}
+		if (interruptProcessing) {
+			WebClientPool.getInstance().discard(wc);
+		} else {
+			WebClientPool.getInstance().release(wc);
+		}
+		wc = null;
+	}
+
+	/**
+	 * Removes the temp directory of the task with all downloaded files. Must be called after the content of the
+	 * processed pages has been saved.
+	 */
+	public final void removeTempFiles() {
+		if (ctx != null) {
+			// asynchronous writes may still read from the files
+			ctx.awaitPendingWrites();
+		}
+		if (tempDir != null) {
+			tempDir.close();
+			tempDir = null;
+		}
+	}
+
+	/**
+	 * @return Number of requests of the task served from the response cache.
+	 */
+	public final int getResponseCacheHits() {
+		return responseCache != null ? responseCache.getHits() : 0;
+	}
+
+	/**
+	 * @return Download budget of the task.
+	 */
+	public final TaskByteBudget getByteBudget() {
+		return ctx != null ? ctx.getByteBudget() : TaskByteBudget.unlimited();
+	}
+
+	/**
+	 * @return Time budget of the task.
+	 */
+	public final TaskDeadline getDeadline() {
+		return ctx != null ? ctx.getDeadline() : TaskDeadline.unlimited();
+	}
+
 	public final WebClient getWc() {
 		return wc;
 	}
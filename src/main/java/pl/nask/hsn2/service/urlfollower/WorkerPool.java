@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+/**
+ * Pool of threads running WebClientWorkers. A worker which can't be stopped may be abandoned, in which case the pool
+ * gets an extra thread until the abandoned one finally returns. In virtual mode threads are not pooled, every worker
+ * gets a virtual thread of its own.
+ */
+public final class WorkerPool {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WorkerPool.class);
+	public static final int DEFAULT_THREADS = 30;
+	private static final Map<ExecutionMode, WorkerPool> INSTANCES = new EnumMap<ExecutionMode, WorkerPool>(ExecutionMode.class);
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadFactory threadFactory;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger abandonedRunning = new AtomicInteger();
+
+	static {
+		ServiceMetrics.registerGauge("worker.active", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getInstance().running.get();
+			}
+		});
+		ServiceMetrics.registerGauge("worker.abandoned.running", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getInstance().abandonedRunning.get();
+			}
+		});
+	}
+
+	WorkerPool(int threads, ExecutionMode mode) {
+		threadFactory = mode.newThreadFactory("WebClientWorker-");
+		if (mode == ExecutionMode.VIRTUAL) {
+			executor = null;
+		} else {
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+			executor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * Returns pool for the current execution mode.
+	 */
+	public static synchronized WorkerPool getInstance() {
+		ExecutionMode mode = ExecutionMode.current();
+		WorkerPool pool = INSTANCES.get(mode);
+		if (pool == null) {
+			pool = new WorkerPool(Integer.getInteger("webclient.worker.threads", DEFAULT_THREADS), mode);
+			INSTANCES.put(mode, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs worker on a pooled thread. Throwables escaping the worker are passed to the handler, as it would be done
+	 * for a dedicated thread.
+	 */
+	public Job submit(Runnable worker, UncaughtExceptionHandler handler) {
+		Job job = new Job(worker, handler);
+		if (executor != null) {
+			executor.execute(job);
+		} else {
+			threadFactory.newThread(job).start();
+		}
+		return job;
+	}
+
+	private synchronized void resize(int delta) {
+		if (executor == null) {
+			return;
+		}
+		int size = executor.getMaximumPoolSize() + delta;
+		if (delta > 0) {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+		} else {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		}
+	}
+
+	public final class Job implements Runnable {
+		private final Runnable worker;
+		private final UncaughtExceptionHandler handler;
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private volatile Thread thread;
+		private volatile boolean abandoned;
+
+		private Job(Runnable worker, UncaughtExceptionHandler handler) {
+			this.worker = worker;
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			running.incrementAndGet();
+			try {
+				worker.run();
+			} catch (Throwable e) {
+				handler.uncaughtException(thread, e);
+			} finally {
+				running.decrementAndGet();
+				synchronized (this) {
+					thread = null;
+					// interruption was meant for this job only
+					Thread.interrupted();
+					finished.countDown();
+					if (abandoned) {
+						abandonedRunning.decrementAndGet();
+						resize(-1);
+						LOGGER.info("Abandoned worker has finished, thread returned to the pool");
+					}
+				}
+			}
+		}
+
+		public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+			return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public synchronized void interrupt() {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+
+		/**
+		 * Gives up on the job. The pool starts an extra thread to keep its capacity while this one is stuck (not needed
+		 * in virtual mode).
+		 */
+		public synchronized void abandon() {
+			if (abandoned || finished.getCount() == 0) {
+				return;
+			}
+			if (thread == null && executor != null && executor.remove(this)) {
+				// never started, nothing to reclaim
+				finished.countDown();
+				return;
+			}
+			abandoned = true;
+			abandonedRunning.incrementAndGet();
+			resize(1);
+			Thread t = thread;
+			LOGGER.warn("Worker thread {} abandoned", t == null ? "(starting)" : t.getName());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+/**
+ * Stops worker which exceeded processing time limit. Each step is more drastic than the previous one and is taken only
+ * if the worker didn't finish within the grace period after the previous step.
+ */
+public class WorkerWatchdog {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WorkerWatchdog.class);
+	public static final long DEFAULT_GRACE_PERIOD = 2000;
+
+	enum Escalation {
+		SOFT_STOP, JS_SHUTDOWN, SOCKET_ABORT, ABANDON
+	}
+
+	private final long gracePeriod;
+
+	public WorkerWatchdog() {
+		this(Long.getLong("webclient.worker.gracePeriod", DEFAULT_GRACE_PERIOD));
+	}
+
+	public WorkerWatchdog(long gracePeriod) {
+		this.gracePeriod = gracePeriod;
+	}
+
+	/**
+	 * @return True if worker has finished, false if it had to be abandoned.
+	 */
+	public final boolean stop(WebClientWorker worker, WorkerPool.Job job) throws InterruptedException {
+		for (Escalation escalation : Escalation.values()) {
+			ServiceMetrics.increment("worker.escalation." + escalation.name().toLowerCase(Locale.ENGLISH));
+			LOGGER.debug("Stopping worker: {}", escalation);
+			switch (escalation) {
+			case SOFT_STOP:
+				worker.stopProcessing();
+				break;
+			case JS_SHUTDOWN:
+				worker.closeAllWindows();
+				break;
+			case SOCKET_ABORT:
+				worker.abortConnections();
+				job.interrupt();
+				break;
+			default:
+				job.abandon();
+				return false;
+			}
+			if (job.awaitTermination(gracePeriod)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.ServiceConnector;
+import pl.nask.hsn2.StorageException;
+
+/**
+ * Saves data in data store off the browsing thread, so that the next page of the task is processed while the previous
+ * one is stored. Writes of all tasks share "webclient.datastore.async.threads" threads (default 4) and a queue of
+ * "webclient.datastore.async.queue" writes (default 32). When the queue is full, the write is made by the calling
+ * thread, so the data waiting to be stored stays bounded.
+ */
+public final class AsyncDataStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDataStore.class);
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_QUEUE = 32;
+	private static final ThreadPoolExecutor WRITERS = newExecutor(Integer.getInteger("webclient.datastore.async.threads",
+			DEFAULT_THREADS), Integer.getInteger("webclient.datastore.async.queue", DEFAULT_QUEUE));
+
+	private final ServiceConnector connector;
+	private final long jobId;
+	private final Queue<Future<Long>> pending = new ConcurrentLinkedQueue<Future<Long>>();
+
+	static {
+		ServiceMetrics.registerGauge("datastore.async.queued", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return WRITERS.getQueue().size();
+			}
+		});
+	}
+
+	public AsyncDataStore(ServiceConnector connector, long jobId) {
+		this.connector = connector;
+		this.jobId = jobId;
+	}
+
+	static ThreadPoolExecutor newExecutor(int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AsyncDataStore-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						ServiceMetrics.increment("datastore.async.caller_runs");
+						if (!executor.isShutdown()) {
+							r.run();
+						}
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Saves serialized data.
+	 */
+	public Future<Long> save(final byte[] data) {
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() throws StorageException {
+				return DataStoreHelper.saveInDataStore(connector, jobId, data);
+			}
+		});
+	}
+
+	/**
+	 * Saves serialized message, the write takes over the reference to the content.
+	 */
+	public Future<Long> save(final PooledContent message) {
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() throws StorageException {
+				return WebClientDataStoreHelper.save(connector, jobId, message);
+			}
+		});
+	}
+
+	/**
+	 * Saves content with {@link DataStoreDedup}. The write takes over the stream and closes it when done.
+	 */
+	public Future<Long> saveContent(final InputStream content) {
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() throws StorageException {
+				try {
+					return DataStoreDedup.saveInDataStore(connector, jobId, content);
+				} finally {
+					IOUtils.closeQuietly(content);
+				}
+			}
+		});
+	}
+
+	private Future<Long> submit(Callable<Long> write) {
+		Future<Long> future = WRITERS.submit(write);
+		pending.add(future);
+		ServiceMetrics.increment("datastore.async.writes");
+		return future;
+	}
+
+	/**
+	 * Waits for all writes of the task, i.e. before the files the writes read from are removed. Failures are reported
+	 * by the futures of the writes.
+	 */
+	public void awaitAll() {
+		boolean interrupted = false;
+		Future<Long> future;
+		while ((future = pending.peek()) != null) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				continue;
+			} catch (ExecutionException e) {
+				LOGGER.debug("Data store write failed", e.getCause());
+			}
+			pending.remove(future);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return Reference id saved by an asynchronous write, waits for the write if needed.
+	 * @throws StorageException if the write failed or waiting has been interrupted.
+	 */
+	public static long get(Future<Long> referenceId) throws StorageException {
+		try {
+			return referenceId.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for data store", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof StorageException) {
+				throw (StorageException) e.getCause();
+			}
+			throw new StorageException("Error while saving in data store", e.getCause());
+		}
+	}
+}
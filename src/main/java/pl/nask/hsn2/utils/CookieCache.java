@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.ServiceConnector;
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.wrappers.CookieWrapper;
+
+/**
+ * Cookie lists read from or saved in data store, so that the same list is not downloaded and parsed again. A cache
+ * instance is used by a single task; lists are also shared by tasks of the same job, which get the cookies saved by
+ * their parent as "referrer_cookie". Lists of the most recent jobs ("webclient.cookieCache.jobs") are kept, up to
+ * "webclient.cookieCache.entries" least recently used lists per job.
+ */
+public final class CookieCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CookieCache.class);
+	public static final int DEFAULT_JOBS = 64;
+	public static final int DEFAULT_ENTRIES = 256;
+	private static final int MAX_JOBS = Integer.getInteger("webclient.cookieCache.jobs", DEFAULT_JOBS);
+	private static final int MAX_ENTRIES = Integer.getInteger("webclient.cookieCache.entries", DEFAULT_ENTRIES);
+	private static final Map<Long, Map<Long, Set<CookieWrapper>>> JOBS = new LinkedHashMap<Long, Map<Long, Set<CookieWrapper>>>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Map<Long, Set<CookieWrapper>>> eldest) {
+			return size() > MAX_JOBS;
+		}
+	};
+
+	/**
+	 * Reads cookie list from data store.
+	 */
+	interface Loader {
+		Set<CookieWrapper> load(long referenceId) throws StorageException;
+	}
+
+	private final long jobId;
+	private final Loader loader;
+	private final Map<Long, Set<CookieWrapper>> task = new HashMap<Long, Set<CookieWrapper>>();
+
+	public CookieCache(final ServiceConnector connector, final long jobId) {
+		this(jobId, new Loader() {
+			@Override
+			public Set<CookieWrapper> load(long referenceId) throws StorageException {
+				return WebClientDataStoreHelper.getCookiesFromDataStore(connector, jobId, referenceId);
+			}
+		});
+	}
+
+	CookieCache(long jobId, Loader loader) {
+		this.jobId = jobId;
+		this.loader = loader;
+	}
+
+	/**
+	 * @return Copy of the cookie list, which may be modified by the caller, or null if the list could not be read.
+	 */
+	public Set<CookieWrapper> get(long referenceId) throws StorageException {
+		Set<CookieWrapper> cookies = task.get(referenceId);
+		if (cookies != null) {
+			ServiceMetrics.increment("cookie.cache.task.hit");
+		} else {
+			cookies = lookup(jobId, referenceId);
+			if (cookies != null) {
+				ServiceMetrics.increment("cookie.cache.job.hit");
+			} else {
+				ServiceMetrics.increment("cookie.cache.miss");
+				Set<CookieWrapper> loaded = loader.load(referenceId);
+				if (loaded == null) {
+					return null;
+				}
+				cookies = Collections.unmodifiableSet(new HashSet<CookieWrapper>(loaded));
+				register(jobId, referenceId, cookies);
+			}
+			task.put(referenceId, cookies);
+		}
+		return new HashSet<CookieWrapper>(cookies);
+	}
+
+	/**
+	 * Adds the list which has just been saved in data store.
+	 */
+	public void put(long referenceId, Set<CookieWrapper> cookies) {
+		Set<CookieWrapper> copy = Collections.unmodifiableSet(new HashSet<CookieWrapper>(cookies));
+		task.put(referenceId, copy);
+		register(jobId, referenceId, copy);
+		LOGGER.debug("Cookie list {} cached for job {}", referenceId, jobId);
+	}
+
+	private static Set<CookieWrapper> lookup(long jobId, long referenceId) {
+		synchronized (JOBS) {
+			Map<Long, Set<CookieWrapper>> job = JOBS.get(jobId);
+			return job != null ? job.get(referenceId) : null;
+		}
+	}
+
+	private static void register(long jobId, long referenceId, Set<CookieWrapper> cookies) {
+		synchronized (JOBS) {
+			Map<Long, Set<CookieWrapper>> job = JOBS.get(jobId);
+			if (job == null) {
+				job = new LinkedHashMap<Long, Set<CookieWrapper>>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<Long, Set<CookieWrapper>> eldest) {
+						return size() > MAX_ENTRIES;
+					}
+				};
+				JOBS.put(jobId, job);
+			}
+			job.put(referenceId, cookies);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.ServiceConnector;
+import pl.nask.hsn2.StorageException;
+
+/**
+ * Collects data store writes and sends them together. The data store has no bulk upload, so the writes of a batch are
+ * pipelined: up to "webclient.datastore.pipeline" requests of all batches are in flight at the same time, instead of
+ * waiting for every round-trip in turn.
+ */
+public final class DataStoreBatch {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreBatch.class);
+	public static final int DEFAULT_PIPELINE = 8;
+	private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+			Integer.getInteger("webclient.datastore.pipeline", DEFAULT_PIPELINE), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DataStoreWriter-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final ServiceConnector connector;
+	private final long jobId;
+	private final List<Callable<Long>> writes = new ArrayList<Callable<Long>>();
+	private final List<PooledContent> messages = new ArrayList<PooledContent>();
+
+	public DataStoreBatch(ServiceConnector connector, long jobId) {
+		this.connector = connector;
+		this.jobId = jobId;
+	}
+
+	/**
+	 * Adds data to be saved.
+	 *
+	 * @return Position of the reference id in the result of {@link #flush()}.
+	 */
+	public int add(final byte[] data) {
+		writes.add(new Callable<Long>() {
+			@Override
+			public Long call() throws StorageException {
+				return DataStoreHelper.saveInDataStore(connector, jobId, data);
+			}
+		});
+		return writes.size() - 1;
+	}
+
+	/**
+	 * Adds serialized message to be saved, see {@link WebClientDataStoreHelper#save(ServiceConnector, long, PooledContent)}.
+	 * The batch takes over the reference to the content.
+	 *
+	 * @return Position of the reference id in the result of {@link #flush()}.
+	 */
+	public int add(final PooledContent message) {
+		messages.add(message);
+		writes.add(new Callable<Long>() {
+			@Override
+			public Long call() throws StorageException {
+				return WebClientDataStoreHelper.save(connector, jobId, message);
+			}
+		});
+		return writes.size() - 1;
+	}
+
+	/**
+	 * Adds content to be saved with {@link DataStoreDedup}. The stream is read when the batch is flushed.
+	 *
+	 * @return Position of the reference id in the result of {@link #flush()}.
+	 */
+	public int add(final InputStream content) {
+		writes.add(new Callable<Long>() {
+			@Override
+			public Long call() throws StorageException {
+				return DataStoreDedup.saveInDataStore(connector, jobId, content);
+			}
+		});
+		return writes.size() - 1;
+	}
+
+	public int size() {
+		return writes.size();
+	}
+
+	/**
+	 * Sends all writes added since the last flush and waits for them.
+	 *
+	 * @return Reference ids, in the order the writes were added.
+	 * @throws StorageException if any of the writes failed, after all of them have finished.
+	 */
+	public long[] flush() throws StorageException {
+		List<Callable<Long>> pending = new ArrayList<Callable<Long>>(writes);
+		writes.clear();
+		// released by the writes
+		messages.clear();
+		long[] referenceIds = new long[pending.size()];
+		if (pending.size() == 1) {
+			referenceIds[0] = call(pending.get(0));
+			return referenceIds;
+		}
+		List<Future<Long>> futures = new ArrayList<Future<Long>>(pending.size());
+		for (Callable<Long> write : pending) {
+			futures.add(WRITERS.submit(write));
+		}
+		StorageException failure = null;
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				referenceIds[i] = get(futures.get(i));
+			} catch (InterruptedException e) {
+				interrupted = true;
+				i--;
+			} catch (StorageException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		ServiceMetrics.add("datastore.batch.writes", pending.size());
+		ServiceMetrics.increment("datastore.batch.flushes");
+		LOGGER.debug("Saved {} items in data store", pending.size());
+		return referenceIds;
+	}
+
+	/**
+	 * Drops writes added since the last flush, releasing the messages owned by the batch. Does nothing after
+	 * {@link #flush()}, so it can be called from a finally block.
+	 */
+	public void discard() {
+		for (PooledContent message : messages) {
+			message.release();
+		}
+		messages.clear();
+		writes.clear();
+	}
+
+	private static long call(Callable<Long> write) throws StorageException {
+		try {
+			return write.call();
+		} catch (StorageException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException("Error while saving in data store", e);
+		}
+	}
+
+	private static long get(Future<Long> future) throws InterruptedException, StorageException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof StorageException) {
+				throw (StorageException) e.getCause();
+			}
+			throw new StorageException("Error while saving in data store", e.getCause());
+		}
+	}
+}
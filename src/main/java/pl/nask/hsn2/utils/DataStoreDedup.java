@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.ServiceConnector;
+import pl.nask.hsn2.StorageException;
+
+/**
+ * Content-addressed uploads to the data store. Content is hashed while it is read and identical content saved again
+ * in the same job gets the reference of the first upload. Indexes of the most recent jobs
+ * ("webclient.dedup.jobs") are kept, each with up to "webclient.dedup.entries" hashes.
+ */
+public final class DataStoreDedup {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreDedup.class);
+	public static final int DEFAULT_JOBS = 64;
+	public static final int DEFAULT_ENTRIES = 10000;
+	public static final int DEFAULT_SPILL_SIZE = 1024 * 1024;
+	private static final int MAX_JOBS = Integer.getInteger("webclient.dedup.jobs", DEFAULT_JOBS);
+	private static final int MAX_ENTRIES = Integer.getInteger("webclient.dedup.entries", DEFAULT_ENTRIES);
+	private static final int SPILL_SIZE = Integer.getInteger("webclient.dedup.spillSize", DEFAULT_SPILL_SIZE);
+	private static final Map<Long, Map<String, Long>> JOBS = new LinkedHashMap<Long, Map<String, Long>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Map<String, Long>> eldest) {
+			return size() > MAX_JOBS;
+		}
+	};
+
+	/**
+	 * Uploads content to the data store.
+	 */
+	interface Uploader {
+		long upload(InputStream content) throws StorageException;
+	}
+
+	private DataStoreDedup() {
+		// utility class
+	}
+
+	/**
+	 * Saves content in the data store unless the same content has already been saved in the job.
+	 *
+	 * @return Reference id of the content.
+	 */
+	public static long saveInDataStore(final ServiceConnector connector, final long jobId, InputStream content) throws StorageException {
+		return save(jobId, content, new Uploader() {
+			@Override
+			public long upload(InputStream in) throws StorageException {
+				return DataStoreHelper.saveInDataStore(connector, jobId, in);
+			}
+		});
+	}
+
+	static long save(long jobId, InputStream content, Uploader uploader) throws StorageException {
+		if (content instanceof FileContentStream) {
+			return saveFile(jobId, (FileContentStream) content, uploader);
+		}
+		if (content instanceof PooledContent.ContentStream) {
+			return savePooled(jobId, (PooledContent.ContentStream) content, uploader);
+		}
+		MessageDigest digest = newDigest();
+		MemoryBuffer memory = new MemoryBuffer();
+		TaskTempDir spillDir = null;
+		File spillFile = null;
+		OutputStream out = memory;
+		try {
+			byte[] buffer = new byte[8192];
+			long size = 0;
+			int read;
+			while ((read = content.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+				size += read;
+				if (spillFile == null && size > SPILL_SIZE) {
+					// under the temp root of the tasks, so a file left by a crash is removed on startup
+					spillDir = TaskTempDir.create();
+					spillFile = spillDir.createFile("hsn2-upload");
+					out = new FileOutputStream(spillFile);
+					memory.writeTo(out);
+					memory = null;
+				}
+			}
+			out.close();
+			if (spillFile != null) {
+				spillDir.written(spillFile);
+			}
+			String hash = Hex.encodeHexString(digest.digest()) + ":" + size;
+
+			Long referenceId = lookup(jobId, hash);
+			if (referenceId != null) {
+				return reuse(jobId, referenceId, size);
+			}
+			InputStream upload = spillFile != null ? new FileContentStream(spillFile) : memory.newInputStream();
+			try {
+				referenceId = uploader.upload(upload);
+			} finally {
+				IOUtils.closeQuietly(upload);
+			}
+			return uploaded(jobId, hash, referenceId, size);
+		} catch (IOException e) {
+			throw new StorageException("Error reading content to be saved in data store", e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			if (spillDir != null) {
+				spillDir.close();
+			}
+		}
+	}
+
+	/**
+	 * Content already in a file is hashed and uploaded straight from the file, without copying it.
+	 */
+	private static long saveFile(long jobId, FileContentStream content, Uploader uploader) throws StorageException {
+		try {
+			MessageDigest digest = newDigest();
+			content.mark(0);
+			return saveDigested(jobId, content, digest, content.digest(digest), uploader);
+		} catch (IOException e) {
+			throw new StorageException("Error reading content to be saved in data store", e);
+		}
+	}
+
+	/**
+	 * Content already in pooled buffers is hashed and uploaded straight from the buffers.
+	 */
+	private static long savePooled(long jobId, PooledContent.ContentStream content, Uploader uploader) throws StorageException {
+		try {
+			MessageDigest digest = newDigest();
+			content.mark(0);
+			return saveDigested(jobId, content, digest, content.digest(digest), uploader);
+		} catch (IOException e) {
+			throw new StorageException("Error reading content to be saved in data store", e);
+		}
+	}
+
+	private static long saveDigested(long jobId, InputStream content, MessageDigest digest, long size, Uploader uploader)
+			throws StorageException, IOException {
+		String hash = Hex.encodeHexString(digest.digest()) + ":" + size;
+		Long referenceId = lookup(jobId, hash);
+		if (referenceId != null) {
+			return reuse(jobId, referenceId, size);
+		}
+		content.reset();
+		ServiceMetrics.add("datastore.upload.zerocopy.bytes", size);
+		return uploaded(jobId, hash, uploader.upload(content), size);
+	}
+
+	private static long reuse(long jobId, long referenceId, long size) {
+		ServiceMetrics.increment("datastore.dedup.hit");
+		ServiceMetrics.add("datastore.dedup.bytes.saved", size);
+		LOGGER.debug("Content already saved in job {} as {}", jobId, referenceId);
+		return referenceId;
+	}
+
+	private static long uploaded(long jobId, String hash, long referenceId, long size) {
+		ServiceMetrics.add("datastore.upload.bytes", size);
+		register(jobId, hash, referenceId);
+		return referenceId;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		}
+	}
+
+	private static Long lookup(long jobId, String hash) {
+		synchronized (JOBS) {
+			Map<String, Long> job = JOBS.get(jobId);
+			return job != null ? job.get(hash) : null;
+		}
+	}
+
+	private static void register(long jobId, String hash, long referenceId) {
+		synchronized (JOBS) {
+			Map<String, Long> job = JOBS.get(jobId);
+			if (job == null) {
+				job = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+						return size() > MAX_ENTRIES;
+					}
+				};
+				JOBS.put(jobId, job);
+			}
+			job.put(hash, referenceId);
+		}
+	}
+
+	/**
+	 * Buffer read back without copying its array.
+	 */
+	private static final class MemoryBuffer extends ByteArrayOutputStream {
+		InputStream newInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers of equal size ("webclient.bufferPool.chunkSize") used to keep downloaded content off the
+ * heap. Up to "webclient.bufferPool.maxIdle" bytes of released buffers are kept for reuse, and no more than
+ * "webclient.bufferPool.maxDirect" bytes of direct buffers are handed out; above it heap buffers are returned.
+ */
+public final class DirectBufferPool {
+	public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+	public static final long DEFAULT_MAX_IDLE = 64L * 1024 * 1024;
+	public static final long DEFAULT_MAX_DIRECT = 256L * 1024 * 1024;
+	private static final DirectBufferPool INSTANCE = new DirectBufferPool(Integer.getInteger("webclient.bufferPool.chunkSize",
+			DEFAULT_CHUNK_SIZE), Long.getLong("webclient.bufferPool.maxIdle", DEFAULT_MAX_IDLE), Long.getLong(
+			"webclient.bufferPool.maxDirect", DEFAULT_MAX_DIRECT));
+
+	private final int chunkSize;
+	private final int maxIdle;
+	private final long maxDirect;
+	private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicLong directBytes = new AtomicLong();
+
+	static {
+		ServiceMetrics.registerGauge("buffer.pool.idle.bytes", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return (long) INSTANCE.getIdleCount() * INSTANCE.getChunkSize();
+			}
+		});
+		ServiceMetrics.registerGauge("buffer.pool.direct.bytes", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return INSTANCE.getDirectBytes();
+			}
+		});
+	}
+
+	DirectBufferPool(int chunkSize, long maxIdle, long maxDirect) {
+		this.chunkSize = chunkSize;
+		this.maxIdle = (int) Math.min(maxIdle / chunkSize, Integer.MAX_VALUE);
+		this.maxDirect = maxDirect;
+	}
+
+	public static DirectBufferPool getInstance() {
+		return INSTANCE;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/**
+	 * @return Bytes of direct buffers handed out and kept idle. Buffers which were never released are included.
+	 */
+	public long getDirectBytes() {
+		return directBytes.get();
+	}
+
+	/**
+	 * Returns an empty buffer of chunk size, taken from the pool if possible.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = idle.poll();
+		if (buffer != null) {
+			idleCount.decrementAndGet();
+			ServiceMetrics.increment("buffer.pool.reused");
+			buffer.clear();
+			return buffer;
+		}
+		if (directBytes.addAndGet(chunkSize) > maxDirect) {
+			directBytes.addAndGet(-chunkSize);
+			ServiceMetrics.increment("buffer.pool.heap");
+			return ByteBuffer.allocate(chunkSize);
+		}
+		ServiceMetrics.increment("buffer.pool.allocated");
+		return ByteBuffer.allocateDirect(chunkSize);
+	}
+
+	/**
+	 * Returns the buffer to the pool. The buffer must not be used by the caller anymore.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			return;
+		}
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.offer(buffer);
+		} else {
+			// pool is full, memory is freed when the buffer is collected
+			idleCount.decrementAndGet();
+			directBytes.addAndGet(-chunkSize);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Stream of downloaded content kept in a file. The file is read with positional channel reads, so code aware of this
+ * class can use the file directly ({@link #transferTo}, {@link #digest}) instead of copying the stream through the
+ * heap. No mapping is kept, so a closed stream does not hold the file on disk.
+ */
+public class FileContentStream extends InputStream {
+	private final File file;
+	private final FileChannel channel;
+	private long position;
+	private long mark;
+
+	public FileContentStream(File file) throws IOException {
+		this.file = file;
+		channel = new FileInputStream(file).getChannel();
+	}
+
+	public final File getFile() {
+		return file;
+	}
+
+	public final long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public final int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+	}
+
+	@Override
+	public final int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = channel.read(ByteBuffer.wrap(b, off, len), position);
+		if (count > 0) {
+			position += count;
+		}
+		return count;
+	}
+
+	@Override
+	public final long skip(long n) throws IOException {
+		long count = Math.max(Math.min(n, channel.size() - position), 0);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public final int available() throws IOException {
+		return (int) Math.max(Math.min(channel.size() - position, Integer.MAX_VALUE), 0);
+	}
+
+	@Override
+	public final boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public final synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public final synchronized void reset() throws IOException {
+		position = mark;
+	}
+
+	/**
+	 * Updates the digest with the remaining content, read through a pooled direct buffer.
+	 *
+	 * @return Number of bytes digested.
+	 */
+	public final long digest(MessageDigest digest) throws IOException {
+		DirectBufferPool pool = DirectBufferPool.getInstance();
+		ByteBuffer buffer = pool.acquire();
+		try {
+			long digested = 0;
+			int count;
+			while ((count = channel.read(buffer, position)) > 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+				position += count;
+				digested += count;
+			}
+			return digested;
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Transfers the remaining content to the channel, using {@link FileChannel#transferTo} (sendfile where supported).
+	 *
+	 * @return Number of bytes transferred.
+	 */
+	public final long transferTo(WritableByteChannel target) throws IOException {
+		long size = channel.size();
+		long transferred = 0;
+		while (position < size) {
+			long count = channel.transferTo(position, size - position, target);
+			if (count <= 0) {
+				break;
+			}
+			position += count;
+			transferred += count;
+		}
+		return transferred;
+	}
+
+	@Override
+	public final void close() throws IOException {
+		channel.close();
+	}
+}
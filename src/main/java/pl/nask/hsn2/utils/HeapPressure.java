@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+/**
+ * Adjusts in-memory size limits to the current heap usage, so content goes to disk sooner when the heap is filling
+ * up.
+ */
+public final class HeapPressure {
+	/** Heap usage below which limits are not changed. */
+	private static final double LOW_USAGE = 0.5;
+	/** Heap usage at which limits reach their minimum. */
+	private static final double HIGH_USAGE = 0.9;
+	private static final int MIN_DIVISOR = 16;
+
+	private HeapPressure() {
+		// utility class
+	}
+
+	/**
+	 * @return Fraction of the maximum heap size currently used.
+	 */
+	public static double usage() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return (double) used / runtime.maxMemory();
+	}
+
+	/**
+	 * Returns the limit of content kept in memory, from given limit at low heap usage down to 1/16 of it when the heap
+	 * is nearly full.
+	 */
+	public static int spillThreshold(int limit) {
+		return spillThreshold(limit, usage());
+	}
+
+	static int spillThreshold(int limit, double usage) {
+		if (usage <= LOW_USAGE) {
+			return limit;
+		}
+		double pressure = Math.min(1, (usage - LOW_USAGE) / (HIGH_USAGE - LOW_USAGE));
+		double divisor = 1 + pressure * (MIN_DIVISOR - 1);
+		return (int) (limit / divisor);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Stream which ends after given number of bytes, reporting whether the underlying content was longer. SHA-256 of the
+ * bytes passed on is computed, so the prefix which has actually been stored can be identified.
+ */
+public class LimitedInputStream extends FilterInputStream {
+	private final long limit;
+	private final MessageDigest digest;
+	private long count;
+	private boolean truncated;
+
+	/**
+	 * @param limit Maximum number of bytes, values lower than 1 mean no limit.
+	 */
+	public LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit > 0 ? limit : Long.MAX_VALUE;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		}
+	}
+
+	private boolean limitReached() throws IOException {
+		if (count < limit) {
+			return false;
+		}
+		if (!truncated && in.read() != -1) {
+			truncated = true;
+		}
+		return true;
+	}
+
+	@Override
+	public final int read() throws IOException {
+		if (limitReached()) {
+			return -1;
+		}
+		int b = in.read();
+		if (b != -1) {
+			count++;
+			digest.update((byte) b);
+		}
+		return b;
+	}
+
+	@Override
+	public final int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (limitReached()) {
+			return -1;
+		}
+		int read = in.read(b, off, (int) Math.min(len, limit - count));
+		if (read > 0) {
+			count += read;
+			digest.update(b, off, read);
+		}
+		return read;
+	}
+
+	@Override
+	public final long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public final int available() throws IOException {
+		return (int) Math.min(in.available(), limit - count);
+	}
+
+	@Override
+	public final boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public final synchronized void mark(int readlimit) {
+		// not supported
+	}
+
+	@Override
+	public final synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * @return True if the stream ended at the limit while the underlying content was longer.
+	 */
+	public final boolean isTruncated() {
+		return truncated;
+	}
+
+	public final long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Hex encoded SHA-256 of the bytes read so far. Call once, after the stream has been read.
+	 */
+	public final String getHash() {
+		return Hex.encodeHexString(digest.digest());
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content kept in buffers taken from {@link DirectBufferPool}. The content is written once and then read by any
+ * number of streams. It is reference counted: the writer holds the first reference and other owners (i.e. caches)
+ * retain their own ones; buffers go back to the pool when the last reference is released. Streams hold no reference,
+ * as HtmlUnit does not close the streams it opens, so they can only be read while an owner (usually the task temp
+ * directory) keeps the content.
+ */
+public final class PooledContent implements Closeable {
+	private final DirectBufferPool pool;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final AtomicInteger references = new AtomicInteger(1);
+	private long size;
+
+	public PooledContent() {
+		this(DirectBufferPool.getInstance());
+	}
+
+	PooledContent(DirectBufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Appends bytes to the content. Must not be called when streams of the content are open.
+	 */
+	public void write(byte[] bytes, int offset, int length) {
+		int off = offset;
+		int remaining = length;
+		while (remaining > 0) {
+			ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if (chunk == null || !chunk.hasRemaining()) {
+				chunk = pool.acquire();
+				chunks.add(chunk);
+			}
+			int count = Math.min(remaining, chunk.remaining());
+			chunk.put(bytes, off, count);
+			off += count;
+			remaining -= count;
+		}
+		size += length;
+	}
+
+	/**
+	 * @return Stream appending to the content, i.e. for serializing messages straight into the buffers.
+	 */
+	public OutputStream newOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				PooledContent.this.write(bytes, offset, length);
+			}
+		};
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Adds a reference to the content.
+	 *
+	 * @throws IllegalStateException if the content has already been released.
+	 */
+	public PooledContent retain() {
+		while (true) {
+			int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Content already released");
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Releases a reference to the content, returning the buffers to the pool if it was the last one.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			for (ByteBuffer chunk : chunks) {
+				pool.release(chunk);
+			}
+			chunks.clear();
+		}
+	}
+
+	/**
+	 * Same as {@link #release()}.
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	/**
+	 * Opens a stream of the content. The stream does not keep the content from being released.
+	 *
+	 * @throws IOException if the content has already been released.
+	 */
+	public ContentStream newInputStream() throws IOException {
+		if (isReleased()) {
+			throw new IOException("Content already released");
+		}
+		return new ContentStream(this);
+	}
+
+	private boolean isReleased() {
+		return references.get() <= 0;
+	}
+
+	/**
+	 * Writes the whole content to the channel straight from the buffers.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		for (ByteBuffer chunk : chunks) {
+			ByteBuffer view = chunk.duplicate();
+			view.flip();
+			while (view.hasRemaining()) {
+				channel.write(view);
+			}
+		}
+	}
+
+	private ByteBuffer[] views() {
+		ByteBuffer[] views = new ByteBuffer[chunks.size()];
+		for (int i = 0; i < views.length; i++) {
+			views[i] = chunks.get(i).duplicate();
+			views[i].flip();
+		}
+		return views;
+	}
+
+	/**
+	 * Stream reading the content from the buffers.
+	 */
+	public static final class ContentStream extends InputStream {
+		private final PooledContent content;
+		private final ByteBuffer[] views;
+		private int current;
+		private int markChunk;
+		private int markPosition;
+		private boolean closed;
+
+		private ContentStream(PooledContent content) {
+			this.content = content;
+			views = content.views();
+		}
+
+		public PooledContent getContent() {
+			return content;
+		}
+
+		private ByteBuffer buffer() throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (content.isReleased()) {
+				// buffers may already hold other content
+				throw new IOException("Content already released");
+			}
+			while (current < views.length && !views[current].hasRemaining()) {
+				current++;
+			}
+			return current < views.length ? views[current] : null;
+		}
+
+		@Override
+		public int read() throws IOException {
+			ByteBuffer buffer = buffer();
+			return buffer != null ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer buffer = buffer();
+			if (buffer == null) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		/**
+		 * Updates the digest with the remaining content straight from the buffers.
+		 *
+		 * @return Number of bytes digested.
+		 */
+		public long digest(MessageDigest digest) throws IOException {
+			long digested = 0;
+			for (ByteBuffer buffer = buffer(); buffer != null; buffer = buffer()) {
+				digested += buffer.remaining();
+				digest.update(buffer);
+			}
+			return digested;
+		}
+
+		@Override
+		public int available() throws IOException {
+			ByteBuffer buffer = buffer();
+			return buffer != null ? buffer.remaining() : 0;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			markChunk = current;
+			markPosition = current < views.length ? views[current].position() : 0;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			for (int i = markChunk; i < views.length && i <= current; i++) {
+				views[i].position(i == markChunk ? markPosition : 0);
+			}
+			current = markChunk;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service-wide registry of named counters and gauges.
+ */
+public final class ServiceMetrics {
+	private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+	private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+
+	/**
+	 * Value sampled at the time of reading.
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+
+	private ServiceMetrics() {
+		// utility class
+	}
+
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	public static void add(String name, long delta) {
+		AtomicLong counter = COUNTERS.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = COUNTERS.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.addAndGet(delta);
+	}
+
+	public static long get(String name) {
+		Gauge gauge = GAUGES.get(name);
+		if (gauge != null) {
+			return gauge.getValue();
+		}
+		AtomicLong counter = COUNTERS.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	public static void registerGauge(String name, Gauge gauge) {
+		GAUGES.put(name, gauge);
+	}
+
+	/**
+	 * Returns current values of all counters and gauges, sorted by name.
+	 */
+	public static Map<String, Long> snapshot() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getValue());
+		}
+		return values;
+	}
+}
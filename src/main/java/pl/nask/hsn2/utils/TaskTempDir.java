@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary directory of a single task. Files downloaded or spilled while the task is processed are created here and
+ * the whole directory is removed with {@link #close()} when the object tree of the task has been flushed. Other
+ * resources held until the end of the task (i.e. {@link PooledContent}) can be registered to be closed with it. Task
+ * directories are created in "webclient.tmpdir" (default: "hsn2-webclient" in java.io.tmpdir).
+ */
+public final class TaskTempDir {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TaskTempDir.class);
+	public static final File DEFAULT_ROOT = new File(System.getProperty("webclient.tmpdir",
+			new File(System.getProperty("java.io.tmpdir"), "hsn2-webclient").getPath()));
+	private static final String DIR_PREFIX = "task-";
+	private static final AtomicLong DISK_USED = new AtomicLong();
+	private static final AtomicInteger OPEN_DIRS = new AtomicInteger();
+
+	private final File dir;
+	private final ConcurrentMap<File, Long> files = new ConcurrentHashMap<File, Long>();
+	private final Queue<Closeable> resources = new ConcurrentLinkedQueue<Closeable>();
+	private volatile boolean closed;
+
+	static {
+		ServiceMetrics.registerGauge("temp.disk.bytes", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return DISK_USED.get();
+			}
+		});
+		ServiceMetrics.registerGauge("temp.task.dirs", new ServiceMetrics.Gauge() {
+			@Override
+			public long getValue() {
+				return OPEN_DIRS.get();
+			}
+		});
+	}
+
+	private TaskTempDir(File dir) {
+		this.dir = dir;
+	}
+
+	public static TaskTempDir create() throws IOException {
+		return create(DEFAULT_ROOT);
+	}
+
+	static TaskTempDir create(File root) throws IOException {
+		if (!root.isDirectory() && !root.mkdirs() && !root.isDirectory()) {
+			throw new IOException("Can not create temp directory: " + root);
+		}
+		File dir = Files.createTempDirectory(root.toPath(), DIR_PREFIX).toFile();
+		OPEN_DIRS.incrementAndGet();
+		return new TaskTempDir(dir);
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Creates an empty file in the directory. Call {@link #written(File)} when the file is complete, so that its size is
+	 * accounted for.
+	 */
+	public File createFile(String prefix) throws IOException {
+		if (closed) {
+			throw new IOException("Task temp directory already removed: " + dir);
+		}
+		return File.createTempFile(prefix, ".tmp", dir);
+	}
+
+	/**
+	 * Accounts for the current size of a file created by {@link #createFile(String)}.
+	 */
+	public void written(File file) {
+		long size = file.length();
+		Long previous = files.put(file, size);
+		DISK_USED.addAndGet(size - (previous != null ? previous : 0));
+	}
+
+	/**
+	 * Removes a single file before the whole directory is removed.
+	 */
+	public void delete(File file) {
+		Long size = files.remove(file);
+		if (size != null) {
+			DISK_USED.addAndGet(-size);
+		}
+		if (!file.delete() && file.exists()) {
+			LOGGER.debug("Can not delete temp file: {}", file);
+		}
+	}
+
+	/**
+	 * Registers a resource to be closed with the directory. The resource is closed at once if the directory has already
+	 * been removed.
+	 */
+	public void register(Closeable resource) {
+		resources.add(resource);
+		if (closed && resources.remove(resource)) {
+			IOUtils.closeQuietly(resource);
+		}
+	}
+
+	/**
+	 * @return Number of bytes in the files of the directory.
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Long fileSize : files.values()) {
+			size += fileSize;
+		}
+		return size;
+	}
+
+	/**
+	 * Closes registered resources and removes the directory with all files. Files created later are not allowed.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		OPEN_DIRS.decrementAndGet();
+		Closeable resource;
+		while ((resource = resources.poll()) != null) {
+			IOUtils.closeQuietly(resource);
+		}
+		for (File file : files.keySet()) {
+			Long size = files.remove(file);
+			if (size != null) {
+				DISK_USED.addAndGet(-size);
+			}
+		}
+		try {
+			FileUtils.deleteDirectory(dir);
+		} catch (IOException e) {
+			LOGGER.warn("Can not delete task temp directory: {}", dir);
+			LOGGER.debug(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Removes task directories left by a previous run which was not shut down properly. Only directories older than
+	 * given age are removed, as other instances of the service may use the same root.
+	 *
+	 * @return Number of directories removed.
+	 */
+	public static int removeStale(File root, long age) {
+		File[] dirs = root.listFiles();
+		if (dirs == null) {
+			return 0;
+		}
+		long deadline = System.currentTimeMillis() - age;
+		int removed = 0;
+		for (File dir : dirs) {
+			if (dir.isDirectory() && dir.getName().startsWith(DIR_PREFIX) && dir.lastModified() < deadline) {
+				try {
+					FileUtils.deleteDirectory(dir);
+					removed++;
+				} catch (IOException e) {
+					LOGGER.warn("Can not delete stale task temp directory: {}", dir);
+				}
+			}
+		}
+		return removed;
+	}
+}
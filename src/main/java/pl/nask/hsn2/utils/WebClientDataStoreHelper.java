@@ -22,12 +22,15 @@ package pl.nask.hsn2.utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +45,9 @@ import pl.nask.hsn2.wrappers.FileWrapper;
 import pl.nask.hsn2.wrappers.JSContextWrapper;
 import pl.nask.hsn2.wrappers.RequestWrapper;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
 public final class WebClientDataStoreHelper {
 	private static final Logger LOG = LoggerFactory.getLogger(WebClientDataStoreHelper.class);
 	
@@ -51,51 +57,121 @@ public final class WebClientDataStoreHelper {
 	
 	public static long saveInDataStore(ServiceConnector connector, long jobId, RequestWrapper requestWrapper) throws StorageException {
         LOG.debug("Adding HTTP Request to data store. " + requestWrapper);
-        Resources.Request request = buildRequest(requestWrapper);
-        return DataStoreHelper.saveInDataStore(connector, jobId, request.toByteArray());
+        return save(connector, jobId, serializeRequest(requestWrapper));
     }
-	
+
+    /**
+     * Serializes request to be saved in data store, i.e. with {@link AsyncDataStore}.
+     */
+    public static PooledContent serializeRequest(RequestWrapper requestWrapper) {
+        PooledContent content = new PooledContent();
+        try {
+            CodedOutputStream out = CodedOutputStream.newInstance(content.newOutputStream());
+            buildRequest(requestWrapper).writeTo(out);
+            out.flush();
+            return content;
+        } catch (IOException e) {
+            content.release();
+            throw new IllegalStateException("Can not serialize request", e);
+        }
+    }
+
 	public static long saveFailedRequestsInDataStore(ServiceConnector connector, long jobId,Set<FailedRequestWrapper> failedRequestWrappers) throws StorageException {
         LOG.debug("Adding failed requests to data store");
-        Resources.FailedList.Builder failedListBuilder = Resources.FailedList.newBuilder();
-        for (FailedRequestWrapper wrapper : failedRequestWrappers) {
-            Resources.FailedRequest failedRequest = Resources.FailedRequest.newBuilder()
-                    .addAllRequests(buildRequests(wrapper.getRequestWrappers()))
-                    .setReason(wrapper.getFailureReason())
-                    .build();
-            failedListBuilder.addFailed(failedRequest);
+        return save(connector, jobId, serializeFailedRequests(failedRequestWrappers));
+    }
+
+    /**
+     * Serializes failed requests to be saved in data store, i.e. with {@link DataStoreBatch}.
+     */
+    public static PooledContent serializeFailedRequests(Set<FailedRequestWrapper> failedRequestWrappers) {
+        ListWriter list = new ListWriter();
+        try {
+            Resources.FailedRequest.Builder failedRequest = BUILDERS.get().failedRequest;
+            for (FailedRequestWrapper wrapper : failedRequestWrappers) {
+                failedRequest.clear()
+                        .addAllRequests(buildRequests(wrapper.getRequestWrappers()))
+                        .setReason(wrapper.getFailureReason());
+                list.write(Resources.FailedList.FAILED_FIELD_NUMBER, failedRequest.build());
+            }
+            return list.finish();
+        } finally {
+            list.close();
         }
-        return DataStoreHelper.saveInDataStore(connector, jobId, failedListBuilder.build().toByteArray());
     }
 
     public static long saveInDataStore(ServiceConnector connector, long jobId, Set<FileWrapper> fileWrappers) throws StorageException, ResourceException {
         LOG.debug("Adding files to data store");
-        Resources.FileList.Builder allFilesListBuilder = Resources.FileList.newBuilder();
-        for (FileWrapper wrapper : fileWrappers) {
-            long resourceReferenceId = wrapper.getSavedContentId() != null ? wrapper.getSavedContentId() : DataStoreHelper.saveInDataStore(connector, jobId, wrapper.getContentStream());
-            Resources.File file = Resources.File.newBuilder()
-                    .addAllRequests(buildRequests(wrapper.getRequestWrappers()))
-                    .setType(wrapper.getContentType())
-                    .setContent(asReferenceBuilder(resourceReferenceId))
-                    .build();
-            allFilesListBuilder.addFiles(file);
+        return save(connector, jobId, serializeFiles(connector, jobId, fileWrappers));
+    }
+
+    /**
+     * Serializes file list to be saved in data store. Content of files which has not been saved yet is saved first.
+     */
+    public static PooledContent serializeFiles(ServiceConnector connector, long jobId, Set<FileWrapper> fileWrappers) throws StorageException, ResourceException {
+        ListWriter list = new ListWriter();
+        try {
+            Builders builders = BUILDERS.get();
+            for (FileWrapper wrapper : fileWrappers) {
+                long resourceReferenceId = wrapper.getSavedContentId() != null ? wrapper.getSavedContentId() : DataStoreDedup.saveInDataStore(connector, jobId, wrapper.getContentStream());
+                builders.file.clear()
+                        .addAllRequests(buildRequests(wrapper.getRequestWrappers()))
+                        .setType(wrapper.getContentType())
+                        .setContent(builders.reference.clear().setKey(resourceReferenceId).setStore(DataStoreHelper.DEFAULT_STORE_ID));
+                list.write(Resources.FileList.FILES_FIELD_NUMBER, builders.file.build());
+            }
+            return list.finish();
+        } finally {
+            list.close();
         }
-        return DataStoreHelper.saveInDataStore(connector, jobId, allFilesListBuilder.build().toByteArray());
     }
 
+    /**
+     * Saves cookie snapshot in canonical form: cookies sorted, identical ones written once. An unchanged snapshot saved
+     * before in the job gets the reference of the first one from {@link DataStoreDedup}, so cookie lists are written
+     * only when cookies change.
+     */
     public static long saveCookiesInDataStore(ServiceConnector connector, long jobId,Set<CookieWrapper> cookieWrappers) throws StorageException {
         LOG.debug("Adding cookie list to data store");
-        Resources.CookieList.Builder cookieListBuilder = Resources.CookieList.newBuilder();
+        ListWriter list = new ListWriter();
+        try {
+            Resources.Cookie.Builder cookie = BUILDERS.get().cookie;
+            for (CookieWrapper wrapper : canonical(cookieWrappers)) {
+                cookie.clear()
+                        .setName(wrapper.getName())
+                        .setValue(wrapper.getValue())
+                        .addAllAttributes(buildCookieAttributes(wrapper));
+                list.write(Resources.CookieList.COOKIES_FIELD_NUMBER, cookie.build());
+            }
+            PooledContent content = list.finish();
+            InputStream in = null;
+            try {
+                in = content.newInputStream();
+                return DataStoreDedup.saveInDataStore(connector, jobId, in);
+            } catch (IOException e) {
+                throw new StorageException("Can not read serialized message", e);
+            } finally {
+                IOUtils.closeQuietly(in);
+                content.release();
+            }
+        } finally {
+            list.close();
+        }
+    }
+
+    /**
+     * @return Cookies ordered by name, value and attributes, without duplicates.
+     */
+    static Collection<CookieWrapper> canonical(Set<CookieWrapper> cookieWrappers) {
+        Map<String, CookieWrapper> sorted = new TreeMap<String, CookieWrapper>();
         for (CookieWrapper wrapper : cookieWrappers) {
-            List<Resources.Cookie.Attribute> attributes = buildCookieAttributes(wrapper);
-            Resources.Cookie cookie = Resources.Cookie.newBuilder()
-                    .setName(wrapper.getName())
-                    .setValue(wrapper.getValue())
-                    .addAllAttributes(attributes)
-                    .build();
-            cookieListBuilder.addCookies(cookie);
+            StringBuilder key = new StringBuilder().append(wrapper.getName()).append('\0').append(wrapper.getValue());
+            for (Map.Entry<String, String> attribute : new TreeMap<String, String>(wrapper.getAttributes()).entrySet()) {
+                key.append('\0').append(attribute.getKey()).append('=').append(attribute.getValue());
+            }
+            sorted.put(key.toString(), wrapper);
         }
-        return DataStoreHelper.saveInDataStore(connector, jobId, cookieListBuilder.build().toByteArray());
+        return sorted.values();
     }
 
 	public static Set<CookieWrapper> getCookiesFromDataStore(ServiceConnector connector, long jobId, long referenceId) throws StorageException {
@@ -120,26 +196,53 @@ public final class WebClientDataStoreHelper {
 
     public static long saveJSContextsInDataStore(ServiceConnector connector, long jobId,List<JSContextWrapper> jsContextWrappers) throws StorageException {
         LOG.debug("Adding JS contexts list to data store.");
-        Resources.JSContextList.Builder jsContextListBuilder = Resources.JSContextList.newBuilder();
-        for (JSContextWrapper wrapper : jsContextWrappers) {
-            Resources.JSContext jsContext = Resources.JSContext.newBuilder()
-                    .setId(wrapper.getId())
-                    .setSource(wrapper.getSource())
-                    .setEval(wrapper.isEval())
-                    .build();
-            jsContextListBuilder.addContexts(jsContext);
+        return save(connector, jobId, serializeJSContexts(jsContextWrappers));
+    }
+
+    /**
+     * Serializes JS contexts list to be saved in data store.
+     */
+    public static PooledContent serializeJSContexts(List<JSContextWrapper> jsContextWrappers) {
+        ListWriter list = new ListWriter();
+        try {
+            Resources.JSContext.Builder jsContext = BUILDERS.get().jsContext;
+            for (JSContextWrapper wrapper : jsContextWrappers) {
+                jsContext.clear()
+                        .setId(wrapper.getId())
+                        .setSource(wrapper.getSource())
+                        .setEval(wrapper.isEval());
+                list.write(Resources.JSContextList.CONTEXTS_FIELD_NUMBER, jsContext.build());
+            }
+            return list.finish();
+        } finally {
+            list.close();
+        }
+    }
+
+    /**
+     * Uploads serialized message and releases it.
+     */
+    public static long save(ServiceConnector connector, long jobId, PooledContent content) throws StorageException {
+        InputStream in = null;
+        try {
+            in = content.newInputStream();
+            return DataStoreHelper.saveInDataStore(connector, jobId, in);
+        } catch (IOException e) {
+            throw new StorageException("Can not read serialized message", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+            content.release();
         }
-        return DataStoreHelper.saveInDataStore(connector, jobId, jsContextListBuilder.build().toByteArray());
     }
 
     private static List<Resources.Cookie.Attribute> buildCookieAttributes(CookieWrapper cookieWrapper) {
         List<Resources.Cookie.Attribute> attributes = new ArrayList<Resources.Cookie.Attribute>();
-        for (Map.Entry<String, String> entry : cookieWrapper.getAttributes().entrySet()) {
-            Resources.Cookie.Attribute attribute = Resources.Cookie.Attribute.newBuilder()
-            .setName(entry.getKey())
-            .setValue(entry.getValue())
-            .build();
-            attributes.add(attribute);
+        Resources.Cookie.Attribute.Builder attribute = BUILDERS.get().cookieAttribute;
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(cookieWrapper.getAttributes()).entrySet()) {
+            attributes.add(attribute.clear()
+                    .setName(entry.getKey())
+                    .setValue(entry.getValue())
+                    .build());
         }
         return attributes;
     }
@@ -157,7 +260,7 @@ public final class WebClientDataStoreHelper {
     }
 
     private static Resources.Request buildRequest(RequestWrapper wrapper) {
-        Resources.Request.Builder rBuilder = Resources.Request.newBuilder()
+        Resources.Request.Builder rBuilder = BUILDERS.get().request.clear()
                 .setRequestUrlOriginal(wrapper.getOriginalUrl())
                 .setRequestUrlAbsolute(wrapper.getAbsoluteUrl());
 
@@ -181,8 +284,66 @@ public final class WebClientDataStoreHelper {
         }
         return ret;
     }
-    
-    private static Reference.Builder asReferenceBuilder(long referenceId) {
-        return Reference.newBuilder().setKey(referenceId).setStore(DataStoreHelper.DEFAULT_STORE_ID);
+
+    /**
+     * Builders of list items, reused by the thread for every message it serializes.
+     */
+    private static final class Builders {
+        private final Resources.Request.Builder request = Resources.Request.newBuilder();
+        private final Resources.FailedRequest.Builder failedRequest = Resources.FailedRequest.newBuilder();
+        private final Resources.File.Builder file = Resources.File.newBuilder();
+        private final Reference.Builder reference = Reference.newBuilder();
+        private final Resources.Cookie.Builder cookie = Resources.Cookie.newBuilder();
+        private final Resources.Cookie.Attribute.Builder cookieAttribute = Resources.Cookie.Attribute.newBuilder();
+        private final Resources.JSContext.Builder jsContext = Resources.JSContext.newBuilder();
+    }
+
+    private static final ThreadLocal<Builders> BUILDERS = new ThreadLocal<Builders>() {
+        @Override
+        protected Builders initialValue() {
+            return new Builders();
+        }
+    };
+
+    /**
+     * Writes a list message item by item into pooled buffers. The list messages have a single repeated field, so
+     * writing the items one after another gives the same bytes as building the whole list and serializing it, without
+     * keeping the list or its serialized form on the heap.
+     */
+    private static final class ListWriter {
+        private PooledContent content = new PooledContent();
+        private final CodedOutputStream out = CodedOutputStream.newInstance(content.newOutputStream());
+
+        void write(int fieldNumber, MessageLite item) {
+            try {
+                out.writeMessage(fieldNumber, item);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not serialize message", e);
+            }
+        }
+
+        /**
+         * @return Serialized list, released by the caller.
+         */
+        PooledContent finish() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not serialize message", e);
+            }
+            PooledContent result = content;
+            content = null;
+            return result;
+        }
+
+        /**
+         * Releases the buffers unless the list has been finished.
+         */
+        void close() {
+            if (content != null) {
+                content.release();
+                content = null;
+            }
+        }
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.ServiceConnector;
+import pl.nask.hsn2.connector.REST.DataResponse;
+import pl.nask.hsn2.server.TestHttpServer;
+import pl.nask.hsn2.service.task.WebClientTaskContext;
+import pl.nask.hsn2.service.urlfollower.ExecutionMode;
+import pl.nask.hsn2.service.urlfollower.HtmlUnitFollower;
+
+/**
+ * Compares platform and virtual thread execution modes on the local test server. Run manually, i.e. with
+ * -Dwebclient.worker.threads=200 -Dwebclient.fetch.threads=200 to let the platform pools hold all tasks at once
+ * (virtual mode does not pool threads).
+ */
+public class ExecutionModeBenchmarkTest {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionModeBenchmarkTest.class);
+	private static final int TASKS = 200;
+	private static final int ROUNDS = 3;
+
+	@Mocked
+	private ServiceConnector connector;
+
+	@BeforeClass
+	public void startServer() throws Exception {
+		TestHttpServer.startServer("pages");
+	}
+
+	@AfterClass
+	public void stopServer() throws Exception {
+		ExecutionMode.setCurrent(ExecutionMode.PLATFORM);
+		TestHttpServer.stopServer();
+	}
+
+	@Test(enabled = false)
+	public void compareExecutionModes() throws Exception {
+		new NonStrictExpectations() {
+			{
+				connector.sendDataStoreData(anyLong, withInstanceOf(byte[].class));
+				result = new DataResponse(1L);
+			}
+		};
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			// first round warms up the pools and HtmlUnit
+			for (int i = 0; i < ROUNDS; i++) {
+				runTasks(mode);
+			}
+		}
+	}
+
+	private void runTasks(ExecutionMode mode) throws InterruptedException {
+		ExecutionMode.setCurrent(mode);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		final String url = TestHttpServer.absoluteUrl("start.html");
+		final CountDownLatch finished = new CountDownLatch(TASKS);
+		final AtomicInteger succeeded = new AtomicInteger();
+		// task threads emulate the framework threads waiting for the workers
+		ThreadFactory taskThreads = mode.newThreadFactory("BenchmarkTask-");
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < TASKS; i++) {
+			taskThreads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ServiceParameters params = new ServiceParameters();
+						params.setSaveHtml(false);
+						params.setSaveCookies(false);
+						WebClientTaskContext ctx = new WebClientTaskContext(1, 1, 1, connector);
+						HtmlUnitFollower follower = new HtmlUnitFollower(url, ctx, params);
+						new WebClientTask(ctx, params, new ServiceData(url, url), follower).process();
+						if (follower.isSuccessfull()) {
+							succeeded.incrementAndGet();
+						}
+					} catch (Exception e) {
+						LOGGER.warn("Task failed", e);
+					} finally {
+						finished.countDown();
+					}
+				}
+			}).start();
+		}
+		finished.await();
+		long elapsed = System.currentTimeMillis() - start;
+
+		LOGGER.info("{}: {} tasks in {} ms ({} tasks/s), peak platform threads: {}", new Object[] { mode, TASKS, elapsed,
+				TASKS * 1000L / Math.max(elapsed, 1), threads.getPeakThreadCount() });
+		Assert.assertEquals(succeeded.get(), TASKS);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.service.urlfollower.FetchExecutor;
+
+public class FetchExecutorTest {
+
+	@Test
+	public void fetchReturnsResult() throws Exception {
+		FetchExecutor.Fetch<String> fetch = FetchExecutor.getInstance().submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return "page";
+			}
+		});
+		Assert.assertEquals(fetch.await(1000), "page");
+	}
+
+	@Test
+	public void slowFetchIsAbortedAfterDeadline() throws Exception {
+		FetchExecutor.Fetch<String> fetch = FetchExecutor.getInstance().submit(new Callable<String>() {
+			@Override
+			public String call() throws InterruptedException {
+				Thread.sleep(10000);
+				return "page";
+			}
+		});
+		long start = System.currentTimeMillis();
+		try {
+			fetch.await(100);
+			Assert.fail("TimeoutException expected");
+		} catch (TimeoutException e) {
+			Assert.assertTrue(System.currentTimeMillis() - start < 1000, "should not wait for the fetch");
+		}
+		fetch.abort();
+		Assert.assertTrue(fetch.awaitTermination(1000), "aborted fetch should leave the thread");
+	}
+}
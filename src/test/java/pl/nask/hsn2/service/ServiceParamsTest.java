@@ -4,6 +4,8 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import pl.nask.hsn2.ParameterException;
+import pl.nask.hsn2.service.urlfollower.JsCapturePolicy;
+import pl.nask.hsn2.service.urlfollower.JsObservationMode;
 
 public class ServiceParamsTest {
 	@Test
@@ -14,4 +16,30 @@ public class ServiceParamsTest {
 		params.setProfile("Internet Explorer 6");
 		Assert.assertEquals(params.getProfile(), "Internet Explorer 6");
 	}
+
+	@Test
+	public void jsCaptureOffWithoutJsContext() throws ParameterException {
+		ServiceParameters params = new ServiceParameters();
+		Assert.assertEquals(params.getJsCapturePolicy(), JsCapturePolicy.FULL);
+		params.setJsCapturePolicy(JsCapturePolicy.PREFIX);
+		Assert.assertEquals(params.getJsCapturePolicy(), JsCapturePolicy.PREFIX);
+		params.setSaveJsContext(false);
+		Assert.assertEquals(params.getJsCapturePolicy(), JsCapturePolicy.OFF);
+	}
+
+	@Test(expectedExceptions = ParameterException.class)
+	public void unknownJsCapturePolicy() throws ParameterException {
+		JsCapturePolicy.forName("everything");
+	}
+
+	@Test
+	public void jsObservationMode() throws ParameterException {
+		Assert.assertEquals(new ServiceParameters().getJsObservationMode(), JsObservationMode.FULL);
+		Assert.assertEquals(JsObservationMode.forName(" Light"), JsObservationMode.LIGHT);
+	}
+
+	@Test(expectedExceptions = ParameterException.class)
+	public void unknownJsObservationMode() throws ParameterException {
+		JsObservationMode.forName("compiled");
+	}
 }
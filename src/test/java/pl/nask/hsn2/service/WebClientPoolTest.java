@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.service.urlfollower.ProxyParamsWrapper;
+import pl.nask.hsn2.service.urlfollower.WebClientPool;
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.HttpWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+
+public class WebClientPoolTest {
+
+	@Test
+	public void releasedClientIsReusedWithoutState() {
+		WebClientPool pool = WebClientPool.getInstance();
+		WebClient wc = pool.acquire(BrowserVersion.INTERNET_EXPLORER_9, null);
+		wc.getCookieManager().addCookie(new Cookie("localhost", "name", "value"));
+		pool.release(wc);
+
+		long hits = ServiceMetrics.get("webclient.pool.hit");
+		WebClient reused = pool.acquire(BrowserVersion.INTERNET_EXPLORER_9, null);
+		Assert.assertSame(reused, wc);
+		Assert.assertEquals(ServiceMetrics.get("webclient.pool.hit"), hits + 1);
+		Assert.assertTrue(reused.getCookieManager().getCookies().isEmpty(), "cookies should be cleared");
+		pool.discard(reused);
+	}
+
+	@Test
+	public void clientsAreKeyedByProfileAndProxy() {
+		WebClientPool pool = WebClientPool.getInstance();
+		WebClient wc = pool.acquire(BrowserVersion.INTERNET_EXPLORER_9, null);
+		pool.release(wc);
+
+		WebClient otherProfile = pool.acquire(BrowserVersion.FIREFOX_17, null);
+		WebClient otherProxy = pool.acquire(BrowserVersion.INTERNET_EXPLORER_9, new ProxyParamsWrapper("http://localhost:8080"));
+		Assert.assertNotSame(otherProfile, wc);
+		Assert.assertNotSame(otherProxy, wc);
+		pool.discard(otherProfile);
+		pool.discard(otherProxy);
+		pool.discard(pool.acquire(BrowserVersion.INTERNET_EXPLORER_9, null));
+	}
+
+	@Test
+	public void discardedClientIsNotReused() {
+		WebClientPool pool = WebClientPool.getInstance();
+		WebClient wc = pool.acquire(BrowserVersion.CHROME, null);
+		pool.discard(wc);
+		WebClient next = pool.acquire(BrowserVersion.CHROME, null);
+		Assert.assertNotSame(next, wc);
+		pool.discard(next);
+	}
+
+	@Test
+	public void releasedClientKeepsHttpClient() throws Exception {
+		WebClientPool pool = WebClientPool.getInstance();
+		WebClient wc = pool.acquire(BrowserVersion.FIREFOX_17, null);
+		wc.getPage("about:blank");
+		Method getHttpClient = HttpWebConnection.class.getDeclaredMethod("getHttpClient");
+		getHttpClient.setAccessible(true);
+		Object httpClient = getHttpClient.invoke(wc.getWebConnection());
+		pool.release(wc);
+
+		WebClient reused = pool.acquire(BrowserVersion.FIREFOX_17, null);
+		Assert.assertSame(reused, wc);
+		Field httpClientField = HttpWebConnection.class.getDeclaredField("httpClient_");
+		httpClientField.setAccessible(true);
+		Assert.assertSame(httpClientField.get(reused.getWebConnection()), httpClient, "connection should not be shut down");
+		pool.discard(reused);
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.task;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TaskDeadlineTest {
+
+	@Test
+	public void unlimitedDeadlineKeepsStepTimeout() {
+		TaskDeadline deadline = TaskDeadline.unlimited();
+		Assert.assertFalse(deadline.isExpired());
+		Assert.assertEquals(deadline.limit(30000), 30000);
+		Assert.assertEquals(deadline.limit(0), 0, "no limit at all");
+	}
+
+	@Test
+	public void stepTimeoutIsLimitedToTimeLeft() {
+		TaskDeadline deadline = new TaskDeadline(2000);
+		int limited = deadline.limit(30000);
+		Assert.assertTrue(limited <= 2000 && limited > 1000, "got " + limited);
+		Assert.assertEquals(deadline.limit(100), 100);
+		Assert.assertTrue(deadline.limit(0) <= 2000, "unlimited step is limited by the task");
+	}
+
+	@Test
+	public void expiredDeadline() throws InterruptedException {
+		TaskDeadline deadline = new TaskDeadline(10);
+		Thread.sleep(20);
+		Assert.assertTrue(deadline.isExpired());
+		Assert.assertEquals(deadline.remaining(), 0);
+		Assert.assertEquals(deadline.limit(30000), 1, "limit is never 0, which would mean no limit");
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.net.URL;
+import java.util.Map;
+
+import net.sourceforge.htmlunit.corejs.javascript.Script;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.utils.ServiceMetrics;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+public class CompiledScriptCacheTest {
+	private static final String PAGE = "<html><head><script src='lib.js'></script></head><body></body></html>";
+	private static final String LIBRARY = "function cachedLib() { return 'loaded'; }\ndocument.title = cachedLib();";
+
+	private static HtmlPage load(ScriptInterceptor interceptor, String host) throws Exception {
+		WebClient wc = new WebClient();
+		MockWebConnection connection = new MockWebConnection();
+		URL pageUrl = new URL("http://" + host + "/");
+		connection.setResponse(pageUrl, PAGE);
+		connection.setResponse(new URL("http://cdn.script.cache.test/lib.js"), LIBRARY, "application/javascript");
+		connection.setResponse(new URL(pageUrl, "lib.js"), LIBRARY, "application/javascript");
+		wc.setWebConnection(connection);
+		wc.getJavaScriptEngine().getContextFactory().setDebugger(interceptor);
+		return wc.getPage(pageUrl);
+	}
+
+	@Test
+	public void scriptCompiledOnceAndReportedToEveryInterceptor() throws Exception {
+		long hits = ServiceMetrics.get("script.cache.hit");
+		ScriptInterceptor first = new ScriptInterceptor();
+		ScriptInterceptor second = new ScriptInterceptor();
+		HtmlPage firstPage = load(first, "one.script.cache.test");
+		// same source name, so the second client gets the compiled script
+		HtmlPage secondPage = load(second, "one.script.cache.test");
+
+		Assert.assertEquals(firstPage.getTitleText(), "loaded");
+		Assert.assertEquals(secondPage.getTitleText(), "loaded");
+		Assert.assertEquals(ServiceMetrics.get("script.cache.hit"), hits + 1);
+		for (ScriptInterceptor interceptor : new ScriptInterceptor[] { first, second }) {
+			Map<String, ScriptInterceptor.ScriptElement> scripts = interceptor.getSourcesByOrigin().get("http://one.script.cache.test/");
+			Assert.assertNotNull(scripts);
+			Assert.assertEquals(scripts.get("http://one.script.cache.test/lib.js").getSource(), LIBRARY);
+		}
+		firstPage.getWebClient().closeAllWindows();
+		secondPage.getWebClient().closeAllWindows();
+	}
+
+	@Test
+	public void leastRecentlyUsedEvictedBySize() {
+		CompiledScriptCache cache = new CompiledScriptCache(100);
+		Script a = new DummyScript();
+		Script b = new DummyScript();
+		cache.put("a", a, 40);
+		cache.put("b", b, 40);
+		Assert.assertSame(cache.get("a"), a);
+		cache.put("c", new DummyScript(), 40);
+		Assert.assertNull(cache.get("b"));
+		Assert.assertSame(cache.get("a"), a);
+		Assert.assertEquals(cache.getSize(), 80);
+		cache.put("huge", new DummyScript(), 101);
+		Assert.assertNull(cache.get("huge"));
+		Assert.assertEquals(cache.getCount(), 2);
+	}
+
+	private static final class DummyScript implements Script {
+		@Override
+		public Object exec(net.sourceforge.htmlunit.corejs.javascript.Context cx, net.sourceforge.htmlunit.corejs.javascript.Scriptable scope) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FetchQueueTest {
+
+	@Test(timeOut = 5000)
+	public void abortedQueuedFetchDoesNotBlock() throws Exception {
+		FetchExecutor executor = new FetchExecutor(1, 1, ExecutionMode.PLATFORM);
+		final CountDownLatch release = new CountDownLatch(1);
+		FetchExecutor.Fetch<Boolean> running = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				release.await();
+				return true;
+			}
+		});
+		FetchExecutor.Fetch<Boolean> queued = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return true;
+			}
+		});
+		queued.abort();
+		Assert.assertTrue(queued.awaitTermination(0));
+
+		release.countDown();
+		Assert.assertTrue(running.await(2000));
+		Assert.assertTrue(running.awaitTermination(2000));
+	}
+
+	@Test(timeOut = 5000)
+	public void virtualModeLimitsFetchesInProgress() throws Exception {
+		FetchExecutor executor = new FetchExecutor(1, 1, 2, ExecutionMode.VIRTUAL);
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<Boolean> blocked = new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				release.await();
+				return true;
+			}
+		};
+		FetchExecutor.Fetch<Boolean> first = executor.submit(blocked);
+		FetchExecutor.Fetch<Boolean> second = executor.submit(blocked);
+		try {
+			executor.submit(blocked);
+			Assert.fail("RejectedExecutionException expected");
+		} catch (RejectedExecutionException e) {
+			// both permits taken
+		}
+		release.countDown();
+		Assert.assertTrue(first.await(2000));
+		Assert.assertTrue(second.await(2000));
+		Assert.assertTrue(first.awaitTermination(2000) && second.awaitTermination(2000));
+		Assert.assertTrue(executor.submit(blocked).await(2000));
+	}
+}
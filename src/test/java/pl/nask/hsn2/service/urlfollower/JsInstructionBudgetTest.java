@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.net.URL;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+public class JsInstructionBudgetTest {
+	private URL pageUrl;
+	private WebClient wc;
+	private MockWebConnection connection;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		pageUrl = new URL("http://budget.script.test/");
+		wc = new WebClient();
+		BudgetedJavaScriptEngine.install(wc);
+		connection = new MockWebConnection();
+		wc.setWebConnection(connection);
+		wc.getOptions().setThrowExceptionOnScriptError(false);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		wc.closeAllWindows();
+	}
+
+	private HtmlPage load(JsInstructionBudget budget, String... scripts) throws Exception {
+		((BudgetedJavaScriptEngine) wc.getJavaScriptEngine()).setBudget(budget);
+		StringBuilder html = new StringBuilder("<html><head>");
+		for (String script : scripts) {
+			html.append("<script>").append(script).append("</script>");
+		}
+		connection.setResponse(pageUrl, html.append("</head><body></body></html>").toString());
+		return wc.getPage(pageUrl);
+	}
+
+	@Test
+	public void runawayScriptStoppedAndNotCaught() throws Exception {
+		JsInstructionBudget budget = new JsInstructionBudget(0, 100000);
+		HtmlPage page = load(budget,
+				"document.title = 'started'; try { while (true) {} } catch (e) { document.title = 'caught'; }",
+				"document.title += ' next';");
+		Assert.assertEquals(page.getTitleText(), "started next");
+		Assert.assertTrue(budget.getUsed() > 100000);
+	}
+
+	@Test
+	public void taskBudgetStopsLaterScripts() throws Exception {
+		JsInstructionBudget budget = new JsInstructionBudget(300000, 0);
+		HtmlPage page = load(budget,
+				"var n = 0; for (var i = 0; i < 2000; i++) { n += i; } document.title = 'first';",
+				"for (var i = 0; i < 1000000; i++) {} document.title = 'second';");
+		Assert.assertEquals(page.getTitleText(), "first");
+	}
+
+	@Test
+	public void runningBackgroundScriptStopped() throws Exception {
+		JsInstructionBudget budget = new JsInstructionBudget(0, 0);
+		HtmlPage page = load(budget, "setTimeout(function () { document.title = 'busy'; while (true) {} }, 1);");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!"busy".equals(page.getTitleText()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(page.getTitleText(), "busy");
+		long used = budget.getUsed();
+		budget.stopRunningScripts();
+		Thread.sleep(200);
+		long stoppedAt = budget.getUsed();
+		Assert.assertTrue(stoppedAt >= used);
+		Thread.sleep(200);
+		Assert.assertEquals(budget.getUsed(), stoppedAt);
+
+		// scripts started later still run
+		page.executeJavaScript("document.title = 'after';");
+		Assert.assertEquals(page.getTitleText(), "after");
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.net.URL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.service.ServiceParameters;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Compares script execution time with the interceptor installed as the debugger and as the preprocessor. Run manually.
+ */
+public class JsObservationBenchmarkTest {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JsObservationBenchmarkTest.class);
+	private static final int ROUNDS = 5;
+	private static final String SCRIPT = "function fib(n) { return n < 2 ? n : fib(n - 1) + fib(n - 2); }\n"
+			+ "var s = '';\n"
+			+ "for (var i = 0; i < 20000; i++) { s = (s + i.toString(16)).slice(-64); }\n"
+			+ "document.title = 'done' + fib(22);";
+
+	@Test(enabled = false)
+	public void compareObservationModes() throws Exception {
+		for (JsObservationMode mode : JsObservationMode.values()) {
+			// first round warms up HtmlUnit
+			for (int i = 0; i < ROUNDS; i++) {
+				long elapsed = run(mode);
+				LOGGER.info("{}: page scripts executed in {} ms", mode, elapsed);
+			}
+		}
+	}
+
+	private static long run(JsObservationMode mode) throws Exception {
+		ScriptInterceptor interceptor = new ScriptInterceptor(new ServiceParameters());
+		URL url = new URL("http://benchmark.script.test/");
+		MockWebConnection connection = new MockWebConnection();
+		connection.setResponse(url, "<html><head><script>" + SCRIPT + "</script></head><body></body></html>");
+		WebClient wc = new WebClient();
+		try {
+			wc.setWebConnection(connection);
+			if (mode == JsObservationMode.LIGHT) {
+				wc.setScriptPreProcessor(interceptor);
+			} else {
+				wc.getJavaScriptEngine().getContextFactory().setDebugger(interceptor);
+			}
+			long start = System.nanoTime();
+			HtmlPage page = wc.getPage(url);
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			Assert.assertEquals(page.getTitleText(), "done17711");
+			Assert.assertEquals(interceptor.getSourcesByOrigin().get(url.toString()).size(), 1);
+			return elapsed;
+		} finally {
+			wc.closeAllWindows();
+		}
+	}
+}
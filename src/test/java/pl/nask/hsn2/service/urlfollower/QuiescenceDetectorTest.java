@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.net.URL;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.service.urlfollower.QuiescenceDetector.EndReason;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+
+public class QuiescenceDetectorTest {
+	private static final String TICKER = "<html><head><title>0</title><script>"
+			+ "setInterval(function () { document.title = '' + (parseInt(document.title) + 1); }, 100);"
+			+ "</script></head><body></body></html>";
+	private static final String INJECTOR = "<html><head><script>"
+			+ "setInterval(function () { document.body.appendChild(document.createElement('div')); }, 100);"
+			+ "</script></head><body></body></html>";
+
+	private URL pageUrl;
+	private WebClient wc;
+	private MockWebConnection connection;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		pageUrl = new URL("http://quiescence.test/");
+		wc = new WebClient();
+		connection = new MockWebConnection();
+		wc.setWebConnection(connection);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		wc.closeAllWindows();
+	}
+
+	private QuiescenceDetector load(String html, long idleMillis, VirtualClock clock) throws Exception {
+		QuiescenceDetector detector = new QuiescenceDetector(idleMillis, clock);
+		wc.addWebWindowListener(detector);
+		wc.setAjaxController(detector.newAjaxController());
+		connection.setResponse(pageUrl, html);
+		wc.getPage(pageUrl);
+		return detector;
+	}
+
+	@Test(timeOut = 5000)
+	public void pageWithoutJobs() throws Exception {
+		QuiescenceDetector detector = load("<html><body></body></html>", 500, null);
+		Assert.assertEquals(detector.await(wc, 3000, 3000), 0);
+		Assert.assertEquals(detector.getEndReason(), EndReason.NO_JOBS);
+	}
+
+	@Test(timeOut = 5000)
+	public void tickerEndsWaitWhenIdle() throws Exception {
+		QuiescenceDetector detector = load(TICKER, 300, null);
+		long start = System.currentTimeMillis();
+		Assert.assertEquals(detector.await(wc, 4000, 4000), 1);
+		Assert.assertEquals(detector.getEndReason(), EndReason.IDLE);
+		Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+	}
+
+	@Test(timeOut = 5000)
+	public void addedElementsKeepPageActive() throws Exception {
+		QuiescenceDetector detector = load(INJECTOR, 500, null);
+		Assert.assertEquals(detector.await(wc, 1500, 1500), 1);
+		Assert.assertEquals(detector.getEndReason(), EndReason.TIMEOUT);
+	}
+
+	@Test(timeOut = 5000)
+	public void disabledDetectionWaitsForTimeout() throws Exception {
+		QuiescenceDetector detector = load(TICKER, 0, null);
+		long start = System.currentTimeMillis();
+		detector.await(wc, 700, 700);
+		Assert.assertEquals(detector.getEndReason(), EndReason.TIMEOUT);
+		Assert.assertTrue(System.currentTimeMillis() - start >= 650);
+	}
+
+	@Test(timeOut = 5000)
+	public void tickerInVirtualTime() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		QuiescenceDetector detector = load(TICKER, 2000, clock);
+		long start = System.currentTimeMillis();
+		detector.await(wc, 60000, 4000);
+		Assert.assertEquals(detector.getEndReason(), EndReason.IDLE);
+		Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+	}
+}
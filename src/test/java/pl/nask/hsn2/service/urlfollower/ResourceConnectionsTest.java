@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.server.TestHttpServer;
+import pl.nask.hsn2.service.task.TaskByteBudget;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.UrlUtils;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+public class ResourceConnectionsTest {
+	private static final int FETCHES = 16;
+
+	@BeforeClass
+	public void startServer() throws Exception {
+		TestHttpServer.startServer("pages");
+	}
+
+	@AfterClass
+	public void stopServer() throws Exception {
+		TestHttpServer.stopServer();
+	}
+
+	@Test
+	public void parallelFetchesBypassClientConnection() throws Exception {
+		WebClient wc = new WebClient();
+		TaskTempDir tempDir = TaskTempDir.create();
+		final AtomicInteger clientRequests = new AtomicInteger();
+		WebConnectionWrapper clientConnection = new WebConnectionWrapper(new TempFileWebConnection(wc)) {
+			@Override
+			public WebResponse getResponse(WebRequest request) throws IOException {
+				clientRequests.incrementAndGet();
+				return super.getResponse(request);
+			}
+		};
+		final ResourceConnections connections = new ResourceConnections(wc, clientConnection, tempDir, TaskByteBudget.unlimited());
+		wc.setWebConnection(connections);
+		ExecutorService fetchThreads = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < FETCHES; i++) {
+				final String url = TestHttpServer.absoluteUrl("framesWithoutSrc.html?fetch=" + i);
+				statuses.add(fetchThreads.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return connections.load(new WebRequest(UrlUtils.toUrlUnsafe(url))).getStatusCode();
+					}
+				}));
+			}
+			for (Future<Integer> status : statuses) {
+				Assert.assertEquals(status.get().intValue(), 200);
+			}
+			Assert.assertEquals(clientRequests.get(), 0);
+
+			// other requests of the client use its own connection
+			wc.loadWebResponse(new WebRequest(UrlUtils.toUrlUnsafe(TestHttpServer.absoluteUrl("framesWithoutSrc.html"))));
+			Assert.assertEquals(clientRequests.get(), 1);
+
+			connections.shutdown();
+			try {
+				connections.load(new WebRequest(UrlUtils.toUrlUnsafe(TestHttpServer.absoluteUrl("framesWithoutSrc.html"))));
+				Assert.fail("fetch after shutdown should fail");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			fetchThreads.shutdownNow();
+			wc.closeAllWindows();
+			tempDir.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import java.net.URL;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.service.ServiceParameters;
+import pl.nask.hsn2.service.urlfollower.ScriptInterceptor.ScriptElement;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+public class ScriptInterceptorTest {
+	private static final String SOURCE = "eval(unescape('%u0041\u00e9\u4e2d'));";
+
+	private static ScriptInterceptor interceptor(JsCapturePolicy policy, int limit) throws Exception {
+		ServiceParameters params = new ServiceParameters();
+		params.setJsCapturePolicy(policy);
+		params.setJsCaptureLimit(limit);
+		return new ScriptInterceptor(params);
+	}
+
+	@Test
+	public void sourceKeptAccordingToPolicy() throws Exception {
+		ScriptInterceptor off = interceptor(JsCapturePolicy.OFF, 10);
+		Assert.assertNull(off.capture(SOURCE));
+		Assert.assertEquals(off.getCapturedBytes(), 0);
+
+		ScriptInterceptor prefix = interceptor(JsCapturePolicy.PREFIX, 10);
+		Assert.assertEquals(prefix.capture(SOURCE), SOURCE.substring(0, 10));
+		Assert.assertEquals(prefix.capture("x=1"), "x=1");
+		Assert.assertEquals(prefix.getCapturedBytes(), 13);
+
+		ScriptInterceptor full = interceptor(JsCapturePolicy.FULL, 10);
+		Assert.assertSame(full.capture(SOURCE), SOURCE);
+		Assert.assertEquals(full.getCapturedBytes(), SOURCE.getBytes("UTF-8").length);
+	}
+
+	@Test
+	public void utf8Length() throws Exception {
+		String text = "a\u00e9\u4e2d\ud83d\ude00";
+		Assert.assertEquals(ScriptInterceptor.utf8Length(text), text.getBytes("UTF-8").length);
+	}
+
+	@Test
+	public void generatedSourceNames() {
+		Assert.assertTrue(ScriptInterceptor.isGenerated("http://example.test/#3(eval)"));
+		Assert.assertTrue(ScriptInterceptor.isGenerated("http://example.test/#1(Function)"));
+		Assert.assertFalse(ScriptInterceptor.isGenerated("http://example.test/lib.js"));
+	}
+
+	@Test
+	public void lightModeSeesSourcesAndStopsRecursion() throws Exception {
+		ServiceParameters params = new ServiceParameters();
+		params.setJsRecursionLimit(5);
+		ScriptInterceptor interceptor = new ScriptInterceptor(params);
+		String script = "function f(n) { return n > 0 ? eval('f(' + (n - 1) + ')') : 0; }\n"
+				+ "document.title = 'shallow' + f(2);\n"
+				+ "f(50);\n"
+				+ "document.title = 'deep';";
+		URL url = new URL("http://light.script.test/");
+		MockWebConnection connection = new MockWebConnection();
+		connection.setResponse(url, "<html><head><script>" + script + "</script></head><body></body></html>");
+		WebClient wc = new WebClient();
+		try {
+			wc.setWebConnection(connection);
+			wc.getOptions().setThrowExceptionOnScriptError(false);
+			wc.setScriptPreProcessor(interceptor);
+			HtmlPage page = wc.getPage(url);
+
+			Assert.assertEquals(page.getTitleText(), "shallow0");
+			Map<String, ScriptElement> scripts = interceptor.getSourcesByOrigin().get(url.toString());
+			int evals = 0;
+			for (ScriptElement element : scripts.values()) {
+				if (element.isEval()) {
+					evals++;
+				} else {
+					Assert.assertEquals(element.getSource(), script);
+				}
+			}
+			Assert.assertTrue(evals > 0);
+		} finally {
+			wc.closeAllWindows();
+		}
+	}
+
+	@Test
+	public void lightModeStopsRecursionThroughFunctionConstructor() throws Exception {
+		ServiceParameters params = new ServiceParameters();
+		params.setJsRecursionLimit(5);
+		ScriptInterceptor interceptor = new ScriptInterceptor(params);
+		String script = "var g = new Function('n', 'return n > 0 ? g(n - 1) : 0;');\n"
+				+ "document.title = 'shallow' + g(2);\n"
+				+ "g(50);\n"
+				+ "document.title = 'deep';";
+		URL url = new URL("http://light.function.test/");
+		MockWebConnection connection = new MockWebConnection();
+		connection.setResponse(url, "<html><head><script>" + script + "</script></head><body></body></html>");
+		WebClient wc = new WebClient();
+		try {
+			BudgetedJavaScriptEngine.install(wc);
+			((BudgetedJavaScriptEngine) wc.getJavaScriptEngine()).setRecursionLimit(params.getJsRecursionLimit());
+			wc.setWebConnection(connection);
+			wc.getOptions().setThrowExceptionOnScriptError(false);
+			wc.setScriptPreProcessor(interceptor);
+			HtmlPage page = wc.getPage(url);
+
+			Assert.assertEquals(page.getTitleText(), "shallow0");
+		} finally {
+			wc.closeAllWindows();
+		}
+	}
+}
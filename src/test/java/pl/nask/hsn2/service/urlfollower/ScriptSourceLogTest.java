@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.service.urlfollower;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.utils.TaskTempDir;
+
+public class ScriptSourceLogTest {
+	private TaskTempDir tempDir;
+	private ScriptSourceLog log;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		tempDir = TaskTempDir.create();
+		log = new ScriptSourceLog(tempDir);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		tempDir.close();
+	}
+
+	@Test
+	public void identicalSourcesWrittenOnce() throws Exception {
+		String library = "var jQuery = function() { return '\u00e9\u4e2d'; };";
+		ScriptSourceLog.Entry first = log.append(library);
+		ScriptSourceLog.Entry other = log.append("document.write('x');");
+		Assert.assertSame(log.append(new String(library)), first);
+		Assert.assertEquals(log.getEntryCount(), 2);
+		Assert.assertEquals(first.read(), library);
+		Assert.assertEquals(other.read(), "document.write('x');");
+
+		// log grows after it has been mapped
+		ScriptSourceLog.Entry late = log.append("eval('late');");
+		Assert.assertEquals(late.read(), "eval('late');");
+		Assert.assertEquals(first.read(), library);
+		Assert.assertEquals(tempDir.getSize(), library.getBytes("UTF-8").length + 20 + 13);
+	}
+
+	@Test
+	public void elementReadsSourceUntilTaskEnds() throws Exception {
+		ScriptInterceptor.ScriptElement element = new ScriptInterceptor.ScriptElement(1, log.append("a();"), false);
+		Assert.assertEquals(element.getSource(), "a();");
+
+		tempDir.close();
+		Assert.assertNull(element.getSource());
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.gargoylesoftware.htmlunit.CookieManager;
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+public class SharedResponseCacheTest {
+	private static final String LIBRARY = "var jQuery = {};";
+
+	private URL pageUrl;
+	private URL libraryUrl;
+	private MockWebConnection connection;
+	private CookieManager cookies;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		pageUrl = new URL("http://shared.cache.test/");
+		libraryUrl = new URL("http://shared.cache.test/jquery.js");
+		connection = new MockWebConnection();
+		cookies = new CookieManager();
+	}
+
+	private void setLibrary(NameValuePair... headers) {
+		connection.setResponse(libraryUrl, LIBRARY, 200, "OK", "application/javascript", Arrays.asList(headers));
+	}
+
+	private static String get(WebConnection webConnection, URL url) throws IOException {
+		return webConnection.getResponse(new WebRequest(url)).getContentAsString();
+	}
+
+	@Test
+	public void responseSharedBetweenTasks() throws Exception {
+		SharedResponseCache cache = new SharedResponseCache(null, 1024, 0, 1024, 3600, true);
+		setLibrary(new NameValuePair("Cache-Control", "public, max-age=600"));
+		Assert.assertEquals(get(cache.connection(connection, pageUrl.toString(), cookies), libraryUrl), LIBRARY);
+		Assert.assertEquals(get(cache.connection(connection, pageUrl.toString(), cookies), libraryUrl), LIBRARY);
+		Assert.assertEquals(connection.getRequestCount(), 1);
+		Assert.assertEquals(cache.getHitRatio(), 50);
+	}
+
+	@Test
+	public void privateResponsesAreNotShared() throws Exception {
+		SharedResponseCache cache = new SharedResponseCache(null, 1024, 0, 1024, 3600, true);
+		setLibrary(new NameValuePair("Cache-Control", "private, max-age=600"));
+		get(cache.connection(connection, null, cookies), libraryUrl);
+		get(cache.connection(connection, null, cookies), libraryUrl);
+		Assert.assertEquals(connection.getRequestCount(), 2);
+	}
+
+	@Test
+	public void requestsWithTaskCookiesAreNotShared() throws Exception {
+		SharedResponseCache cache = new SharedResponseCache(null, 1024, 0, 1024, 3600, true);
+		setLibrary(new NameValuePair("Cache-Control", "public, max-age=600"));
+		get(cache.connection(connection, null, cookies), libraryUrl);
+		CookieManager taskCookies = new CookieManager();
+		taskCookies.addCookie(new Cookie(libraryUrl.getHost(), "session", "task"));
+		get(cache.connection(connection, null, taskCookies), libraryUrl);
+		Assert.assertEquals(connection.getRequestCount(), 2);
+		Assert.assertEquals(cache.getHitRatio(), 0);
+	}
+
+	@Test
+	public void refererIsPartOfKey() throws Exception {
+		SharedResponseCache cache = new SharedResponseCache(null, 1024, 0, 1024, 3600, true);
+		setLibrary(new NameValuePair("Cache-Control", "public, max-age=600"));
+		WebRequest request = new WebRequest(libraryUrl);
+		request.setAdditionalHeader("Referer", pageUrl.toString());
+		cache.connection(connection, null, cookies).getResponse(request);
+		get(cache.connection(connection, null, cookies), libraryUrl);
+		Assert.assertEquals(connection.getRequestCount(), 2);
+		cache.connection(connection, null, cookies).getResponse(request);
+		Assert.assertEquals(connection.getRequestCount(), 2);
+	}
+
+	@Test
+	public void rootUrlIsAlwaysFetched() throws Exception {
+		SharedResponseCache cache = new SharedResponseCache(null, 1024, 0, 1024, 3600, true);
+		connection.setResponse(pageUrl, "<html></html>", 200, "OK", "text/html",
+				Collections.singletonList(new NameValuePair("Cache-Control", "max-age=600")));
+		WebConnection task = cache.connection(connection, pageUrl.toString(), cookies);
+		get(task, pageUrl);
+		get(task, pageUrl);
+		Assert.assertEquals(connection.getRequestCount(), 2);
+		get(cache.connection(connection, libraryUrl.toString(), cookies), pageUrl);
+		get(cache.connection(connection, libraryUrl.toString(), cookies), pageUrl);
+		Assert.assertEquals(connection.getRequestCount(), 3);
+	}
+
+	@Test
+	public void staleResponseRevalidated() throws Exception {
+		SharedResponseCache cache = new SharedResponseCache(null, 1024, 0, 1024, 0, true);
+		setLibrary(new NameValuePair("Cache-Control", "max-age=600"), new NameValuePair("ETag", "\"v1\""));
+		get(cache.connection(connection, null, cookies), libraryUrl);
+		List<NameValuePair> noHeaders = Collections.emptyList();
+		connection.setResponse(libraryUrl, "", 304, "Not Modified", "application/javascript", noHeaders);
+
+		final List<String> validators = new ArrayList<String>();
+		WebConnection recording = new WebConnectionWrapper(connection) {
+			@Override
+			public WebResponse getResponse(WebRequest request) throws IOException {
+				validators.add(request.getAdditionalHeaders().get("If-None-Match"));
+				return super.getResponse(request);
+			}
+		};
+		Assert.assertEquals(get(cache.connection(recording, null, cookies), libraryUrl), LIBRARY);
+		Assert.assertEquals(validators, Collections.singletonList("\"v1\""));
+	}
+
+	@Test
+	public void diskTierSurvivesRestart() throws Exception {
+		File dir = File.createTempFile("hsn2-shared-cache", "");
+		Assert.assertTrue(dir.delete() && dir.mkdir());
+		try {
+			SharedResponseCache cache = new SharedResponseCache(dir, 1024, 1024, 1024, 3600, true);
+			setLibrary(new NameValuePair("Cache-Control", "max-age=600"));
+			get(cache.connection(connection, null, cookies), libraryUrl);
+			cache.saveIndex();
+
+			SharedResponseCache restarted = new SharedResponseCache(dir, 0, 1024, 1024, 3600, true);
+			Assert.assertEquals(restarted.getDiskUsed(), LIBRARY.length());
+			Assert.assertEquals(get(restarted.connection(connection, null, cookies), libraryUrl), LIBRARY);
+			Assert.assertEquals(connection.getRequestCount(), 1);
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+}
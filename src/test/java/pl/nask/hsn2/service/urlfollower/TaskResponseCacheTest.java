@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.utils.PooledContent;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+import com.gargoylesoftware.htmlunit.AjaxController;
+import com.gargoylesoftware.htmlunit.DownloadedContent;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+public class TaskResponseCacheTest {
+	private URL pageUrl;
+	private URL scriptUrl;
+	private URL dataUrl;
+	private WebClient wc;
+	private MockWebConnection connection;
+	private TaskResponseCache cache;
+	private TaskTempDir tempDir;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		pageUrl = new URL("http://response.cache.test/");
+		scriptUrl = new URL("http://response.cache.test/script.js");
+		dataUrl = new URL("http://response.cache.test/data.txt");
+		wc = new WebClient();
+		connection = new MockWebConnection();
+		tempDir = TaskTempDir.create();
+		cache = new TaskResponseCache(connection, tempDir, wc.getCookieManager(), 16, 1024);
+		wc.setWebConnection(cache);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		wc.closeAllWindows();
+		cache.close();
+		tempDir.close();
+	}
+
+	@Test
+	public void pageAndResourceLoadedOnce() throws Exception {
+		connection.setResponse(pageUrl, "<html><head><script src='script.js'></script></head><body></body></html>");
+		connection.setResponse(scriptUrl, "document.title = 'loaded';", "application/javascript");
+		wc.getPage(pageUrl);
+
+		WebRequest request = new WebRequest(scriptUrl);
+		request.setAdditionalHeader("Accept-Encoding", "");
+		WebResponse response = wc.loadWebResponse(request);
+		wc.getPage(pageUrl);
+
+		Assert.assertEquals(response.getContentAsString(), "document.title = 'loaded';");
+		Assert.assertEquals(connection.getRequestCount(), 2);
+		Assert.assertEquals(cache.getHits(), 3);
+	}
+
+	@Test
+	public void largeBodyIsSpilled() throws Exception {
+		String body = "<html><body>longer than the spill size of the cache</body></html>";
+		connection.setResponse(pageUrl, body);
+		Assert.assertEquals(wc.loadWebResponse(new WebRequest(pageUrl)).getContentAsString(), body);
+		Assert.assertEquals(wc.loadWebResponse(new WebRequest(pageUrl)).getContentAsString(), body);
+		Assert.assertEquals(connection.getRequestCount(), 1);
+		Assert.assertEquals(tempDir.getDir().list().length, 1);
+		Assert.assertEquals(tempDir.getSize(), body.length());
+
+		cache.close();
+		Assert.assertEquals(tempDir.getDir().list().length, 0);
+	}
+
+	@Test
+	public void postAndRangeRequestsAreNotShared() throws Exception {
+		connection.setResponse(pageUrl, "content");
+		wc.loadWebResponse(new WebRequest(pageUrl));
+		wc.loadWebResponse(new WebRequest(pageUrl, HttpMethod.POST));
+		WebRequest range = new WebRequest(pageUrl);
+		range.setAdditionalHeader("Range", "bytes=0-3");
+		wc.loadWebResponse(range);
+		Assert.assertEquals(connection.getRequestCount(), 3);
+		Assert.assertEquals(cache.getHits(), 0);
+	}
+
+	@Test
+	public void cookieChangeIsNotServedStaleBody() throws Exception {
+		connection.setResponse(dataUrl, "content");
+		wc.loadWebResponse(new WebRequest(dataUrl));
+		wc.getCookieManager().addCookie(new Cookie(dataUrl.getHost(), "visited", "1"));
+		wc.loadWebResponse(new WebRequest(dataUrl));
+		wc.loadWebResponse(new WebRequest(dataUrl));
+		Assert.assertEquals(connection.getRequestCount(), 2);
+		Assert.assertEquals(cache.getHits(), 1);
+	}
+
+	@Test
+	public void noStoreResponseIsNotCached() throws Exception {
+		connection.setResponse(dataUrl, "content", 200, "OK", "text/plain",
+				Collections.singletonList(new NameValuePair("Cache-Control", "private, no-store")));
+		Assert.assertEquals(wc.loadWebResponse(new WebRequest(dataUrl)).getContentAsString(), "content");
+		wc.loadWebResponse(new WebRequest(dataUrl));
+		Assert.assertEquals(connection.getRequestCount(), 2);
+		Assert.assertEquals(cache.getHits(), 0);
+	}
+
+	@Test
+	public void xhrRequestsAreNotCached() throws Exception {
+		wc.setAjaxController(cache.bypassXhr(new AjaxController()));
+		connection.setResponse(pageUrl, "<html><head><script>"
+				+ "function get() { var xhr = new XMLHttpRequest(); xhr.open('GET', 'data.txt', false); xhr.send(''); return xhr.responseText; }"
+				+ "document.title = get() + get();</script></head><body></body></html>");
+		connection.setResponse(dataUrl, "polled");
+		HtmlPage page = wc.getPage(pageUrl);
+		Assert.assertEquals(page.getTitleText(), "polledpolled");
+		Assert.assertEquals(connection.getRequestCount(), 3);
+	}
+
+	@Test
+	public void pooledBodyAboveSpillSizeKeepsMemoryLimit() throws Exception {
+		WebConnection pooled = new WebConnection() {
+			@Override
+			public WebResponse getResponse(WebRequest request) throws IOException {
+				String query = request.getUrl().getQuery();
+				final PooledContent content = new PooledContent();
+				byte[] body = new byte[Integer.parseInt(query)];
+				content.write(body, 0, body.length);
+				DownloadedContent downloaded = new DownloadedContent() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public InputStream getInputStream() throws IOException {
+						return content.newInputStream();
+					}
+
+					@Override
+					public void cleanUp() {
+						content.release();
+					}
+				};
+				return new WebResponse(new WebResponseData(downloaded, 200, "OK", Collections.<NameValuePair> emptyList()), request, 0);
+			}
+		};
+		TaskResponseCache limited = new TaskResponseCache(pooled, tempDir, wc.getCookieManager(), 16, 32);
+		try {
+			limited.getResponse(new WebRequest(new URL(pageUrl + "?100")));
+			Assert.assertEquals(tempDir.getDir().list().length, 1);
+			for (int i = 0; i < 4; i++) {
+				limited.getResponse(new WebRequest(new URL(pageUrl + "small" + i + "?10")));
+			}
+			// three small bodies fit in the memory limit, the fourth one is spilled
+			Assert.assertEquals(tempDir.getDir().list().length, 2);
+		} finally {
+			limited.close();
+		}
+	}
+}
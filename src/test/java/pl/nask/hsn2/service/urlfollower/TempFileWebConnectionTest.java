@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.service.task.TaskByteBudget;
+import pl.nask.hsn2.utils.DirectBufferPool;
+import pl.nask.hsn2.utils.PooledContent;
+import pl.nask.hsn2.utils.TaskTempDir;
+
+import com.gargoylesoftware.htmlunit.DownloadedContent;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+public class TempFileWebConnectionTest {
+
+	@Test
+	public void bodyKeptInPooledBuffersOrTaskDirectory() throws Exception {
+		TaskTempDir tempDir = TaskTempDir.create();
+		try {
+			byte[] small = new byte[100];
+			DownloadedContent inMemory = TempFileWebConnection.download(new ByteArrayInputStream(small), tempDir,
+					TaskByteBudget.unlimited()).getContent();
+			InputStream in = inMemory.getInputStream();
+			Assert.assertTrue(in instanceof PooledContent.ContentStream);
+			Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in), small));
+			in.close();
+			inMemory.cleanUp();
+			Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(inMemory.getInputStream()), small));
+			Assert.assertEquals(tempDir.getDir().list().length, 0);
+
+			byte[] large = new byte[TempFileWebConnection.MAX_IN_MEMORY * 2];
+			Arrays.fill(large, (byte) 'x');
+			DownloadedContent onFile = TempFileWebConnection.download(new ByteArrayInputStream(large), tempDir,
+					TaskByteBudget.unlimited()).getContent();
+			Assert.assertEquals(tempDir.getDir().list().length, 1);
+			Assert.assertEquals(tempDir.getSize(), large.length);
+			Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(onFile.getInputStream()), large));
+		} finally {
+			tempDir.close();
+		}
+		Assert.assertFalse(tempDir.getDir().exists());
+	}
+
+	@Test
+	public void bodyTruncatedAtByteBudget() throws Exception {
+		TaskTempDir tempDir = TaskTempDir.create();
+		try {
+			TaskByteBudget budget = new TaskByteBudget(TempFileWebConnection.MAX_IN_MEMORY * 2, TempFileWebConnection.MAX_IN_MEMORY * 3);
+			byte[] endless = new byte[TempFileWebConnection.MAX_IN_MEMORY * 4];
+			TempFileWebConnection.Download first = TempFileWebConnection.download(new ByteArrayInputStream(endless), tempDir, budget);
+			Assert.assertTrue(first.isTruncated());
+			Assert.assertEquals(IOUtils.toByteArray(first.getContent().getInputStream()).length, TempFileWebConnection.MAX_IN_MEMORY * 2);
+
+			TempFileWebConnection.Download second = TempFileWebConnection.download(new ByteArrayInputStream(endless), tempDir, budget);
+			Assert.assertTrue(second.isTruncated());
+			Assert.assertEquals(IOUtils.toByteArray(second.getContent().getInputStream()).length, TempFileWebConnection.MAX_IN_MEMORY);
+			Assert.assertTrue(budget.isExhausted());
+
+			TempFileWebConnection.Download small = TempFileWebConnection.download(new ByteArrayInputStream(new byte[10]), tempDir, budget);
+			Assert.assertTrue(small.isTruncated());
+			Assert.assertEquals(IOUtils.toByteArray(small.getContent().getInputStream()).length, 0);
+		} finally {
+			tempDir.close();
+		}
+	}
+
+	private static long buffersInUse() {
+		DirectBufferPool pool = DirectBufferPool.getInstance();
+		return pool.getDirectBytes() - (long) pool.getIdleCount() * pool.getChunkSize();
+	}
+
+	@Test
+	public void buffersReturnedWithTaskDirectoryWhenStreamsLeftOpen() throws Exception {
+		long inUse = buffersInUse();
+		TaskTempDir tempDir = TaskTempDir.create();
+		byte[] page = "<html><body>pooled page</body></html>".getBytes("UTF-8");
+		DownloadedContent content = TempFileWebConnection.download(new ByteArrayInputStream(page), tempDir, TaskByteBudget.unlimited())
+				.getContent();
+		WebResponse response = new WebResponse(new WebResponseData(content, 200, "OK", Collections.singletonList(new NameValuePair(
+				"Content-Type", "text/html"))), new WebRequest(new URL("http://pooled.test/")), 0);
+		// HtmlUnit leaves the streams opened by these calls unclosed
+		Assert.assertEquals(response.getContentAsString(), "<html><body>pooled page</body></html>");
+		Assert.assertNotNull(response.getContentCharset());
+		Assert.assertTrue(buffersInUse() > inUse);
+
+		tempDir.close();
+		Assert.assertEquals(buffersInUse(), inUse);
+	}
+}
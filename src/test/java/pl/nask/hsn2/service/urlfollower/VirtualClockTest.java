@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.net.URL;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+public class VirtualClockTest {
+	private static final long ONE_DAY = 24 * 60 * 60 * 1000L;
+
+	private URL pageUrl;
+	private WebClient wc;
+	private MockWebConnection connection;
+	private VirtualClock clock;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		pageUrl = new URL("http://virtual.clock.test/");
+		wc = new WebClient();
+		connection = new MockWebConnection();
+		wc.setWebConnection(connection);
+		clock = new VirtualClock();
+		clock.attach(wc);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		VirtualClock.detach(wc);
+		wc.closeAllWindows();
+	}
+
+	@Test
+	public void advanceNeverMovesBack() {
+		clock.advance(1000);
+		clock.advance(-500);
+		Assert.assertEquals(clock.getOffset(), 1000);
+		clock.advanceTo(clock.currentTimeMillis() - 5000);
+		Assert.assertEquals(clock.getOffset(), 1000);
+	}
+
+	@Test
+	public void scriptsSeeVirtualDate() throws Exception {
+		clock.advance(ONE_DAY);
+		connection.setResponse(pageUrl, "<html><head><script>document.title = '' + new Date().getTime() + ',' + Date.now()"
+				+ " + ',' + (new Date(0).getTime());</script></head><body></body></html>");
+		long before = System.currentTimeMillis();
+		HtmlPage page = wc.getPage(pageUrl);
+
+		String[] times = page.getTitleText().split(",");
+		Assert.assertTrue(Long.parseLong(times[0]) >= before + ONE_DAY, page.getTitleText());
+		Assert.assertTrue(Long.parseLong(times[1]) >= before + ONE_DAY, page.getTitleText());
+		Assert.assertEquals(times[2], "0");
+	}
+
+	@Test(timeOut = 5000)
+	public void timersAreFastForwarded() throws Exception {
+		connection.setResponse(pageUrl, "<html><head><title>waiting</title><script>"
+				+ "setTimeout(function () { document.title = 'fired'; }, 60000);</script></head><body></body></html>");
+		HtmlPage page = wc.getPage(pageUrl);
+
+		Assert.assertEquals(clock.fastForward(wc, 120000, 4000), 0);
+		Assert.assertEquals(page.getTitleText(), "fired");
+		Assert.assertTrue(clock.getOffset() >= 55000, "offset: " + clock.getOffset());
+	}
+
+	@Test(timeOut = 5000)
+	public void timersBeyondPeriodAreLeft() throws Exception {
+		connection.setResponse(pageUrl, "<html><head><title>waiting</title><script>"
+				+ "setTimeout(function () { document.title = 'fired'; }, 60000);</script></head><body></body></html>");
+		HtmlPage page = wc.getPage(pageUrl);
+
+		Assert.assertEquals(clock.fastForward(wc, 1000, 4000), 1);
+		Assert.assertEquals(page.getTitleText(), "waiting");
+		Assert.assertEquals(clock.getOffset(), 0);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.service.urlfollower;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class WorkerPoolTest {
+	private static final UncaughtExceptionHandler IGNORE = new UncaughtExceptionHandler() {
+		@Override
+		public void uncaughtException(Thread t, Throwable e) {
+		}
+	};
+
+	@Test(timeOut = 5000)
+	public void abandonedJobDoesNotBlockPool() throws InterruptedException {
+		WorkerPool pool = new WorkerPool(1, ExecutionMode.PLATFORM);
+		final CountDownLatch stuck = new CountDownLatch(1);
+		WorkerPool.Job stuckJob = pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				boolean released = false;
+				while (!released) {
+					try {
+						stuck.await();
+						released = true;
+					} catch (InterruptedException e) {
+						// ignores interruption like a thread blocked in native code
+					}
+				}
+			}
+		}, IGNORE);
+		final CountDownLatch done = new CountDownLatch(1);
+		WorkerPool.Job nextJob = pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		}, IGNORE);
+
+		stuckJob.interrupt();
+		Assert.assertFalse(stuckJob.awaitTermination(100), "job ignores interruption");
+		stuckJob.abandon();
+		Assert.assertTrue(nextJob.awaitTermination(2000), "next job should run on the replacement thread");
+		Assert.assertEquals(done.getCount(), 0);
+
+		stuck.countDown();
+		Assert.assertTrue(stuckJob.awaitTermination(2000));
+	}
+
+	@Test
+	public void throwableIsPassedToHandler() throws InterruptedException {
+		final AtomicReference<Throwable> caught = new AtomicReference<>();
+		WorkerPool.Job job = new WorkerPool(1, ExecutionMode.PLATFORM).submit(new Runnable() {
+			@Override
+			public void run() {
+				throw new StackOverflowError();
+			}
+		}, new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				caught.set(e);
+			}
+		});
+		Assert.assertTrue(job.awaitTermination(2000));
+		Assert.assertTrue(caught.get() instanceof StackOverflowError);
+	}
+
+	@Test(timeOut = 5000)
+	public void virtualModeRunsEveryWorkerAtOnce() throws InterruptedException {
+		WorkerPool pool = new WorkerPool(1, ExecutionMode.VIRTUAL);
+		final CountDownLatch started = new CountDownLatch(3);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		WorkerPool.Job[] jobs = { pool.submit(worker, IGNORE), pool.submit(worker, IGNORE), pool.submit(worker, IGNORE) };
+		Assert.assertTrue(started.await(2000, TimeUnit.MILLISECONDS), "workers should not wait for a pooled thread");
+		release.countDown();
+		for (WorkerPool.Job job : jobs) {
+			Assert.assertTrue(job.awaitTermination(2000));
+		}
+	}
+}
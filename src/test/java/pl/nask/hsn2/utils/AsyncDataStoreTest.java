@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AsyncDataStoreTest {
+
+	@Test
+	public void writesResolvedAfterCallReturns() throws Exception {
+		InMemoryDataStore store = new InMemoryDataStore(20);
+		AsyncDataStore async = new AsyncDataStore(store.getConnector(), -201);
+		List<Future<Long>> ids = new ArrayList<Future<Long>>();
+		for (int i = 0; i < 3; i++) {
+			ids.add(async.save(("request " + i).getBytes("UTF-8")));
+		}
+		ids.add(async.saveContent(new ByteArrayInputStream("<html/>".getBytes("UTF-8"))));
+		Assert.assertFalse(ids.get(3).isDone(), "browsing thread waited for writes");
+
+		async.awaitAll();
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(Arrays.equals(store.get(AsyncDataStore.get(ids.get(i))), ("request " + i).getBytes("UTF-8")));
+		}
+		Assert.assertTrue(Arrays.equals(store.get(AsyncDataStore.get(ids.get(3))), "<html/>".getBytes("UTF-8")));
+		Assert.assertEquals(store.getRequestCount(), 4);
+	}
+
+	@Test
+	public void fullQueueRunsWriteInCallingThread() throws Exception {
+		ThreadPoolExecutor executor = AsyncDataStore.newExecutor(1, 1);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			Runnable blocked = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			executor.execute(blocked);
+			executor.execute(blocked);
+			final Thread caller = Thread.currentThread();
+			final Thread[] ranBy = new Thread[1];
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					ranBy[0] = Thread.currentThread();
+				}
+			});
+			Assert.assertSame(ranBy[0], caller);
+			Assert.assertEquals(executor.getQueue().size(), 1);
+			release.countDown();
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
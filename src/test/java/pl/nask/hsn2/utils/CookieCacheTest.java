@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.wrappers.CookieWrapper;
+
+public class CookieCacheTest {
+	private int loads;
+	private final CookieCache.Loader loader = new CookieCache.Loader() {
+		@Override
+		public Set<CookieWrapper> load(long referenceId) throws StorageException {
+			loads++;
+			Set<CookieWrapper> cookies = new HashSet<CookieWrapper>();
+			cookies.add(new CookieWrapper("session", String.valueOf(referenceId), Collections.<String, String> emptyMap()));
+			return cookies;
+		}
+	};
+
+	@BeforeMethod
+	public void setUp() {
+		loads = 0;
+	}
+
+	@Test
+	public void listLoadedOncePerJob() throws Exception {
+		CookieCache first = new CookieCache(-301, loader);
+		Set<CookieWrapper> cookies = first.get(7);
+		Assert.assertEquals(cookies.size(), 1);
+		cookies.clear();
+		Assert.assertEquals(first.get(7).size(), 1);
+
+		long jobHits = ServiceMetrics.get("cookie.cache.job.hit");
+		Assert.assertEquals(new CookieCache(-301, loader).get(7).iterator().next().getValue(), "7");
+		Assert.assertEquals(ServiceMetrics.get("cookie.cache.job.hit"), jobHits + 1);
+		Assert.assertEquals(loads, 1);
+
+		new CookieCache(-302, loader).get(7);
+		Assert.assertEquals(loads, 2);
+	}
+
+	@Test
+	public void savedListServedToOtherTasks() throws Exception {
+		Set<CookieWrapper> saved = new HashSet<CookieWrapper>();
+		saved.add(new CookieWrapper("id", "abc", Collections.<String, String> emptyMap()));
+		new CookieCache(-303, loader).put(11, saved);
+		saved.clear();
+		Assert.assertEquals(new CookieCache(-303, loader).get(11).iterator().next().getValue(), "abc");
+		Assert.assertEquals(loads, 0);
+	}
+
+	@Test
+	public void missingListNotCached() throws Exception {
+		CookieCache cache = new CookieCache(-304, new CookieCache.Loader() {
+			@Override
+			public Set<CookieWrapper> load(long referenceId) {
+				loads++;
+				return null;
+			}
+		});
+		Assert.assertNull(cache.get(1));
+		Assert.assertNull(cache.get(1));
+		Assert.assertEquals(loads, 2);
+	}
+}
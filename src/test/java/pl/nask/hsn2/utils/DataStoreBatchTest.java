@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.ServiceConnector;
+
+public class DataStoreBatchTest {
+	private static final int WRITES = 20;
+	private static final long LATENCY = 20;
+
+	private static byte[] item(int i) throws Exception {
+		return ("item " + i).getBytes("UTF-8");
+	}
+
+	@Test
+	public void referenceIdsReturnedInOrder() throws Exception {
+		InMemoryDataStore store = new InMemoryDataStore(5);
+		DataStoreBatch batch = new DataStoreBatch(store.getConnector(), -101);
+		for (int i = 0; i < WRITES; i++) {
+			int position = i % 2 == 0 ? batch.add(item(i)) : batch.add(new ByteArrayInputStream(item(i)));
+			Assert.assertEquals(position, i);
+		}
+		long[] ids = batch.flush();
+		Assert.assertEquals(ids.length, WRITES);
+		Assert.assertEquals(batch.size(), 0);
+		for (int i = 0; i < WRITES; i++) {
+			Assert.assertTrue(Arrays.equals(store.get(ids[i]), item(i)));
+		}
+		Assert.assertEquals(store.getRequestCount(), WRITES);
+	}
+
+	@Test
+	public void emptyBatch() throws Exception {
+		InMemoryDataStore store = new InMemoryDataStore(0);
+		Assert.assertEquals(new DataStoreBatch(store.getConnector(), -102).flush().length, 0);
+		Assert.assertEquals(store.getRequestCount(), 0);
+	}
+
+	@Test
+	public void batchFasterThanSequentialWrites() throws Exception {
+		InMemoryDataStore store = new InMemoryDataStore(LATENCY);
+		ServiceConnector connector = store.getConnector();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < WRITES; i++) {
+			DataStoreHelper.saveInDataStore(connector, -103, item(i));
+		}
+		long sequential = System.nanoTime() - start;
+
+		DataStoreBatch batch = new DataStoreBatch(connector, -103);
+		for (int i = 0; i < WRITES; i++) {
+			batch.add(item(i));
+		}
+		start = System.nanoTime();
+		batch.flush();
+		long batched = System.nanoTime() - start;
+
+		Assert.assertTrue(batched * 2 < sequential, "batched: " + batched + "ns, sequential: " + sequential + "ns");
+	}
+
+	@Test
+	public void discardReleasesMessages() throws Exception {
+		InMemoryDataStore store = new InMemoryDataStore(0);
+		DirectBufferPool pool = new DirectBufferPool(1024, 8 * 1024, 64 * 1024);
+		PooledContent message = new PooledContent(pool);
+		byte[] item = item(1);
+		message.write(item, 0, item.length);
+		DataStoreBatch batch = new DataStoreBatch(store.getConnector(), -104);
+		batch.add(message);
+		batch.discard();
+		Assert.assertEquals(batch.size(), 0);
+		Assert.assertEquals(pool.getIdleCount(), 1);
+		Assert.assertEquals(batch.flush().length, 0);
+		Assert.assertEquals(store.getRequestCount(), 0);
+	}
+}
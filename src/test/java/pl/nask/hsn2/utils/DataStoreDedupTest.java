@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.StorageException;
+
+public class DataStoreDedupTest {
+	private final List<byte[]> uploads = new ArrayList<byte[]>();
+	private final DataStoreDedup.Uploader uploader = new DataStoreDedup.Uploader() {
+		@Override
+		public long upload(InputStream content) throws StorageException {
+			try {
+				uploads.add(IOUtils.toByteArray(content));
+			} catch (IOException e) {
+				throw new StorageException("upload failed", e);
+			}
+			return 1000 + uploads.size();
+		}
+	};
+
+	@BeforeMethod
+	public void setUp() {
+		uploads.clear();
+	}
+
+	private long save(long jobId, byte[] content) throws StorageException {
+		return DataStoreDedup.save(jobId, new ByteArrayInputStream(content), uploader);
+	}
+
+	@Test
+	public void identicalContentUploadedOncePerJob() throws Exception {
+		byte[] page = "<html>frame</html>".getBytes("UTF-8");
+		long first = save(-1, page);
+		Assert.assertEquals(save(-1, page.clone()), first);
+		Assert.assertNotEquals(save(-1, "<html>other</html>".getBytes("UTF-8")), first);
+		Assert.assertNotEquals(save(-2, page), first);
+		Assert.assertEquals(uploads.size(), 3);
+	}
+
+	@Test
+	public void fileContentUploadedFromFile() throws Exception {
+		File file = File.createTempFile("hsn2-content", ".tmp");
+		try {
+			byte[] binary = "MZ dropper".getBytes("UTF-8");
+			FileUtils.writeByteArrayToFile(file, binary);
+			long first = DataStoreDedup.save(-4, new FileContentStream(file), uploader);
+			Assert.assertEquals(save(-4, binary), first);
+			Assert.assertEquals(uploads.size(), 1);
+			Assert.assertTrue(Arrays.equals(uploads.get(0), binary));
+		} finally {
+			FileUtils.deleteQuietly(file);
+		}
+	}
+
+	@Test
+	public void largeContentUploadedUnchanged() throws Exception {
+		byte[] binary = new byte[DataStoreDedup.DEFAULT_SPILL_SIZE * 2 + 17];
+		for (int i = 0; i < binary.length; i++) {
+			binary[i] = (byte) (i * 31);
+		}
+		long first = save(-3, binary);
+		Assert.assertEquals(save(-3, binary), first);
+		Assert.assertEquals(uploads.size(), 1);
+		Assert.assertTrue(Arrays.equals(uploads.get(0), binary));
+	}
+
+	@Test
+	public void pooledContentUploadedFromBuffers() throws Exception {
+		byte[] script = "var kit = 'landing';".getBytes("UTF-8");
+		PooledContent content = new PooledContent();
+		content.write(script, 0, script.length);
+		InputStream in = content.newInputStream();
+		try {
+			long first = DataStoreDedup.save(-5, in, uploader);
+			Assert.assertEquals(save(-5, script), first);
+			Assert.assertEquals(uploads.size(), 1);
+			Assert.assertTrue(Arrays.equals(uploads.get(0), script));
+		} finally {
+			in.close();
+			content.release();
+		}
+	}
+
+	@Test
+	public void largeContentSpilledUnderTaskTempRoot() throws Exception {
+		final List<File> spillFiles = new ArrayList<File>();
+		DataStoreDedup.save(-6, new ByteArrayInputStream(new byte[DataStoreDedup.DEFAULT_SPILL_SIZE + 1]), new DataStoreDedup.Uploader() {
+			@Override
+			public long upload(InputStream content) {
+				spillFiles.add(((FileContentStream) content).getFile());
+				return 1;
+			}
+		});
+		File spillFile = spillFiles.get(0);
+		Assert.assertEquals(spillFile.getParentFile().getParentFile(), TaskTempDir.DEFAULT_ROOT);
+		Assert.assertFalse(spillFile.exists());
+	}
+}
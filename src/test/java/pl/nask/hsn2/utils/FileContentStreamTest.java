@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileContentStreamTest {
+	private File file;
+	private byte[] content;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		content = new byte[100000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i % 251);
+		}
+		file = File.createTempFile("hsn2-content", ".tmp");
+		FileUtils.writeByteArrayToFile(file, content);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		FileUtils.deleteQuietly(file);
+	}
+
+	@Test
+	public void readAndReset() throws Exception {
+		FileContentStream in = new FileContentStream(file);
+		try {
+			in.mark(0);
+			Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in), content));
+			Assert.assertEquals(in.read(), -1);
+			in.reset();
+			Assert.assertEquals(in.read(), 0);
+			Assert.assertEquals(in.read(), 1);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void digestAndTransferUseWholeFile() throws Exception {
+		FileContentStream in = new FileContentStream(file);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			in.mark(0);
+			Assert.assertEquals(in.digest(digest), content.length);
+			Assert.assertTrue(Arrays.equals(digest.digest(), MessageDigest.getInstance("SHA-256").digest(content)));
+
+			in.reset();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Assert.assertEquals(in.transferTo(Channels.newChannel(out)), content.length);
+			Assert.assertTrue(Arrays.equals(out.toByteArray(), content));
+			Assert.assertEquals(in.read(), -1);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void fileLargerThanMappingLimitIsRead() throws Exception {
+		File large = File.createTempFile("hsn2-large", ".tmp");
+		try {
+			// sparse file, no disk space is used
+			RandomAccessFile raf = new RandomAccessFile(large, "rw");
+			try {
+				raf.setLength(Integer.MAX_VALUE + 10L);
+				raf.seek(Integer.MAX_VALUE + 9L);
+				raf.write(7);
+			} finally {
+				raf.close();
+			}
+			FileContentStream in = new FileContentStream(large);
+			try {
+				Assert.assertEquals(in.skip(Integer.MAX_VALUE + 9L), Integer.MAX_VALUE + 9L);
+				Assert.assertEquals(in.available(), 1);
+				Assert.assertEquals(in.read(), 7);
+				Assert.assertEquals(in.read(), -1);
+			} finally {
+				in.close();
+			}
+		} finally {
+			FileUtils.deleteQuietly(large);
+		}
+	}
+}
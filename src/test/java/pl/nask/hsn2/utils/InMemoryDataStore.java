@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+import pl.nask.hsn2.ServiceConnector;
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.connector.REST.DataResponse;
+
+/**
+ * In-memory data store behind a {@link ServiceConnector}, with a fixed delay for every request to stand for the
+ * round-trip to the real data store. Only data store methods are supported.
+ */
+public final class InMemoryDataStore implements InvocationHandler {
+	private final Map<Long, byte[]> data = new ConcurrentHashMap<Long, byte[]>();
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final AtomicInteger requests = new AtomicInteger();
+	private final long latency;
+	private final ServiceConnector connector;
+
+	public InMemoryDataStore(long latency) {
+		this.latency = latency;
+		connector = (ServiceConnector) Proxy.newProxyInstance(ServiceConnector.class.getClassLoader(),
+				new Class<?>[] { ServiceConnector.class }, this);
+	}
+
+	public ServiceConnector getConnector() {
+		return connector;
+	}
+
+	public byte[] get(long referenceId) {
+		return data.get(referenceId);
+	}
+
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (method.getDeclaringClass() == Object.class) {
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			return "InMemoryDataStore@" + Integer.toHexString(System.identityHashCode(proxy));
+		}
+		if ("sendDataStoreData".equals(name)) {
+			roundTrip();
+			byte[] bytes = args[1] instanceof InputStream ? IOUtils.toByteArray((InputStream) args[1]) : (byte[]) args[1];
+			long referenceId = nextId.getAndIncrement();
+			data.put(referenceId, bytes);
+			return new DataResponse(referenceId);
+		}
+		if ("getDataStoreData".equals(name)) {
+			roundTrip();
+			byte[] bytes = data.get(args[1]);
+			if (bytes == null) {
+				throw new StorageException("No data with id " + args[1]);
+			}
+			return new ByteArrayInputStream(bytes);
+		}
+		throw new UnsupportedOperationException(name);
+	}
+
+	private void roundTrip() throws InterruptedException {
+		requests.incrementAndGet();
+		if (latency > 0) {
+			Thread.sleep(latency);
+		}
+	}
+}
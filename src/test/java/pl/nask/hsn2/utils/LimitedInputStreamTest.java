@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LimitedInputStreamTest {
+
+	@Test
+	public void contentCutAtLimit() throws Exception {
+		byte[] html = "<html><body>endless document</body></html>".getBytes("UTF-8");
+		LimitedInputStream in = new LimitedInputStream(new ByteArrayInputStream(html), 12);
+		byte[] prefix = IOUtils.toByteArray(in);
+		Assert.assertTrue(Arrays.equals(prefix, Arrays.copyOf(html, 12)));
+		Assert.assertTrue(in.isTruncated());
+		Assert.assertEquals(in.getHash(), Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(prefix)));
+	}
+
+	@Test
+	public void contentOfLimitSizeNotTruncated() throws Exception {
+		byte[] html = "<html></html>".getBytes("UTF-8");
+		LimitedInputStream exact = new LimitedInputStream(new ByteArrayInputStream(html), html.length);
+		Assert.assertEquals(IOUtils.toByteArray(exact).length, html.length);
+		Assert.assertFalse(exact.isTruncated());
+
+		LimitedInputStream unlimited = new LimitedInputStream(new ByteArrayInputStream(html), 0);
+		Assert.assertEquals(IOUtils.toByteArray(unlimited).length, html.length);
+		Assert.assertFalse(unlimited.isTruncated());
+	}
+}
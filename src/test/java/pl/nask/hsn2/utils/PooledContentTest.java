@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PooledContentTest {
+	private DirectBufferPool pool;
+	private byte[] bytes;
+
+	@BeforeMethod
+	public void setUp() {
+		pool = new DirectBufferPool(1024, 8 * 1024, 64 * 1024);
+		bytes = new byte[3000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i % 253);
+		}
+	}
+
+	private PooledContent newContent() {
+		PooledContent content = new PooledContent(pool);
+		content.write(bytes, 0, 1000);
+		content.write(bytes, 1000, bytes.length - 1000);
+		return content;
+	}
+
+	@Test
+	public void contentReadAcrossBuffers() throws Exception {
+		PooledContent content = newContent();
+		Assert.assertEquals(content.size(), bytes.length);
+		InputStream in = content.newInputStream();
+		Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in), bytes));
+		in.reset();
+		Assert.assertEquals(in.read(), 0);
+		in.mark(0);
+		Assert.assertEquals(IOUtils.skip(in, 2000), 2000);
+		in.reset();
+		Assert.assertEquals(in.read(), 1);
+		in.close();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		content.writeTo(Channels.newChannel(out));
+		Assert.assertTrue(Arrays.equals(out.toByteArray(), bytes));
+		content.release();
+	}
+
+	@Test
+	public void outputStreamAppends() throws Exception {
+		PooledContent content = new PooledContent(pool);
+		OutputStream out = content.newOutputStream();
+		out.write(bytes[0]);
+		out.write(bytes, 1, bytes.length - 1);
+		Assert.assertEquals(content.size(), bytes.length);
+		InputStream in = content.newInputStream();
+		Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in), bytes));
+		in.close();
+		content.release();
+	}
+
+	@Test
+	public void buffersReturnedWhenLastReferenceReleased() throws Exception {
+		PooledContent content = newContent();
+		content.retain();
+		InputStream in = content.newInputStream();
+		content.release();
+		Assert.assertEquals(pool.getIdleCount(), 0);
+		Assert.assertEquals(in.read(), 0);
+
+		// streams left open, as HtmlUnit does, do not keep the buffers
+		content.release();
+		Assert.assertEquals(pool.getIdleCount(), 3);
+		try {
+			in.read();
+			Assert.fail("Released content can't be read");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			content.newInputStream();
+			Assert.fail("Released content can't be read");
+		} catch (IOException e) {
+			// expected
+		}
+
+		newContent().release();
+		Assert.assertEquals(pool.getIdleCount(), 3);
+		Assert.assertEquals(pool.getDirectBytes(), 3 * 1024);
+	}
+
+	@Test
+	public void spillThresholdLoweredUnderHeapPressure() {
+		Assert.assertEquals(HeapPressure.spillThreshold(1600, 0.3), 1600);
+		Assert.assertEquals(HeapPressure.spillThreshold(1600, 0.7), 188);
+		Assert.assertEquals(HeapPressure.spillThreshold(1600, 0.95), 100);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.protobuff.Resources;
+import pl.nask.hsn2.wrappers.JSContextWrapper;
+
+/**
+ * Compares heap allocation of building a whole JS context list and serializing it to a byte array with writing it
+ * item by item into pooled buffers. Run manually.
+ */
+public class SerializationBenchmarkTest {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SerializationBenchmarkTest.class);
+	private static final int CONTEXTS = 500;
+	private static final int SOURCE_SIZE = 4096;
+	private static final int ROUNDS = 200;
+
+	@Test(enabled = false)
+	public void compareAllocation() throws Exception {
+		List<JSContextWrapper> contexts = new ArrayList<JSContextWrapper>();
+		StringBuilder source = new StringBuilder();
+		while (source.length() < SOURCE_SIZE) {
+			source.append("document.write(unescape('%3Cscript%3E'));");
+		}
+		for (int i = 0; i < CONTEXTS; i++) {
+			contexts.add(new JSContextWrapper(i, source.toString(), i % 2 == 0));
+		}
+		// first round warms up
+		for (int i = 0; i < 2; i++) {
+			long built = allocatedPerMessage(contexts, true);
+			long streamed = allocatedPerMessage(contexts, false);
+			LOGGER.info("Allocated per message: built {} bytes, streamed {} bytes", built, streamed);
+			if (i > 0) {
+				Assert.assertTrue(streamed < built);
+			}
+		}
+	}
+
+	private static long allocatedPerMessage(List<JSContextWrapper> contexts, boolean built) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long start = threads.getThreadAllocatedBytes(threadId);
+		long size = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			if (built) {
+				size += buildAndSerialize(contexts).length;
+			} else {
+				PooledContent content = WebClientDataStoreHelper.serializeJSContexts(contexts);
+				size += content.size();
+				content.release();
+			}
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - start;
+		LOGGER.debug("Serialized {} bytes", size);
+		return allocated / ROUNDS;
+	}
+
+	/**
+	 * Serialization used before: the whole list is built and copied to a byte array.
+	 */
+	private static byte[] buildAndSerialize(List<JSContextWrapper> contexts) {
+		Resources.JSContextList.Builder list = Resources.JSContextList.newBuilder();
+		for (JSContextWrapper wrapper : contexts) {
+			list.addContexts(Resources.JSContext.newBuilder()
+					.setId(wrapper.getId())
+					.setSource(wrapper.getSource())
+					.setEval(wrapper.isEval())
+					.build());
+		}
+		return list.build().toByteArray();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.utils;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TaskTempDirTest {
+	private File root;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		root = Files.createTempDirectory("hsn2-tmpdir-test").toFile();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		FileUtils.deleteQuietly(root);
+	}
+
+	@Test
+	public void filesAccountedAndRemovedWithDirectory() throws Exception {
+		long usedBefore = ServiceMetrics.get("temp.disk.bytes");
+		TaskTempDir tempDir = TaskTempDir.create(root);
+		File first = tempDir.createFile("htmlunit");
+		FileUtils.writeByteArrayToFile(first, new byte[1000]);
+		tempDir.written(first);
+		File second = tempDir.createFile("hsn2-response");
+		FileUtils.writeByteArrayToFile(second, new byte[24]);
+		tempDir.written(second);
+		Assert.assertEquals(tempDir.getSize(), 1024);
+		Assert.assertEquals(ServiceMetrics.get("temp.disk.bytes"), usedBefore + 1024);
+
+		tempDir.delete(second);
+		Assert.assertFalse(second.exists());
+		Assert.assertEquals(ServiceMetrics.get("temp.disk.bytes"), usedBefore + 1000);
+
+		tempDir.close();
+		Assert.assertFalse(tempDir.getDir().exists());
+		Assert.assertEquals(ServiceMetrics.get("temp.disk.bytes"), usedBefore);
+	}
+
+	@Test
+	public void onlyStaleDirectoriesRemoved() throws Exception {
+		TaskTempDir stale = TaskTempDir.create(root);
+		FileUtils.writeByteArrayToFile(stale.createFile("htmlunit"), new byte[10]);
+		stale.getDir().setLastModified(0);
+		TaskTempDir running = TaskTempDir.create(root);
+
+		Assert.assertEquals(TaskTempDir.removeStale(root, 60000), 1);
+		Assert.assertFalse(stale.getDir().exists());
+		Assert.assertTrue(running.getDir().exists());
+		running.close();
+		stale.close();
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.nask.hsn2.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.wrappers.CookieWrapper;
+
+public class WebClientDataStoreHelperTest {
+
+	private static CookieWrapper cookie(String name, String value, String domain, String path) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("path", path);
+		attributes.put("domain", domain);
+		return new CookieWrapper(name, value, attributes);
+	}
+
+	private static List<String> names(Iterable<CookieWrapper> cookies) {
+		List<String> names = new ArrayList<String>();
+		for (CookieWrapper cookie : cookies) {
+			names.add(cookie.getName() + "=" + cookie.getValue());
+		}
+		return names;
+	}
+
+	@Test
+	public void canonicalCookiesSortedWithoutDuplicates() {
+		Set<CookieWrapper> cookies = new HashSet<CookieWrapper>();
+		cookies.add(cookie("sid", "2", "example.com", "/"));
+		cookies.add(cookie("a", "1", "example.com", "/"));
+		cookies.add(cookie("sid", "1", "example.com", "/"));
+		// same cookie from the referrer list and the browser
+		cookies.add(cookie("a", "1", "example.com", "/"));
+		cookies.add(cookie("a", "1", "example.com", "/admin"));
+
+		Assert.assertEquals(names(WebClientDataStoreHelper.canonical(cookies)), Arrays.asList("a=1", "a=1", "sid=1", "sid=2"));
+	}
+}